@@ -185,6 +185,9 @@ public class AlignerBoost {
 		case "filterSamById":
 			FilterSamById.main(opts);
 			break;
+		case "buildSnpIndex":
+			BuildSnpIndex.main(opts);
+			break;
 		case "classifySAM":
 			ClassifySAM.main(opts);
 			break;
@@ -331,6 +334,7 @@ public class AlignerBoost {
 			"                  utils    bed2Wig       convert BED6 file to UCSC Wiggle file"+ newLine +
 			"                  utils    bed2AbsCover  convert BED6 file to UCSC tab-delimited coverage file w/ absolute loc" + newLine +
 			"                  utils    filterSamById filter SAM/BAM files with a given ID list" + newLine +
+			"                  utils    buildSnpIndex build a memory-mappable binary index from known SNP VCF file for filterSE/filterPE" + newLine +
 			"                  utils    classifySAM   quick classify SAM/BAM file given genomic annotations in GFF file(s)" + newLine +
 			"                  utils    classifyVCF   quick classify VCF variation file given genomic annotations in GFF file(s)" + newLine +
 			"                  utils    classifyBED   quick classify BED file given genomic annotations in GFF file(s)" + newLine +
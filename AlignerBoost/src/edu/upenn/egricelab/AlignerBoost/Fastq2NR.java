@@ -25,10 +25,14 @@ import static edu.upenn.egricelab.AlignerBoost.EnvConstants.progFile;
 import static edu.upenn.egricelab.AlignerBoost.utils.Stats.*;
 
 import java.io.*;
-import java.util.zip.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader;
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader.FastqRecord;
 
 /**
  * @author Qi Zheng
@@ -53,13 +57,15 @@ public class Fastq2NR {
 		}
 		
 		try {
-			if(!isPaired) {
-				Map<String, NRTag> seq2NR = extractNRFromRead(readInFile);
+			if(maxMem > 0) // collapse in external-memory
+				extractNRByPartition();
+			else if(!isPaired) {
+				NRTable seq2NR = extractNRFromRead(readInFile);
 				// output seqCounts
 				writeNR(seq2NR, readOutFile);
 			}
 			else {
-				Map<String, NRPair> seq2NRPair = extractNRFromRead(readInFile, mateInFile);
+				NRTable seq2NRPair = extractNRFromRead(readInFile, mateInFile);
 				// output seqCounts
 				writeNR(seq2NRPair, readOutFile, mateOutFile);				
 			}
@@ -84,66 +90,62 @@ public class Fastq2NR {
 		}
 	}
 
-	public static void writeNR(Map<String, NRTag> seq2NR, String readOutFile)
+	public static void writeNR(NRTable seq2NR, String readOutFile)
 			throws IOException {
 		readOut = new BufferedWriter(new FileWriter(readOutFile));
-		int nr = 0;
-		int tr = 0;
-		int un = 0;
-		for(Entry<String, NRTag> entry : seq2NR.entrySet()) {
-			NRTag tag = entry.getValue();
-			int len = tag.seq.length();
-			String nrID = readLen == 0 ? "nr" + (++nr) : len < readLen ? "tr" + (++tr) : "un" + (++un);
-			readOut.write("@" + nrID + ":" + tag.clone + ":" + len + "\n" + tag.seq + "\n" +
-					"+\n" + tag.getNRQual() + "\n");
-		}
+		for(int i = 0; i < seq2NR.size(); i++)
+			writeNRTag(seq2NR.getClone(i), seq2NR.getSeq(i), seq2NR.getNRQual(i));
 		readOut.close();
 	}
 
-	public static void writeNR(Map<String, NRPair> seq2NRPair, String readOutFile, String mateOutFile)
+	public static void writeNR(NRTable seq2NRPair, String readOutFile, String mateOutFile)
 			throws IOException {
 		readOut = new BufferedWriter(new FileWriter(readOutFile));
 		mateOut = new BufferedWriter(new FileWriter(mateOutFile));
-		int nr = 0;
-		int tr = 0;
-		int un = 0;
-		for(Entry<String, NRPair> entry : seq2NRPair.entrySet()) {
-			NRPair pair = entry.getValue();
-			int len = pair.getPairLength();
-			String nrID = readLen == 0 ? "nr" + (++nr) : len < readLen * 2 ? "tr" + (++tr) : "un" + (++un);
-			readOut.write("@" + nrID + ":" + pair.clone + ":" + len + "/1\n" + pair.readSeq + "\n" +
-					"+\n" + pair.getNRReadQual() + "\n");
-			mateOut.write("@" + nrID + ":" + pair.clone + ":" + len + "/2\n" + pair.mateSeq + "\n" +
-					"+\n" + pair.getNRMateQual() + "\n");
-		}
+		for(int i = 0; i < seq2NRPair.size(); i++)
+			writeNRPair(seq2NRPair.getClone(i), seq2NRPair.getSeq(i), seq2NRPair.getNRQual(i),
+					seq2NRPair.getMateSeq(i), seq2NRPair.getMateNRQual(i));
 		readOut.close();
 		mateOut.close();
 	}
 
+	/**
+	 * write a NR-tag to readOut, with the next NR ID
+	 */
+	private static void writeNRTag(int clone, String seq, String nrQual) throws IOException {
+		int len = seq.length();
+		String nrID = readLen == 0 ? "nr" + (++nr) : len < readLen ? "tr" + (++tr) : "un" + (++un);
+		readOut.write("@" + nrID + ":" + clone + ":" + len + "\n" + seq + "\n" +
+				"+\n" + nrQual + "\n");
+	}
+
+	/**
+	 * write a NR-pair to readOut and mateOut, with the next NR ID
+	 */
+	private static void writeNRPair(int clone, String readSeq, String readNRQual, String mateSeq, String mateNRQual)
+			throws IOException {
+		int len = readSeq.length() + mateSeq.length();
+		String nrID = readLen == 0 ? "nr" + (++nr) : len < readLen * 2 ? "tr" + (++tr) : "un" + (++un);
+		readOut.write("@" + nrID + ":" + clone + ":" + len + "/1\n" + readSeq + "\n" +
+				"+\n" + readNRQual + "\n");
+		mateOut.write("@" + nrID + ":" + clone + ":" + len + "/2\n" + mateSeq + "\n" +
+				"+\n" + mateNRQual + "\n");
+	}
+
 	/**
 	 * method to extract NR from reads
 	 * @param readInFile
-	 * @return  map of seqCounts
+	 * @return  table of NR-tags
 	 * @throws IOException
 	 */
 	//@SuppressWarnings("resource")
-	public static Map<String, NRTag> extractNRFromRead(String readInFile)
+	public static NRTable extractNRFromRead(String readInFile)
 			throws IOException {
-		readIn = !readInFile.endsWith(".gz") ? new BufferedReader(new FileReader(readInFile)) :
-			new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(readInFile))));
-		Map<String, NRTag> seq2NR = new HashMap<String, NRTag>();
-		String line = null;
-		while((line = readIn.readLine()) != null) {
-			if(line.startsWith("@")) { // def line
-				String seq = readIn.readLine(); // next line
-				readIn.readLine(); // ignore 1 line
-				String qual = readIn.readLine(); // next line
-				if(!seq2NR.containsKey(seq))
-					seq2NR.put(seq, new NRTag(seq, qual)); // construct a NRTag if not exists
-				else
-					seq2NR.get(seq).addRead(seq,  qual);
-			}
-		}
+		readIn = new FastqReader(readInFile);
+		NRTable seq2NR = new NRTable(false, asciiOffset);
+		FastqRecord read = new FastqRecord();
+		while(readIn.next(read))
+			seq2NR.add(read.getBuffer(), read.getSeqFrom(), read.getQualFrom(), read.getSeqLength()); // a new NR-tag is created if not exists
 		readIn.close();
 		return seq2NR;
 	}
@@ -152,39 +154,327 @@ public class Fastq2NR {
 	 * Overloaded method to extract NR from read pairs
 	 * @param readInFile
 	 * @param mateInFile
-	 * @return  map of seqCounts
+	 * @return  table of NR-pairs
 	 * @throws IOException
 	 */
 	//@SuppressWarnings("resource")
-	public static Map<String, NRPair> extractNRFromRead(String readInFile, String mateInFile)
+	public static NRTable extractNRFromRead(String readInFile, String mateInFile)
 			throws IOException {
-		readIn = !readInFile.endsWith(".gz") ? new BufferedReader(new FileReader(readInFile)) :
-			new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(readInFile))));
-		mateIn = !mateInFile.endsWith(".gz") ? new BufferedReader(new FileReader(mateInFile)) :
-			new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(mateInFile))));
-		Map<String, NRPair> seq2NRPair = new HashMap<String, NRPair>();
-		String line1 = null;
-		String line2 = null;
-		while((line1 = readIn.readLine()) != null && (line2 = mateIn.readLine()) != null) {
-			if(line1.startsWith("@") && line2.startsWith("@")) { // def lines
-				String seq1 = readIn.readLine();
-				String seq2 = mateIn.readLine();
-				readIn.readLine(); // Ignore sep line
-				mateIn.readLine(); // Ignore sep line
-				String qual1 = readIn.readLine();
-				String qual2 = mateIn.readLine();
-				String seq = seq1 + ":" + seq2;
-				if(!seq2NRPair.containsKey(seq))
-					seq2NRPair.put(seq, new NRPair(seq1, qual1, seq2, qual2)); // construct a NRPair if if not exists
-				else
-					seq2NRPair.get(seq).addPair(seq1, qual1, seq2, qual2);
-			}
-		}
+		readIn = new FastqReader(readInFile);
+		mateIn = new FastqReader(mateInFile);
+		NRTable seq2NRPair = new NRTable(true, asciiOffset);
+		FastqRecord read = new FastqRecord();
+		FastqRecord mate = new FastqRecord();
+		while(readIn.next(read) && mateIn.next(mate))
+			seq2NRPair.add(read.getBuffer(), read.getSeqFrom(), read.getQualFrom(), read.getSeqLength(),
+					mate.getBuffer(), mate.getSeqFrom(), mate.getQualFrom(), mate.getSeqLength()); // a new NR-pair is created if not exists
 		readIn.close();
 		mateIn.close();
 		return seq2NRPair;		
 	}
 
+	/**
+	 * Extract NR from reads or read pairs in bounded memory, by hash-partitioning the reads into spill files,
+	 * collapsing each partition independently in parallel, and then merging the collapsed partitions to the output.
+	 * A partition that still cannot be collapsed in memory is re-partitioned recursively
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void extractNRByPartition() throws IOException {
+		// the spill buffers of merging and collapsing are taken from the memory limit
+		long memPerThread = (getMaxMemBytes() - SPILL_BUFFER_SIZE) / nThreads - (long) SPILL_BUFFERS_PER_THREAD * SPILL_BUFFER_SIZE;
+		int nPart = getNumPartitions(memPerThread);
+		List<File> parts = partition(nPart);
+		// collapse each partition in parallel
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for(final File part : parts) {
+			results.add(workers.submit(new Callable<File>() {
+				@Override
+				public File call() throws IOException {
+					File collapsed = createSpillFile();
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(collapsed), SPILL_BUFFER_SIZE));
+					try {
+						collapsePartition(part, 0, memPerThread, out);
+					}
+					finally {
+						out.close();
+						part.delete();
+					}
+					return collapsed;
+				}
+			}));
+		}
+		workers.shutdown();
+		// merge collapsed partitions in partition order
+		readOut = new BufferedWriter(new FileWriter(readOutFile));
+		if(isPaired)
+			mateOut = new BufferedWriter(new FileWriter(mateOutFile));
+		try {
+			for(Future<File> result : results) {
+				File collapsed = result.get();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(collapsed), SPILL_BUFFER_SIZE));
+				try {
+					int clone;
+					while((clone = readClone(in)) > 0) {
+						if(!isPaired) {
+							String seq = readString(in);
+							writeNRTag(clone, seq, readString(in));
+						}
+						else {
+							String readSeq = readString(in);
+							String readQual = readString(in);
+							String mateSeq = readString(in);
+							writeNRPair(clone, readSeq, readQual, mateSeq, readString(in));
+						}
+					}
+				}
+				finally {
+					in.close();
+					collapsed.delete();
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while collapsing partitions", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("failed to collapse partition: " + e.getCause().getMessage(), e.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+			readOut.close();
+			if(mateOut != null)
+				mateOut.close();
+		}
+	}
+
+	/**
+	 * Estimate number of partitions needed from the input file sizes, so each partition likely fits in the memory limit.
+	 * The number is capped so the open spill files and their buffers stay bounded,
+	 * any partition still too large is re-partitioned when collapsed
+	 * @param memLimit  max memory in bytes for collapsing a partition
+	 * @return  number of partitions, at least the number of threads
+	 */
+	private static int getNumPartitions(long memLimit) {
+		long inSize = getInputSize(readInFile);
+		if(isPaired)
+			inSize += getInputSize(mateInFile);
+		long nPart = inSize * MEM_PER_INPUT_BYTE / memLimit + 1;
+		long maxPart = Math.min(MAX_PARTITIONS, getMaxMemBytes() / SPILL_BUFFER_SIZE); // all partition buffers fit in the memory limit
+		return (int) Math.max(nThreads, Math.min(nPart, maxPart));
+	}
+
+	/**
+	 * @return  max memory in bytes for external-memory collapsing
+	 */
+	private static long getMaxMemBytes() {
+		return (long) maxMem << 20;
+	}
+
+	/**
+	 * @return  estimated uncompressed size of a FASTQ input file
+	 */
+	private static long getInputSize(String inFile) {
+		long size = new File(inFile).length();
+		return inFile.endsWith(".gz") ? size * GZIP_RATIO : size;
+	}
+
+	/**
+	 * Partition the input reads or read pairs into spill files by the hash of their sequences
+	 * @param nPart  number of partitions
+	 * @return  spill files of all partitions
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static List<File> partition(int nPart) throws IOException {
+		List<File> parts = new ArrayList<File>(nPart);
+		DataOutputStream[] partOut = new DataOutputStream[nPart];
+		try {
+			for(int i = 0; i < nPart; i++) {
+				parts.add(createSpillFile());
+				partOut[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parts.get(i)), SPILL_BUFFER_SIZE));
+			}
+			readIn = new FastqReader(readInFile);
+			FastqRecord read = new FastqRecord();
+			if(!isPaired) {
+				while(readIn.next(read)) {
+					DataOutputStream out = partOut[getPartition(hashSeq(read), 0, nPart)];
+					writeRead(out, read);
+				}
+			}
+			else {
+				mateIn = new FastqReader(mateInFile);
+				FastqRecord mate = new FastqRecord();
+				while(readIn.next(read) && mateIn.next(mate)) {
+					DataOutputStream out = partOut[getPartition(hashSeq(read) * 31 + hashSeq(mate), 0, nPart)];
+					writeRead(out, read);
+					writeRead(out, mate);
+				}
+				mateIn.close();
+			}
+			readIn.close();
+		}
+		finally {
+			for(DataOutputStream out : partOut)
+				if(out != null)
+					out.close();
+		}
+		return parts;
+	}
+
+	/**
+	 * Collapse a partition in memory, and write the collapsed NR-tags/NR-pairs to the output.
+	 * If the collapsed partition exceeds the memory limit, it is re-partitioned with the next hash level
+	 * and each sub-partition is collapsed recursively
+	 * @param part  spill file of this partition
+	 * @param level  hash level of this partition
+	 * @param memLimit  max memory in bytes for collapsing this partition
+	 * @param out  output of the collapsed NR-tags/NR-pairs
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void collapsePartition(File part, int level, long memLimit, DataOutputStream out) throws IOException {
+		NRTable seq2NR = new NRTable(isPaired, asciiOffset);
+		boolean isOverflow = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part), SPILL_BUFFER_SIZE));
+		try {
+			SpillRecord record = new SpillRecord();
+			while(!isOverflow && record.read(in)) {
+				byte[] buf = record.buf;
+				if(!isPaired)
+					seq2NR.add(buf, 0, record.readLen, record.readLen);
+				else
+					seq2NR.add(buf, 0, record.readLen, record.readLen,
+							buf, record.getMateFrom(), record.getMateFrom() + record.mateLen, record.mateLen);
+				isOverflow = seq2NR.getMemoryUsage() > memLimit && level < MAX_PARTITION_LEVEL;
+			}
+		}
+		finally {
+			in.close();
+		}
+		if(isOverflow) { // re-partition and collapse each sub-partition
+			seq2NR = null;
+			for(File subPart : repartition(part, level + 1)) {
+				try {
+					collapsePartition(subPart, level + 1, memLimit, out);
+				}
+				finally {
+					subPart.delete();
+				}
+			}
+			return;
+		}
+		for(int i = 0; i < seq2NR.size(); i++) {
+			out.writeInt(seq2NR.getClone(i));
+			writeString(out, seq2NR.getSeq(i));
+			writeString(out, seq2NR.getNRQual(i));
+			if(isPaired) {
+				writeString(out, seq2NR.getMateSeq(i));
+				writeString(out, seq2NR.getMateNRQual(i));
+			}
+		}
+	}
+
+	/**
+	 * Re-partition a partition into sub-partitions using a different hash level
+	 * @param part  spill file of the partition
+	 * @param level  hash level of the sub-partitions
+	 * @return  spill files of all sub-partitions
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static List<File> repartition(File part, int level) throws IOException {
+		List<File> subParts = new ArrayList<File>(REPARTITION_FANOUT);
+		DataOutputStream[] subOut = new DataOutputStream[REPARTITION_FANOUT];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part), SPILL_BUFFER_SIZE));
+		try {
+			for(int i = 0; i < REPARTITION_FANOUT; i++) {
+				subParts.add(createSpillFile());
+				subOut[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(subParts.get(i)), SPILL_BUFFER_SIZE));
+			}
+			SpillRecord record = new SpillRecord();
+			while(record.read(in))
+				record.write(subOut[getPartition(record.hash(), level, REPARTITION_FANOUT)]);
+		}
+		finally {
+			in.close();
+			for(DataOutputStream out : subOut)
+				if(out != null)
+					out.close();
+		}
+		return subParts;
+	}
+
+	/**
+	 * Get the partition of a sequence hash, re-mixed at each level so sub-partitions are independent of their parent
+	 * @param hash  sequence hash
+	 * @param level  hash level
+	 * @param nPart  number of partitions
+	 * @return  partition index
+	 */
+	private static int getPartition(int hash, int level, int nPart) {
+		int h = hash + level * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % nPart;
+	}
+
+	private static File createSpillFile() throws IOException {
+		File file = File.createTempFile("Fastq2NR", ".tmp", new File(tmpDir));
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * write a read to a spill file, as its length followed by the seq and quality bytes
+	 */
+	private static void writeRead(DataOutputStream out, FastqRecord read) throws IOException {
+		out.writeInt(read.getSeqLength());
+		out.write(read.getBuffer(), read.getSeqFrom(), read.getSeqLength());
+		out.write(read.getBuffer(), read.getQualFrom(), read.getQualLength());
+	}
+
+	/**
+	 * @return  hash of the seq of a read, same as the hashCode of the seq String
+	 */
+	private static int hashSeq(FastqRecord read) {
+		return hashSeq(read.getBuffer(), read.getSeqFrom(), read.getSeqLength());
+	}
+
+	private static int hashSeq(byte[] buf, int from, int len) {
+		int h = 0;
+		for(int i = from; i < from + len; i++)
+			h = 31 * h + (buf[i] & 0xFF);
+		return h;
+	}
+
+	/**
+	 * @return  clone of the next collapsed NR-tag/NR-pair, or 0 if the end of the collapsed file is reached
+	 */
+	private static int readClone(DataInputStream in) throws IOException {
+		try {
+			return in.readInt();
+		}
+		catch(EOFException e) {
+			return 0;
+		}
+	}
+
 	private static void parseOptions(String[] args) throws IllegalArgumentException {
 		for(int i = 0; i < args.length; i++) {
 			if(args[i].equals("-in"))
@@ -201,6 +491,12 @@ public class Fastq2NR {
 				readLen = Integer.parseInt(args[++i]);
 			else if(args[i].equals("--ascii-offset"))
 				asciiOffset = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--max-mem"))
+				maxMem = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--tmp-dir"))
+				tmpDir = args[++i];
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else
 				throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
 		}
@@ -213,6 +509,12 @@ public class Fastq2NR {
 			throw new IllegalArgumentException("-readLen must be non-negative integer");
 		if(mateInFile == null ^ mateOutFile == null)
 			throw new IllegalArgumentException("--mate-in and --mate-out must be specified at the same time");
+		if(maxMem < 0)
+			throw new IllegalArgumentException("--max-mem must be non-negative integer");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive integer");
+		if(maxMem > 0 && getMaxMemBytes() <= ((long) nThreads * SPILL_BUFFERS_PER_THREAD + 1) * SPILL_BUFFER_SIZE)
+			throw new IllegalArgumentException("--max-mem is too small for the spill buffers of " + nThreads + " thread(s)");
 	}
 
 	private static void printUsage() {
@@ -224,193 +526,69 @@ public class Fastq2NR {
 		        "            --mate-in  FILE      FASTQ input for reverse reads" + newLine +
 		        "            --mate-out  FILE     FASTQ output for reverse reads" + newLine +
 		        "            -readLen  INT        read length [auto-detect]" + newLine +
-		        "            --ascii-offset  INT  ascii-offset of phred scores [" + asciiOffset + "]"
+		        "            --ascii-offset  INT  ascii-offset of phred scores [" + asciiOffset + "]" + newLine +
+		        "            --max-mem  INT       max memory in MB for collapsing reads, spilling hash-partitioned reads to --tmp-dir, or 0 to collapse all reads in memory [" + maxMem + "]" + newLine +
+		        "            --tmp-dir  DIR       directory for spilled reads with --max-mem [" + tmpDir + "]" + newLine +
+		        "            -p/--threads  INT    number of threads for collapsing spilled partitions in parallel with --max-mem [" + nThreads + "]"
 				);
 	}
 
 	/**
-	 * A Nested class member for a NR-tag
+	 * A nested static class member for a reusable spilled read (or read pair),
+	 * with the forward read seq and quality followed by the reverse mate seq and quality in a shared buffer
 	 * @author Qi Zheng
-	 *
 	 */
-	static class NRTag {
+	private static class SpillRecord {
 		/**
-		 * Construct a NR-tag from a FASTQ read
-		 * @param read  read seq
-		 * @param qual  read quality
+		 * read the next spilled read (or read pair) into this record
+		 * @return  false if the end of the spill file is reached
 		 */
-		public NRTag(String read, String qual) {
-			assert read.length() == qual.length();
-			seq = read;
-			clone = 1;
-			nrQual = new int[read.length()];
-			for(int i = 0; i < qual.length(); i++)
-				nrQual[i] += qual.charAt(i) - asciiOffset;
-		}
-
-		/**
-		 * Add a read to this NRTag
-		 * @param read  another read, must with identical seq
-		 * @param qual  quality of the read
-		 */
-		public boolean addRead(String read, String qual) {
-			if(!read.equals(seq))
-				return false; // not added
-			assert read.length() == qual.length();
-			clone++;
-			for(int i = 0; i < qual.length(); i++)
-				nrQual[i] += qual.charAt(i) - asciiOffset;
-			return true;
-		}
-		
-		/**
-		 * Compare whether this NRTag equals other object
-		 * @return  true if the two NRTag has identical strings 
-		 */
-		@Override
-		public boolean equals(Object otherObj) {
-			if(!(otherObj != null && otherObj instanceof NRTag))
-				return false;
-			NRTag other = (NRTag) otherObj;
-			return seq.equals(other.seq); // two NR-tag is differentiated only by the sequence
-		}
-		
-		
-		/**
-		 * Get hashCode for this NRTag
-		 * @return  hashCode from the internal seq
-		 */
-		@Override
-		public int hashCode() {
-			return seq.hashCode();
-		}
-		
-		/**
-		 * Get the ascii quality string for this NRTag
-		 * @return  quality string of this NRTag
-		 */
-		public String getNRQual() {
-			StringBuilder str = new StringBuilder();
-			for(int q : nrQual) {
-				int b = q + ASCII_OFFSET;
-				if(b > Byte.MAX_VALUE)
-					b = Byte.MAX_VALUE;
-				str.append((char) b);
+		boolean read(DataInputStream in) throws IOException {
+			try {
+				readLen = in.readInt();
 			}
-			return str.toString();
-		}
-		
-		private String seq;
-		private int clone;
-		private int[] nrQual; // collapsed log-error rate
-	}
-	
-	/**
-	 * A Nested class member for a NR-pair
-	 * @author Qi Zheng
-	 *
-	 */
-	static class NRPair {
-		/**
-		 * Construct a NR-pair from a FASTQ read pair
-		 * @param read  read seq
-		 * @param qual  read quality
-		 */
-		public NRPair(String readSeq, String readQual, String mateSeq, String mateQual) {
-			assert readSeq.length() == readQual.length() && mateSeq.length() == mateQual.length();
-			this.readSeq = readSeq;
-			this.mateSeq = mateSeq;
-			clone = 1;
-			readNRQual = new int[readSeq.length()];
-			mateNRQual = new int[mateSeq.length()];
-			for(int i = 0; i < readQual.length(); i++)
-				readNRQual[i] += readQual.charAt(i) - asciiOffset;
-			for(int i = 0; i < mateQual.length(); i++)
-				mateNRQual[i] += mateQual.charAt(i) - asciiOffset;
-		}
-	
-		/**
-		 * Add a read to this NRTag
-		 * @param read  another read, must with identical seq
-		 * @param qual  quality of the read
-		 */
-		public boolean addPair(String readSeq, String readQual, String mateSeq, String mateQual) {
-			if(!(this.readSeq.equals(readSeq) && this.mateSeq.equals(mateSeq)))
+			catch(EOFException e) {
 				return false;
-			assert readSeq.length() == readQual.length() && mateSeq.length() == mateQual.length();
-			clone++;
-			for(int i = 0; i < readQual.length(); i++)
-				readNRQual[i] += readQual.charAt(i) - asciiOffset;
-			for(int i = 0; i < mateQual.length(); i++)
-				mateNRQual[i] += mateQual.charAt(i) - asciiOffset;
+			}
+			ensureCapacity(2 * readLen);
+			in.readFully(buf, 0, 2 * readLen);
+			if(isPaired) {
+				mateLen = in.readInt();
+				ensureCapacity(getMateFrom() + 2 * mateLen);
+				in.readFully(buf, getMateFrom(), 2 * mateLen);
+			}
 			return true;
 		}
-		
-		/**
-		 * Get total length of this NRPair
-		 * @return  length of both read and mate seqs
-		 */
-		public int getPairLength() {
-			return readSeq.length() + mateSeq.length();
-		}
 
-		/**
-		 * Compare whether this NRPair equals other object
-		 * @return  true if the two NRPair has identical strings 
-		 */
-		@Override
-		public boolean equals(Object otherObj) {
-			if(!(otherObj != null && otherObj instanceof NRPair))
-				return false;
-			NRPair other = (NRPair) otherObj;
-			return readSeq.equals(other.readSeq) && mateSeq.equals(other.mateSeq); // two NR-tag is differentiated only by the sequence
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(readLen);
+			out.write(buf, 0, 2 * readLen);
+			if(isPaired) {
+				out.writeInt(mateLen);
+				out.write(buf, getMateFrom(), 2 * mateLen);
+			}
 		}
-		
-		
+
 		/**
-		 * Get hashCode for this NRTag
-		 * @return  hashCode from the internal concatenation of read and mate seq
+		 * @return  hash of the seq(s), same as the one used for partitioning
 		 */
-		@Override
-		public int hashCode() {
-			return (readSeq + ":" + mateSeq).hashCode();
+		int hash() {
+			int h = hashSeq(buf, 0, readLen);
+			return !isPaired ? h : h * 31 + hashSeq(buf, getMateFrom(), mateLen);
 		}
-		
-		/**
-		 * Get the ascii quality string for the forward read
-		 * @return  forward read quality string of this NRPair
-		 */
-		public String getNRReadQual() {
-			StringBuilder str = new StringBuilder();
-			for(int q : readNRQual) {
-				int b = q + ASCII_OFFSET;
-				if(b > Byte.MAX_VALUE)
-					b = Byte.MAX_VALUE;
-				str.append((char) b);
-			}
-			return str.toString();
+
+		int getMateFrom() {
+			return 2 * readLen;
 		}
-		
-		/**
-		 * Get the ascii quality string for the reverse mate
-		 * @return  reverse mate quality string of this NRPair
-		 */
-		public String getNRMateQual() {
-			StringBuilder str = new StringBuilder();
-			for(int q : mateNRQual) {
-				int b = q + ASCII_OFFSET;
-				if(b > Byte.MAX_VALUE)
-					b = Byte.MAX_VALUE;
-				str.append((char) b);
-			}
-			return str.toString();
+
+		private void ensureCapacity(int capacity) {
+			if(capacity > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
 		}
-		
-		private String readSeq;
-		private String mateSeq;
-		private int clone;
-		private int[] readNRQual; // collapsed log-error rate
-		private int[] mateNRQual; // collapsed log-error rate
+
+		byte[] buf = new byte[256];
+		int readLen;
+		int mateLen;
 	}
 
 	private static String readInFile;
@@ -420,9 +598,23 @@ public class Fastq2NR {
 	private static boolean isPaired;
 	private static int readLen;
 	private static int asciiOffset = 33;
+	private static int maxMem; // max memory in MB for external-memory collapsing
+	private static String tmpDir = System.getProperty("java.io.tmpdir");
+	private static int nThreads = 1;
+	private static int nr; // NR ID counters
+	private static int tr;
+	private static int un;
+	
+	private static final int SPILL_BUFFER_SIZE = 1 << 16;
+	private static final int MAX_PARTITIONS = 256; // max first-level partitions, as each one holds an open spill file
+	private static final int REPARTITION_FANOUT = 16;
+	private static final int SPILL_BUFFERS_PER_THREAD = REPARTITION_FANOUT + 2; // max spill buffers of a collapsing thread, when re-partitioning
+	private static final int MAX_PARTITION_LEVEL = 4; // max re-partition depth, in case of poorly distributed hashes
+	private static final int GZIP_RATIO = 4; // estimated compress ratio of gzipped FASTQ
+	private static final int MEM_PER_INPUT_BYTE = 2; // estimated worst-case collapsing memory per input byte
 	
-	private static BufferedReader readIn;
-	private static BufferedReader mateIn;
+	private static FastqReader readIn;
+	private static FastqReader mateIn;
 	private static BufferedWriter readOut;
 	private static BufferedWriter mateOut;
 }
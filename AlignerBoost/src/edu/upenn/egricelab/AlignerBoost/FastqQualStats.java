@@ -0,0 +1,378 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to accumulate per-position quality statistics of FASTQ reads
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import java.io.*;
+import java.util.Arrays;
+
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader.FastqRecord;
+
+/** A mergeable accumulator of the per-position histogram of ascii qualities,
+ * so reads of different files (or lanes) can be accumulated independently and then merged.
+ * The count, min, max, mean, sd and quantiles of each position are all derived from the histogram,
+ * which can also be dumped to and loaded from a binary stream.
+ * When the reads are a cluster sample, i.e. of randomly chosen file blocks, each cluster can be ended by {@link #endUnit()},
+ * so the standard error of the mean quality is estimated from the between-cluster variation,
+ * otherwise the reads are treated as a simple random sample.
+ * The reads of ended clusters and the other reads are summed apart, so when both are merged, i.e. of plain and block-sampled files,
+ * the standard error is combined from the two parts as strata.
+ * The number of positions grows with the longest read added.
+ * A FastqQualStats is not thread-safe.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+class FastqQualStats {
+	/**
+	 * Construct an empty FastqQualStats
+	 */
+	public FastqQualStats() {
+		hist = new long[0][];
+		unitQualS = new long[0];
+		unitQualSqS = new long[0];
+		unitN = new long[0];
+		clusterQualS = new long[0];
+		clusterQualSqS = new long[0];
+		clusterN = new long[0];
+		qualSS = new double[0];
+		qualNS = new double[0];
+		nSS = new double[0];
+	}
+
+	/**
+	 * Add the quality of a read
+	 * @param record  FASTQ record of the read
+	 */
+	public void add(FastqRecord record) {
+		int len = record.getQualLength();
+		if(len > hist.length)
+			grow(len);
+		for(int i = 0; i < len; i++) {
+			int Q = record.getQualAt(i);
+			if(Q > MAX_QUAL)
+				Q = MAX_QUAL;
+			hist[i][Q]++;
+			unitQualS[i] += Q;
+			unitQualSqS[i] += Q * Q;
+			unitN[i]++;
+		}
+	}
+
+	/**
+	 * End the current sampling unit (cluster) of reads, and accumulate its moments for the standard errors
+	 */
+	public void endUnit() {
+		for(int i = 0; i < hist.length; i++) {
+			qualSS[i] += (double) unitQualS[i] * unitQualS[i];
+			qualNS[i] += (double) unitQualS[i] * unitN[i];
+			nSS[i] += (double) unitN[i] * unitN[i];
+			clusterQualS[i] += unitQualS[i];
+			clusterQualSqS[i] += unitQualSqS[i];
+			clusterN[i] += unitN[i];
+			unitQualS[i] = unitQualSqS[i] = unitN[i] = 0;
+		}
+		nUnits++;
+	}
+
+	/**
+	 * Merge the statistics of another FastqQualStats into this one, the reads not in its ended clusters are merged as a simple random sample
+	 * @param other  another FastqQualStats
+	 */
+	public void merge(FastqQualStats other) {
+		if(other.hist.length > hist.length)
+			grow(other.hist.length);
+		for(int i = 0; i < other.hist.length; i++)
+			for(int q = 0; q <= MAX_QUAL; q++)
+				hist[i][q] += other.hist[i][q];
+		for(int i = 0; i < other.hist.length; i++) {
+			qualSS[i] += other.qualSS[i];
+			qualNS[i] += other.qualNS[i];
+			nSS[i] += other.nSS[i];
+			clusterQualS[i] += other.clusterQualS[i];
+			clusterQualSqS[i] += other.clusterQualSqS[i];
+			clusterN[i] += other.clusterN[i];
+		}
+		nUnits += other.nUnits;
+	}
+
+	/**
+	 * Write the histogram, the sampling unit moments and the sums of the clustered reads to a binary output
+	 * @param out  binary output
+	 * @throws IOException  if any IO error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(hist.length);
+		out.writeInt(MAX_QUAL + 1);
+		for(long[] counts : hist)
+			for(long count : counts)
+				out.writeLong(count);
+		out.writeLong(nUnits);
+		for(int i = 0; i < hist.length; i++) {
+			out.writeDouble(qualSS[i]);
+			out.writeDouble(qualNS[i]);
+			out.writeDouble(nSS[i]);
+		}
+		for(int i = 0; i < hist.length; i++) {
+			out.writeLong(clusterQualS[i]);
+			out.writeLong(clusterQualSqS[i]);
+			out.writeLong(clusterN[i]);
+		}
+	}
+
+	/**
+	 * Read a histogram written by {@link #write(DataOutputStream)}
+	 * @param in  binary input
+	 * @param hasUnits  whether the sampling unit moments are written after the histogram
+	 * @param hasClusterSums  whether the sums of the clustered reads are written after the moments,
+	 * otherwise all reads are taken as clustered if there are any sampling units
+	 * @return  a new FastqQualStats with the histogram read
+	 * @throws IOException  if any IO error occurs or the histogram is malformed
+	 */
+	public static FastqQualStats read(DataInputStream in, boolean hasUnits, boolean hasClusterSums) throws IOException {
+		int len = in.readInt();
+		if(len < 0 || in.readInt() != MAX_QUAL + 1)
+			throw new IOException("malformed quality histogram");
+		FastqQualStats stats = new FastqQualStats();
+		stats.grow(len);
+		for(long[] counts : stats.hist)
+			for(int q = 0; q <= MAX_QUAL; q++)
+				counts[q] = in.readLong();
+		if(hasUnits) {
+			stats.nUnits = in.readLong();
+			for(int i = 0; i < len; i++) {
+				stats.qualSS[i] = in.readDouble();
+				stats.qualNS[i] = in.readDouble();
+				stats.nSS[i] = in.readDouble();
+			}
+		}
+		for(int i = 0; i < len; i++) {
+			if(hasClusterSums) {
+				stats.clusterQualS[i] = in.readLong();
+				stats.clusterQualSqS[i] = in.readLong();
+				stats.clusterN[i] = in.readLong();
+			}
+			else if(stats.nUnits > 0) {
+				stats.clusterQualS[i] = stats.getQualSum(i);
+				stats.clusterQualSqS[i] = stats.getQualSqSum(i);
+				stats.clusterN[i] = stats.getN(i);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @return  length of the longest read added
+	 */
+	public int getLength() {
+		return hist.length;
+	}
+
+	/**
+	 * @param i  0-based position
+	 * @return  number of reads covering this position
+	 */
+	public long getN(int i) {
+		long n = 0;
+		if(i < hist.length)
+			for(long count : hist[i])
+				n += count;
+		return n;
+	}
+
+	/**
+	 * @param i  0-based position
+	 * @return  min ascii quality at this position, or -1 if not covered
+	 */
+	public int getMin(int i) {
+		if(i < hist.length)
+			for(int q = 0; q <= MAX_QUAL; q++)
+				if(hist[i][q] > 0)
+					return q;
+		return -1;
+	}
+
+	/**
+	 * @param i  0-based position
+	 * @return  max ascii quality at this position, or -1 if not covered
+	 */
+	public int getMax(int i) {
+		if(i < hist.length)
+			for(int q = MAX_QUAL; q >= 0; q--)
+				if(hist[i][q] > 0)
+					return q;
+		return -1;
+	}
+
+	/**
+	 * @return  min ascii quality of all positions, or -1 if empty
+	 */
+	public int getMin() {
+		int min = -1;
+		for(int i = 0; i < hist.length; i++) {
+			int q = getMin(i);
+			if(q != -1 && (min == -1 || q < min))
+				min = q;
+		}
+		return min;
+	}
+
+	/**
+	 * @param i  0-based position
+	 * @return  mean ascii quality at this position
+	 */
+	public double getMean(int i) {
+		return (double) getQualSum(i) / getN(i);
+	}
+
+	/**
+	 * Get the sample standard deviation as SD(X) = sqrt(N / (N-1) * (E(X^2) - E(X)^2))
+	 * @param i  0-based position
+	 * @return  sample standard deviation of the quality at this position
+	 */
+	public double getSD(int i) {
+		return calcSD(getQualSum(i), getQualSqSum(i), getN(i));
+	}
+
+	/**
+	 * Get the standard error of the mean quality, as the ratio estimator of a cluster sample
+	 * SE = sqrt(sum((S_k - mean * N_k)^2) / (K-1) / K) / mean(N_k) if there are at least 2 sampling units,
+	 * or as of a simple random sample SE = SD / sqrt(N) otherwise.
+	 * If only some reads are clustered, the two parts are combined as strata SE = sqrt(sum((N_h / N)^2 * SE_h^2))
+	 * @param i  0-based position
+	 * @return  standard error of the mean quality at this position
+	 */
+	public double getMeanSE(int i) {
+		long n = getN(i);
+		if(nUnits < 2)
+			return getSD(i) / Math.sqrt(n);
+		long nC = clusterN[i];
+		long nS = n - nC; // reads not in any ended cluster
+		if(nS == 0)
+			return getClusterMeanSE(i, getMean(i));
+		if(nC == 0)
+			return getSD(i) / Math.sqrt(n);
+		// combine the clustered and the simple random sampled parts
+		double seC = getClusterMeanSE(i, (double) clusterQualS[i] / nC);
+		double seS = calcSD(getQualSum(i) - clusterQualS[i], getQualSqSum(i) - clusterQualSqS[i], nS) / Math.sqrt(nS);
+		double wC = (double) nC / n;
+		double wS = (double) nS / n;
+		return Math.sqrt(wC * wC * seC * seC + wS * wS * seS * seS);
+	}
+
+	/**
+	 * @return  number of ended sampling units
+	 */
+	public long getNumUnits() {
+		return nUnits;
+	}
+
+	/**
+	 * Get the quantile by the nearest-rank method, the smallest quality that at least p of all qualities are no greater than
+	 * @param i  0-based position
+	 * @param p  probability in [0, 1]
+	 * @return  ascii quality of the p-quantile at this position, or -1 if not covered
+	 */
+	public int getQuantile(int i, double p) {
+		long n = getN(i);
+		if(n == 0)
+			return -1;
+		long rank = Math.max((long) Math.ceil(p * n), 1);
+		long cum = 0;
+		for(int q = 0; q <= MAX_QUAL; q++) {
+			cum += hist[i][q];
+			if(cum >= rank)
+				return q;
+		}
+		return MAX_QUAL;
+	}
+
+	/**
+	 * Get the standard error of the mean quality of the clustered reads only
+	 * @param i  0-based position
+	 * @param mean  mean quality of the clustered reads
+	 */
+	private double getClusterMeanSE(int i, double mean) {
+		double var = (qualSS[i] - 2 * mean * qualNS[i] + mean * mean * nSS[i]) / (nUnits - 1);
+		double meanN = (double) clusterN[i] / nUnits;
+		return Math.sqrt(Math.max(var, 0) / nUnits) / meanN;
+	}
+
+	/**
+	 * Get the sample standard deviation from the sums
+	 */
+	private static double calcSD(long qualS, long qualSqS, long n) {
+		double mean = (double) qualS / n;
+		return Math.sqrt(((double) qualSqS / n - mean * mean) * n / (n - 1));
+	}
+
+	/**
+	 * @return  sum of the qualities at a position
+	 */
+	private long getQualSum(int i) {
+		long qualS = 0;
+		if(i < hist.length)
+			for(int q = 0; q <= MAX_QUAL; q++)
+				qualS += q * hist[i][q];
+		return qualS;
+	}
+
+	/**
+	 * @return  sum of the squared qualities at a position
+	 */
+	private long getQualSqSum(int i) {
+		long qualSqS = 0;
+		if(i < hist.length)
+			for(int q = 0; q <= MAX_QUAL; q++)
+				qualSqS += q * q * hist[i][q];
+		return qualSqS;
+	}
+
+	private void grow(int capacity) {
+		int from = hist.length;
+		hist = Arrays.copyOf(hist, capacity);
+		for(int i = from; i < capacity; i++)
+			hist[i] = new long[MAX_QUAL + 1];
+		unitQualS = Arrays.copyOf(unitQualS, capacity);
+		unitQualSqS = Arrays.copyOf(unitQualSqS, capacity);
+		unitN = Arrays.copyOf(unitN, capacity);
+		clusterQualS = Arrays.copyOf(clusterQualS, capacity);
+		clusterQualSqS = Arrays.copyOf(clusterQualSqS, capacity);
+		clusterN = Arrays.copyOf(clusterN, capacity);
+		qualSS = Arrays.copyOf(qualSS, capacity);
+		qualNS = Arrays.copyOf(qualNS, capacity);
+		nSS = Arrays.copyOf(nSS, capacity);
+	}
+
+	private static final int MAX_QUAL = 127; // max ascii quality, larger ones are counted as it
+
+	private long[][] hist; // count of each ascii quality at each position
+	private long[] unitQualS; // quality sum of the current sampling unit at each position
+	private long[] unitQualSqS; // squared quality sum of the current sampling unit at each position
+	private long[] unitN; // read count of the current sampling unit at each position
+	private long[] clusterQualS; // quality sum of the reads in ended sampling units at each position
+	private long[] clusterQualSqS; // squared quality sum of the reads in ended sampling units at each position
+	private long[] clusterN; // read count of the reads in ended sampling units at each position
+	private double[] qualSS; // sum of squared unit quality sums
+	private double[] qualNS; // sum of unit quality sum times unit read count
+	private double[] nSS; // sum of squared unit read counts
+	private long nUnits; // number of ended sampling units
+}
@@ -23,10 +23,15 @@ import static edu.upenn.egricelab.AlignerBoost.EnvConstants.progFile;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.*;
+import java.util.concurrent.*;
+
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader;
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader.FastqBatch;
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader.FastqRecord;
 
 /** A util class to get base-to-base QC report of Fastq read files
- * The variance will be calculated as one-pass algorithm VAR(X) = E(X^2) - E(X)^2
+ * All statistics, including the quantiles, are derived from per-position quality histograms collected in one pass
+ * The statistics can be estimated from a random sample of the reads, with the standard errors of the mean qualities
  * @Author Qi Zheng
  * @version 1.1
  * @since 1.1
@@ -45,138 +50,42 @@ public class FastqReadQC {
 
 		// Read in all read quality
 		System.err.println("Reading read quaility ...");
-		BufferedReader readIn = null;
-		BufferedReader mateIn = null;
 		BufferedWriter out = null;
-		long[] N1 = null;
-		long[] N2 = null;
-		long[] qualS_1 = null;
-		long[] qualS_2 = null;
-		long[] qualSS_1 = null;
-		long[] qualSS_2 = null;
-		int[] qualMin_1 = null;
-		int[] qualMin_2 = null;
-		int[] qualMax_1 = null;
-		int[] qualMax_2 = null;
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
 		try {
 			out = new BufferedWriter(new FileWriter(outFile));
-			// processing readFiles
-			boolean isFirst = true;
-			for(String readFile: readFiles) {
-				System.err.println("Processing readFile: " + readFile);
-				readIn = !readFile.endsWith(".gz") ? new BufferedReader(new FileReader(readFile)) :
-					new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(readFile))));
-				String line = null;
-				if(readLen != 0) { // readLen specified
-					N1 = new long[readLen];
-					qualS_1 = new long[readLen];
-					qualSS_1 = new long[readLen];
-					qualMin_1 = new int[readLen];
-					qualMax_1 = new int[readLen];
-					// Init the min and max -1
-					for(int i = 0; i < readLen; i++) {
-						qualMin_1[i] = -1;
-						qualMax_1[i] = -1;
-					}
-					N2 = new long[mateLen];
-					qualS_2 = new long[mateLen];
-					qualSS_2 = new long[mateLen];
-					qualMin_2 = new int[mateLen];
-					qualMax_2 = new int[mateLen];
-					// Init the min and max with -1
-					for(int i = 0; i < mateLen; i++) {
-						qualMin_2[i] = -1;
-						qualMax_2[i] = -1;
-					}
-				}
-				while((line = readIn.readLine()) != null) {
-					if(line.startsWith("+")) { // will always meet the + first, even a qual line starts with a + addidentally
-						String qual = readIn.readLine(); // Get next qual line
-						if(isFirst) {
-							isFirst = false;
-							if(readLen == 0) { // readLen not specified
-								readLen = qual.length();
-								N1 = new long[readLen];
-								qualS_1 = new long[readLen];
-								qualSS_1 = new long[readLen];
-								qualMin_1 = new int[readLen];
-								qualMax_1 = new int[readLen];
-								// Init the min and max -1
-								for(int i = 0; i < readLen; i++) {
-									qualMin_1[i] = -1;
-									qualMax_1[i] = -1;
-								}
-							}
-						}
-						for(int i = 0; i < qual.length(); i++) {
-							N1[i]++;
-							int Q = qual.charAt(i);
-							qualS_1[i] += Q;
-							qualSS_1[i] += Q * Q;
-							if(qualMin_1[i] == -1 || Q < qualMin_1[i]) // update min
-								qualMin_1[i] = Q;
-							if(qualMax_1[i] == -1 || Q > qualMax_1[i]) // update max
-								qualMax_1[i] = Q;
-						}
-					}
-				} // end of each line
-				readIn.close();
-			} // end of each readFile
+			// processing all readFiles and mateFiles concurrently, each file to its own accumulator
+			List<Future<FastqQualStats>> readResults = new ArrayList<Future<FastqQualStats>>();
+			List<Future<FastqQualStats>> mateResults = new ArrayList<Future<FastqQualStats>>();
+			for(String readFile : readFiles)
+				readResults.add(workers.submit(newQCTask(readFile, "readFile")));
+			for(String mateFile : mateFiles)
+				mateResults.add(workers.submit(newQCTask(mateFile, "mateFile")));
+			workers.shutdown();
+			FastqQualStats readStats = mergeResults(readResults);
+			FastqQualStats mateStats = mergeResults(mateResults);
+			// merge dumped histograms, i.e. of other lanes
+			for(String histFile : histInFiles) {
+				System.err.println("Merging histogram: " + histFile);
+				readHist(histFile, readStats, mateStats);
+			}
+			if(histOutFile != null)
+				writeHist(histOutFile, readStats, mateStats);
+			boolean hasMate = !mateFiles.isEmpty() || mateStats.getLength() > 0;
 
-			// processing mateFiles
-			isFirst = true;
-			for(String mateFile : mateFiles) {
-				System.err.println("Processing mateFile: " + mateFile);
-				mateIn = !mateFile.endsWith(".gz") ? new BufferedReader(new FileReader(mateFile)) :
-					new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(mateFile))));
-				String line = null;
-				while((line = mateIn.readLine()) != null) {
-					if(line.startsWith("+")) {
-						String qual = mateIn.readLine(); // Get next qual line
-						if(isFirst) {
-							isFirst = false;
-							if(mateLen == 0) // first qual line
-								mateLen = qual.length();
-							if(mateLen != readLen) {
-								mateIn.close();
-								out.close();
-								throw new IllegalArgumentException("Mate length '" + mateLen + "' is different to the read length '" + readLen + "' in mateFile: '" + mateFile + "'");
-							}
-							if(readLen == 0) {
-								N2 = new long[mateLen];
-								qualS_2 = new long[mateLen];
-								qualSS_2 = new long[mateLen];
-								qualMin_2 = new int[mateLen];
-								qualMax_2 = new int[mateLen];
-								// Init the min and max with -1
-								for(int i = 0; i < mateLen; i++) {
-									qualMin_2[i] = -1;
-									qualMax_2[i] = -1;
-								}
-							}
-						}
-						for(int i = 0; i < qual.length(); i++) {
-							N2[i]++;
-							int Q = qual.charAt(i);
-							qualS_2[i] += Q;
-							qualSS_2[i] += Q * Q;
-							if(qualMin_2[i] == -1 || Q < qualMin_2[i]) // update min
-								qualMin_2[i] = Q;
-							if(qualMax_2[i] == -1 || Q > qualMax_2[i]) // update max
-								qualMax_2[i] = Q;
-						}
-					}
-				} // end of each mate line
-				mateIn.close();
-			} // end of each mateFile
+			if(readLen == 0) // readLen not specified
+				readLen = readStats.getLength();
+			if(hasMate) {
+				if(mateLen == 0)
+					mateLen = mateStats.getLength();
+				if(mateLen != readLen)
+					throw new IllegalArgumentException("Mate length '" + mateLen + "' is different to the read length '" + readLen + "'");
+			}
 
 			// Auto detect qBase
 			if(doAutoDetect) {
 				System.err.print("Auto detecting qBase ... ");
-				int minQ = Integer.MAX_VALUE;
-				for(int q : qualMin_1)
-					if(q != -1 && q < minQ)
-						minQ = q; // Update minQ
+				int minQ = readStats.getMin();
 				if(minQ > 64) // Must be in Illumina qBase
 					qBase = 64;
 				else
@@ -187,36 +96,24 @@ public class FastqReadQC {
 			// Output
 			System.err.println("Output ...");
 			// Output the header line
-			out.write("pos\tN\tmin\tmax\tmean\tsd" + newLine);
-			// Output each base pos, note that qBase will be subtracted from mean, min and max, but not sd because sd(X - c) = sd(X)
-			for(int i = 0; i < readLen; i++) {
-				int pos = i + 1;
-				double mean = (double) qualS_1[i] / N1[i];
-				double sd = Math.sqrt(((double) qualSS_1[i] / N1[i] - mean * mean) * N1[i] / (N1[i] - 1));  // use sample var as VAR(X) = N / (N-1) * (E(X^2) - E(X)^2)
-				int min1 = qualMin_1[i] != -1 ? qualMin_1[i] - qBase : -1;
-				int max1 = qualMax_1[i] != -1 ? qualMax_1[i] - qBase : -1;
-				out.write(pos + "\t" + N1[i] + "\t" + min1 + "\t" + max1 + "\t" + (mean - qBase) + "\t" + sd + newLine);
-			}
+			out.write("pos\tN\tmin\tmax\tmean\tsd\tq10\tq25\tmedian\tq75\tq90\tmean_se" + newLine);
+			// Output each base pos, note that qBase will be subtracted from mean, min, max and quantiles, but not sd because sd(X - c) = sd(X)
+			for(int i = 0; i < readLen; i++)
+				writeQC(out, i + 1, readStats, i);
 			// Output each mate pos, if exists
-			for(int i = mateLen - 1; !mateFiles.isEmpty() && i >= 0; i--) {
-				int pos = - i - 1;
-				double mean = (double) qualS_2[i] / N2[i];
-				double sd = Math.sqrt(((double) qualSS_2[i] / N2[i] - mean * mean) * N2[i] / (N2[i] - 1));
-				int min2 = qualMin_2[i] != -1 ? qualMin_2[i] - qBase : -1;
-				int max2 = qualMax_2[i] != -1 ? qualMax_2[i] - qBase : -1;
-				out.write(pos + "\t" + N2[i] + "\t" + min2 + "\t" + max2 + "\t" + (mean - qBase) + "\t" + sd + newLine);
-			}
+			for(int i = mateLen - 1; hasMate && i >= 0; i--)
+				writeQC(out, - i - 1, mateStats, i);
 			System.err.println("Done!");
 		}
 		catch(IOException e) {
 			System.err.println(e.getMessage());
 		}
+		catch(IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+		}
 		finally {
+			workers.shutdownNow();
 			try {
-				if(readIn != null)
-					readIn.close();
-				if(mateIn != null)
-					mateIn.close();
 				if(out != null)
 					out.close();
 			}
@@ -226,9 +123,127 @@ public class FastqReadQC {
 		}
 	}
 
+	/**
+	 * Create a task accumulating the quality statistics of a FASTQ file
+	 * @param inFile  FASTQ file
+	 * @param type  file type for logging
+	 * @return  a task returning the statistics of this file
+	 */
+	private static Callable<FastqQualStats> newQCTask(final String inFile, final String type) {
+		return new Callable<FastqQualStats>() {
+			@Override
+			public FastqQualStats call() throws IOException {
+				System.err.println("Processing " + type + ": " + inFile);
+				FastqQualStats stats = new FastqQualStats();
+				FastqRecord record = new FastqRecord();
+				FastqReader in = new FastqReader(inFile, FastqReader.DEFAULT_THREADS, sampleFraction, sampleReads);
+				try {
+					if(!in.isBlockSampled()) {
+						while(in.next(record))
+							stats.add(record);
+					}
+					else { // each batch is a sampled block, as a sampling unit
+						FastqBatch batch;
+						while((batch = in.nextBatch()) != null) {
+							for(int i = 0; i < batch.size(); i++) {
+								batch.get(i, record);
+								stats.add(record);
+							}
+							stats.endUnit();
+						}
+					}
+				}
+				finally {
+					in.close();
+				}
+				if(sampleFraction < 1 || sampleReads > 0)
+					System.err.println("Sampled " + String.format("%.4g", in.getSampledFraction() * 100) + "% of " + type + ": " + inFile);
+				return stats;
+			}
+		};
+	}
+
+	/**
+	 * Merge the statistics of finished tasks in submitted order
+	 * @param results  results of submitted tasks
+	 * @return  merged statistics
+	 * @throws IOException  if any task failed
+	 */
+	private static FastqQualStats mergeResults(List<Future<FastqQualStats>> results) throws IOException {
+		FastqQualStats merged = new FastqQualStats();
+		try {
+			for(Future<FastqQualStats> result : results)
+				merged.merge(result.get());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while reading FASTQ files", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("failed to read FASTQ file: " + e.getCause().getMessage(), e.getCause());
+		}
+		return merged;
+	}
+
+	/**
+	 * Write the QC of a position, with qBase subtracted from mean, min, max and quantiles
+	 */
+	private static void writeQC(BufferedWriter out, int pos, FastqQualStats stats, int i) throws IOException {
+		int min = stats.getMin(i) != -1 ? stats.getMin(i) - qBase : -1;
+		int max = stats.getMax(i) != -1 ? stats.getMax(i) - qBase : -1;
+		out.write(pos + "\t" + stats.getN(i) + "\t" + min + "\t" + max + "\t" + (stats.getMean(i) - qBase) + "\t" + stats.getSD(i));
+		for(double p : QUANTILES) {
+			int q = stats.getQuantile(i, p);
+			out.write("\t" + (q != -1 ? q - qBase : -1));
+		}
+		out.write("\t" + stats.getMeanSE(i));
+		out.write(newLine);
+	}
+
+	/**
+	 * Write the read and mate histograms to a binary dump file
+	 */
+	private static void writeHist(String histFile, FastqQualStats readStats, FastqQualStats mateStats) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(histFile)));
+		try {
+			out.writeInt(HIST_MAGIC);
+			out.writeInt(HIST_VERSION);
+			readStats.write(out);
+			mateStats.write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the read and mate histograms from a binary dump file, and merge them into given statistics
+	 */
+	private static void readHist(String histFile, FastqQualStats readStats, FastqQualStats mateStats) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(histFile)));
+		try {
+			int version;
+			if(in.readInt() != HIST_MAGIC || (version = in.readInt()) < 1 || version > HIST_VERSION)
+				throw new IOException("'" + histFile + "' is not a valid quality histogram file");
+			boolean hasUnits = version >= 2; // sampling unit moments since version 2
+			boolean hasClusterSums = version >= 3; // sums of the clustered reads since version 3
+			readStats.merge(FastqQualStats.read(in, hasUnits, hasClusterSums));
+			mateStats.merge(FastqQualStats.read(in, hasUnits, hasClusterSums));
+		}
+		catch(EOFException e) {
+			throw new IOException("truncated quality histogram file '" + histFile + "'", e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
 	private static void parseOptions(String[] args) throws IllegalArgumentException {
 		readFiles = new ArrayList<String>();
 		mateFiles = new ArrayList<String>();
+		histInFiles = new ArrayList<String>();
 		for(int i = 0; i < args.length; i++) {
 			if(args[i].equals("-in"))
 				while(i + 1 < args.length && !args[i+1].startsWith("-"))
@@ -258,36 +273,70 @@ public class FastqReadQC {
 			}
 			else if(args[i].equals("-mateLen"))
 				mateLen = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--hist-in")) {
+				while(i + 1 < args.length && !args[i+1].startsWith("-"))
+					histInFiles.add(args[++i]);
+			}
+			else if(args[i].equals("--hist-out"))
+				histOutFile = args[++i];
+			else if(args[i].equals("--sample-fraction"))
+				sampleFraction = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--sample-reads"))
+				sampleReads = Long.parseLong(args[++i]);
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else
 				throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
 		}
 		// Check options
-		if(readFiles.isEmpty())
-			throw new IllegalArgumentException("-in must be specified");
+		if(readFiles.isEmpty() && histInFiles.isEmpty())
+			throw new IllegalArgumentException("-in or --hist-in must be specified");
 		if(outFile == null)
 			throw new IllegalArgumentException("-out must be specified");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive integer");
+		if(!(sampleFraction > 0 && sampleFraction <= 1))
+			throw new IllegalArgumentException("--sample-fraction must be in (0, 1]");
+		if(sampleReads < 0)
+			throw new IllegalArgumentException("--sample-reads must be non-negative");
+		if(sampleFraction < 1 && sampleReads > 0)
+			throw new IllegalArgumentException("--sample-fraction and --sample-reads cannot be both specified");
 	}
 
 	private static void printUsage() {
 		System.err.println(
 				"Usage:    java -jar " + progFile + " run fastqQC " +
 				"<-in FASTQ-INFILE [FASTQ-INFILE2 ...]> <-out OUTFILE> [options]" + newLine +
-				"Options:    -in  FILE        FASTQ input file(s) for single/forward reads, required (support .gz compressed files)" + newLine +
+				"Options:    -in  FILE        FASTQ input file(s) for single/forward reads, required unless --hist-in (support .gz compressed files)" + newLine +
 				"            -out  FILE       output file, required" + newLine +
 				"            -mate  FILE      FASTQ input file(s) for reverse reads (support .gz compressed files)" + newLine +
 				"            -Sanger  FLAG    use Sanger ascii offset, same as -qBase 33); auto-detect by default" + newLine +
 				"            -Illumina  FLAG  use Illumina 1.5x ascii offset, same as -qBase 64; auto-detect by default" + newLine +
 				"            -qBase  INT      ascii offset, override -Sanger or -Illumina [auto-detect]" + newLine +
-				"            -readLen  INT    read length, REQUIRED if reads are of variable length (i.e. from Illumina MiSeq or PacBio)" + newLine +
-				"            -mateLen  INT    mate length, using mateLen by default"
+				"            -readLen  INT    read length to report, using the longest read by default" + newLine +
+				"            -mateLen  INT    mate length, using mateLen by default" + newLine +
+				"            --hist-in  FILE  binary quality histogram file(s) written by --hist-out to be merged, i.e. of other lanes" + newLine +
+				"            --hist-out  FILE binary quality histogram file to write, can be merged by --hist-in later" + newLine +
+				"            --sample-fraction  DOUBLE  estimate the QC from a random fraction of each input file, by sampling random blocks of plain or BGZF files, or random reads of other gzip files [1]" + newLine +
+				"            --sample-reads  INT  estimate the QC from this many random reads of each input file, instead of --sample-fraction [0]" + newLine +
+				"            -p/--threads  INT  number of threads for reading FASTQ files concurrently, reads and mates are read at the same time [" + nThreads + "]"
 				);
 	}
 
 	private static String outFile;
 	private static List<String> readFiles;
 	private static List<String> mateFiles;
+	private static List<String> histInFiles;
+	private static String histOutFile;
 	private static boolean doAutoDetect = true;
 	private static int qBase = 33; // default w/ Sanger qBase
 	private static int readLen;
 	private static int mateLen;
+	private static int nThreads = 1;
+	private static double sampleFraction = 1;
+	private static long sampleReads;
+
+	private static final double[] QUANTILES = { 0.1, 0.25, 0.5, 0.75, 0.9 };
+	private static final int HIST_MAGIC = 0x48514241; // "ABQH" in little-endian
+	private static final int HIST_VERSION = 3;
 }
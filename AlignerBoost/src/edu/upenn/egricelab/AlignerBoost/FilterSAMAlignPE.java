@@ -25,12 +25,15 @@ import org.apache.commons.math3.distribution.*;
 
 //import org.apache.commons.math3.linear.IllConditionedOperatorException;
 
+import edu.upenn.egricelab.AlignerBoost.utils.NRTagUtils;
 import edu.upenn.egricelab.AlignerBoost.utils.ProcessStatusTask;
+import edu.upenn.egricelab.AlignerBoost.utils.SamTotalCounter;
 import edu.upenn.egricelab.AlignerBoost.utils.Stats;
 import edu.upenn.egricelab.AlignerBoost.utils.StringUtils;
 import htsjdk.samtools.*;
 import htsjdk.samtools.SAMFileHeader.GroupOrder;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.util.DiskBackedQueue;
 import htsjdk.variant.vcf.VCFFileReader;
 
 /** Filter SAM/BAM single-end (SE) alignments as well as do best-stratum selection to remove too divergent hits
@@ -38,6 +41,8 @@ import htsjdk.variant.vcf.VCFFileReader;
  * Tag  Type  Description
  * NH   i     Number of reported alignments
  * XN   i     Number of total alignments satisfying the user-specified criteria except for the mapQ limitation
+ * ZC   i     Clone of the NR-tag read, if --nr is set
+ * The total number of written alignments is also written into the OUTFILE.stats file
  * @author Qi Zheng
  * @version 1.2
  * @since 1.1
@@ -86,9 +91,41 @@ public class FilterSAMAlignPE {
 		
 		// Read in known SNP file, if specified
 		if(knownSnpFile != null) {
+			try {
+				if(KnownVariantTable.isIndexFile(new File(knownSnpFile))) { // a pre-built binary index
+					if(verbose > 0)
+						System.err.println("Checking known SNPs from user specified binary index file");
+					knownVars = KnownVariantTable.loadIndex(new File(knownSnpFile));
+					if(!knownVars.getAFTag().equals(SAMAlignFixer.getAFTag()))
+						System.err.println("Warning: known SNP index was built with AF-tag " + knownVars.getAFTag() +
+								", ignoring --AF-tag " + SAMAlignFixer.getAFTag());
+					if(verbose > 0)
+						System.err.printf("%d known SNPs mapped from %.1f MB index file%n",
+								knownVars.getNumVariants(), knownVars.getMappedSize() / 1048576.0);
+				}
+			}
+			catch(IOException e) {
+				System.err.println("Error: " + e.getMessage());
+				if(verbose > 0)
+					processMonitor.cancel();
+				return;
+			}
+		}
+		if(knownSnpFile != null && knownVars == null) {
 			if(verbose > 0)
 				System.err.println("Checking known SNPs from user specified VCF file");
 			knownVCF = new VCFFileReader(new File(knownSnpFile));
+			if(KNOWN_SNP_MAX_MEM > 0) { // try to cache all known SNPs in memory
+				try {
+					knownVars = KnownVariantTable.load(knownVCF, SAMAlignFixer.getAFTag(), (long) KNOWN_SNP_MAX_MEM << 20);
+					if(verbose > 0)
+						System.err.printf("%d known SNPs cached in memory using %.1f MB%n",
+								knownVars.getNumVariants(), knownVars.getMemoryUsage() / 1048576.0);
+				}
+				catch(IllegalStateException e) {
+					System.err.println("Warning: cannot cache known SNPs: " + e.getMessage() + ", querying the VCF file for each alignment instead");
+				}
+			}
 		}
 		
 		SamReaderFactory readerFac = SamReaderFactory.makeDefault();
@@ -120,16 +157,26 @@ public class FilterSAMAlignPE {
 		String prevID = null;
 		SAMRecord prevRecord = null;
 		List<SAMRecord> alnList = new ArrayList<SAMRecord>();
-		List<SAMRecordPair> alnPEList = null;
 		
 		// Estimate fragment length distribution by scan one-pass through the alignments
 		SAMRecordIterator results = in.iterator();
-		if(!NO_ESTIMATE) {
+		Iterator<SAMRecord> records = results; // alignments to be filtered
+		if(!NO_ESTIMATE && MEAN_FRAG_LEN > 0 && SD_FRAG_LEN > 0) { // use user-specified values
+			String specStr = String.format("Specified fragment size distribution: N(%.1f, %.1f)", MEAN_FRAG_LEN, SD_FRAG_LEN);
+			if(verbose > 0)
+				System.err.println(specStr);
+			header.addComment(specStr);
+			normModel = new NormalDistribution(MEAN_FRAG_LEN, SD_FRAG_LEN);
+		}
+		else if(!NO_ESTIMATE) {
 			if(verbose > 0) {
 				System.err.println("Estimating insert fragment size distribution ...");
 				statusTask.reset();
 				statusTask.setInfo("alignments scanned");
 			}
+			// keep the scanned alignments for filtering later in single-pass mode, spilled to disk if too many
+			DiskBackedQueue<SAMRecord> scanned = !SINGLE_PASS ? null :
+				DiskBackedQueue.newInstance(new BAMRecordCodec(inHeader), MAX_RECORDS_IN_RAM, Collections.singletonList(new File(tmpDir)));
 			long N = 0;
 			double fragL_S = 0; // fragLen sum
 			double fragL_SS = 0; // fragLen^2 sum
@@ -137,6 +184,8 @@ public class FilterSAMAlignPE {
 				SAMRecord record = results.next();
 				if(verbose > 0)
 					statusTask.updateStatus();
+				if(scanned != null)
+					scanned.add(record);
 				if(record.getFirstOfPairFlag() && !record.isSecondaryOrSupplementary()) {
 					double fragLen = Math.abs(record.getInferredInsertSize());
 					if(fragLen != 0 && fragLen >= MIN_FRAG_LEN && fragLen <= MAX_FRAG_LEN) { // only consider certain alignments
@@ -164,36 +213,57 @@ public class FilterSAMAlignPE {
 			else {
 				System.err.println("Unable to estimate the fragment size distribution due to too few observed alignments");
 				System.err.println("You have to specify the '--mean-frag-len' and '--sd-frag-len' on the command line and re-run this step");
-				statusTask.cancel();
-				processMonitor.cancel();
+				if(scanned != null)
+					scanned.clear(); // release the scanned alignments and delete their spill file
+				if(verbose > 0) {
+					statusTask.cancel();
+					processMonitor.cancel();
+				}
 				return;
 			}
 			// Initiate the normal model
 			normModel = new NormalDistribution(MEAN_FRAG_LEN, SD_FRAG_LEN);
-			// reset the iterator, if necessary
-			if(in.type() == SamReader.Type.SAM_TYPE) {
-				try {
-					in.close();
-				}
-				catch(IOException e) {
-					System.err.println(e.getMessage());
+			if(scanned != null) { // filter the scanned alignments first, then the remaining ones
+				if(verbose > 0 && scanned.getNumRecordsOnDisk() > 0)
+					System.err.println(scanned.getNumRecordsOnDisk() + " scanned alignments spilled to disk");
+				records = new PrefixBufferedIterator(scanned, results);
+			}
+			else {
+				// reset the iterator, if necessary
+				if(in.type() == SamReader.Type.SAM_TYPE) {
+					try {
+						in.close();
+					}
+					catch(IOException e) {
+						System.err.println(e.getMessage());
+					}
+					in = readerFac.open(new File(inFile));
 				}
-				in = readerFac.open(new File(inFile));
+				results.close();
+				results = in.iterator();
+				records = results;
 			}
-			results.close();
-			results = in.iterator();
 		} // end of NO_ESTIMATE
 
 		SAMFileWriter out = OUT_IS_SAM ? writerFac.makeSAMWriter(header, false, new File(outFile)) : writerFac.makeBAMWriter(header, false, new File(outFile));
+		// filter each read group with one or more threads, the reported alignments are written in input order
+		SAMRecordGroupPool groupPool = new SAMRecordGroupPool(new SAMRecordGroupPool.GroupFilter() {
+			@Override
+			public List<SAMRecord> filter(List<SAMRecord> group) {
+				return filterRecordGroup(group, nThreads > 1 && knownVars == null ? localVCF.get() : knownVCF);
+			}
+		}, out, nThreads);
 
 		// check each alignment again
 		if(verbose > 0) {
 			System.err.println("Filtering alignments ...");
+			if(nThreads > 1)
+				System.err.println("Using " + nThreads + " worker threads");
 			statusTask.reset();
 			statusTask.setInfo("alignments processed");
 		}
-		while(results.hasNext()) {
-			SAMRecord record = results.next();
+		while(records.hasNext()) {
+			SAMRecord record = records.next();
 			if(verbose > 0)
 				statusTask.updateStatus();
 			String ID = record.getReadName();
@@ -206,76 +276,25 @@ public class FilterSAMAlignPE {
 				continue;
 			}
 			
-			// fix MD:Z string for certain aligners with invalid format (i.e. seqAlto)
-			if(fixMD)
-				SAMAlignFixer.fixMisStr(record);
-			
-			// fix alignment, ignore if failed (unmapped or empty)
-			if(!SAMAlignFixer.fixSAMRecord(record, knownVCF, DO_1DP)) {
+			// ignore alignments cannot be fixed (unmapped or empty), the actual fixing is done with its read group
+			if(!SAMAlignFixer.isFixableSAMRecord(record)) {
 				prevID = ID;
 				prevRecord = record;
 				continue;
 			}
 			if(!record.getReadPairedFlag()) {
 				System.err.println("Error: alignment is not from a paired-end read at\n" + record.getSAMString());
+				groupPool.finish();
 				out.close();
 				statusTask.cancel();
 				processMonitor.cancel();
 				return;
 			}
 
-			if(!ID.equals(prevID) && prevID != null || !results.hasNext()) { // a non-first new ID meet, or end of alignments
-				// create alnPEList from filtered alnList
-				alnPEList = createAlnPEListFromAlnList(alnList);
-				//System.err.printf("%d alignments for %s transformed to %d alnPairs%n", alnList.size(), prevID, alnPEList.size());
-				int totalPair = alnPEList.size();
-				// filter highly unlikely PEhits
-				filterPEHits(alnPEList, MIN_ALIGN_RATE, MIN_IDENTITY);
-				// calculate posterior mapQ for each pair
-				calcPEHitPostP(alnPEList, totalPair, MAX_HIT);
-				// filter hits by mapQ
-				if(MIN_MAPQ > 0)
-					filterPEHits(alnPEList, MIN_MAPQ);
-				
-				// sort the list first with an anonymous class of comparator, with DESCREASING order
-				Collections.sort(alnPEList, Collections.reverseOrder());				
-				// control max-best
-				if(MAX_BEST != 0 && alnPEList.size() > MAX_BEST) { // potential too much best hits
-					int nBestStratum = 0;
-					int bestMapQ = alnPEList.get(0).getPEMapQ(); // best mapQ from first PE
-					for(SAMRecordPair pr : alnPEList)
-						if(pr.getPEMapQ() == bestMapQ)
-							nBestStratum++;
-						else
-							break; // stop searching for sorted list
-					if(nBestStratum > MAX_BEST)
-						alnPEList.clear();
-				}
-				// filter alignments with auxiliary filters
-				if(!MAX_SENSITIVITY)
-					filterPEHits(alnPEList, MAX_SEED_MIS, MAX_SEED_INDEL, MAX_ALL_MIS, MAX_ALL_INDEL);
-
-				// report remaining secondary alignments, up-to MAX_REPORT
-				for(int i = 0; i < alnPEList.size() && (MAX_REPORT == 0 || i < MAX_REPORT); i++) {
-					SAMRecordPair repPair = alnPEList.get(i);
-					if(doUpdateBit)
-						repPair.setNotPrimaryAlignmentFlags(i != 0);
-					int nReport = MAX_REPORT == 0 ? Math.min(alnPEList.size(), MAX_REPORT) : alnPEList.size();
-					int nFiltered = alnPEList.size();
-					if(repPair.fwdRecord != null) {
-						repPair.fwdRecord.setAttribute("NH", nReport);
-						repPair.fwdRecord.setAttribute("XN", nFiltered);
-						out.addAlignment(repPair.fwdRecord);
-					}
-					if(repPair.revRecord != null) {
-						repPair.revRecord.setAttribute("NH", nReport);
-						repPair.revRecord.setAttribute("XN", nFiltered);
-						out.addAlignment(repPair.revRecord);
-					}
-				}
-				// reset list
-				alnList.clear();
-				alnPEList.clear();
+			if(!ID.equals(prevID) && prevID != null || !records.hasNext()) { // a non-first new ID meet, or end of alignments
+				groupPool.submit(alnList);
+				// the submitted list is owned by the pool now
+				alnList = new ArrayList<SAMRecord>();
 			}
 			// update
 			if(!ID.equals(prevID)) {
@@ -284,9 +303,15 @@ public class FilterSAMAlignPE {
 			}
 			alnList.add(record);
 		} // end while
+		// wait for all submitted groups to be written
+		groupPool.finish();
 		try {
 			in.close();
 			out.close();
+			// the total number of written alignments for the downstream tools, i.e. for RPM normalization
+			SamTotalCounter.writeStats(new File(outFile), groupPool.getNumWritten());
+			for(VCFFileReader vcf : localVCFList)
+				vcf.close();
 		}
 		catch(IOException e) {
 			System.err.println(e.getMessage());
@@ -299,6 +324,120 @@ public class FilterSAMAlignPE {
 		}
 	}
 
+	/**
+	 * Fix and filter all alignments of a read-pair, pair them and calculate the posterior mapQ of each pair with the Bayesian method
+	 * @param alnList  all alignments of a read-pair, which will be modified
+	 * @param knownVCF  knownSnp to look at, ignored if null or the known SNPs are cached in memory
+	 * @return  alignments of the reported pairs, in their output order
+	 */
+	private static List<SAMRecord> filterRecordGroup(List<SAMRecord> alnList, VCFFileReader knownVCF) {
+		for(SAMRecord record : alnList) {
+			// fix MD:Z string for certain aligners with invalid format (i.e. seqAlto)
+			if(fixMD)
+				SAMAlignFixer.fixMisStr(record);
+			// fix alignment
+			if(knownVars != null)
+				SAMAlignFixer.fixSAMRecord(record, knownVars, DO_1DP);
+			else
+				SAMAlignFixer.fixSAMRecord(record, knownVCF, DO_1DP);
+		}
+
+		// create alnPEList from filtered alnList
+		List<SAMRecordPair> alnPEList = createAlnPEListFromAlnList(alnList);
+		//System.err.printf("%d alignments for %s transformed to %d alnPairs%n", alnList.size(), prevID, alnPEList.size());
+		int totalPair = alnPEList.size();
+		// filter highly unlikely PEhits
+		filterPEHits(alnPEList, MIN_ALIGN_RATE, MIN_IDENTITY);
+		// calculate posterior mapQ for each pair
+		calcPEHitPostP(alnPEList, totalPair, MAX_HIT);
+		// filter hits by mapQ
+		if(MIN_MAPQ > 0)
+			filterPEHits(alnPEList, MIN_MAPQ);
+		
+		// sort the list first with an anonymous class of comparator, with DESCREASING order
+		Collections.sort(alnPEList, Collections.reverseOrder());				
+		// control max-best
+		if(MAX_BEST != 0 && alnPEList.size() > MAX_BEST) { // potential too much best hits
+			int nBestStratum = 0;
+			int bestMapQ = alnPEList.get(0).getPEMapQ(); // best mapQ from first PE
+			for(SAMRecordPair pr : alnPEList)
+				if(pr.getPEMapQ() == bestMapQ)
+					nBestStratum++;
+				else
+					break; // stop searching for sorted list
+			if(nBestStratum > MAX_BEST)
+				alnPEList.clear();
+		}
+		// filter alignments with auxiliary filters
+		if(!MAX_SENSITIVITY)
+			filterPEHits(alnPEList, MAX_SEED_MIS, MAX_SEED_INDEL, MAX_ALL_MIS, MAX_ALL_INDEL);
+
+		// report remaining secondary alignments, up-to MAX_REPORT
+		List<SAMRecord> repList = new ArrayList<SAMRecord>();
+		for(int i = 0; i < alnPEList.size() && (MAX_REPORT == 0 || i < MAX_REPORT); i++) {
+			SAMRecordPair repPair = alnPEList.get(i);
+			if(doUpdateBit)
+				repPair.setNotPrimaryAlignmentFlags(i != 0);
+			int nReport = MAX_REPORT == 0 ? Math.min(alnPEList.size(), MAX_REPORT) : alnPEList.size();
+			int nFiltered = alnPEList.size();
+			if(repPair.fwdRecord != null) {
+				repPair.fwdRecord.setAttribute("NH", nReport);
+				repPair.fwdRecord.setAttribute("XN", nFiltered);
+				if(doNR)
+					NRTagUtils.setCloneTag(repPair.fwdRecord);
+				repList.add(repPair.fwdRecord);
+			}
+			if(repPair.revRecord != null) {
+				repPair.revRecord.setAttribute("NH", nReport);
+				repPair.revRecord.setAttribute("XN", nFiltered);
+				if(doNR)
+					NRTagUtils.setCloneTag(repPair.revRecord);
+				repList.add(repPair.revRecord);
+			}
+		}
+		return repList;
+	}
+
+	// a nested class for iterating the buffered alignments scanned during estimation, followed by the remaining alignments,
+	// the buffer is cleared as soon as it is drained, so any spill file of it is deleted promptly
+	static class PrefixBufferedIterator implements Iterator<SAMRecord> {
+		public PrefixBufferedIterator(Queue<SAMRecord> buffer, Iterator<SAMRecord> remaining) {
+			this.buffer = buffer;
+			this.remaining = remaining;
+			releaseIfDrained();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return buffer != null || remaining.hasNext();
+		}
+
+		@Override
+		public SAMRecord next() {
+			if(buffer == null)
+				return remaining.next();
+			SAMRecord record = buffer.poll();
+			releaseIfDrained();
+			return record;
+		}
+
+		// clear and drop the buffer once it is empty
+		private void releaseIfDrained() {
+			if(buffer != null && buffer.isEmpty()) {
+				buffer.clear();
+				buffer = null;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("remove() is not supported by " + getClass().getSimpleName());
+		}
+
+		private Queue<SAMRecord> buffer;
+		private Iterator<SAMRecord> remaining;
+	}
+
 	// a nested class for keeping a pair of SAMRecord for PE alignment
 	static class SAMRecordPair implements Comparable<SAMRecordPair> {
 		public SAMRecordPair(SAMRecord fwdRecord, SAMRecord revRecord) throws IllegalArgumentException {
@@ -425,7 +564,7 @@ public class FilterSAMAlignPE {
 		 * @return  postP either from fwdRecord or revRecord, which one is not null
 		 */
 		public double getPEPostP() {
-			return fwdRecord != null ? Double.parseDouble(fwdRecord.getStringAttribute("XP")) : Double.parseDouble(revRecord.getStringAttribute("XP")); 
+			return fwdRecord != null ? FilterSAMAlignSE.getSAMRecordAlignPostP(fwdRecord) : FilterSAMAlignSE.getSAMRecordAlignPostP(revRecord);
 		}
 		
 		/**
@@ -434,9 +573,9 @@ public class FilterSAMAlignPE {
 		 */
 		public void setPEPostP(double postP) {
 			if(fwdRecord != null)
-				fwdRecord.setAttribute("XP", Double.toString(postP));
+				SAMAlignFixer.setAlignPostP(fwdRecord, postP);
 			if(revRecord != null)
-				revRecord.setAttribute("XP", Double.toString(postP));
+				SAMAlignFixer.setAlignPostP(revRecord, postP);
 		}
 		
 		/**
@@ -513,6 +652,11 @@ public class FilterSAMAlignPE {
 				"            --min-frag-len  DOUBLE                  estimated minimum fragment (insert) length [" + MIN_FRAG_LEN + "]" + newLine +
 				"            --max-frag-len  DOUBLE                  estimated maximum fragment (insert) length [" + MAX_FRAG_LEN + "]" + newLine +
 				"            --max-estimate-scan  INT                maximum alignment records to use for estimate fragment distribution [" + MAX_ESTIMATE_SCAN + "]" + newLine +
+				"            --mean-frag-len  DOUBLE                 mean fragment (insert) length, use with --sd-frag-len to skip the estimation" + newLine +
+				"            --sd-frag-len  DOUBLE                   standard deviation of fragment (insert) length, use with --mean-frag-len to skip the estimation" + newLine +
+				"            --single-pass  FLAG                     estimate the fragment size distribution from the first --max-estimate-scan alignments [" + DEFAULT_SINGLE_PASS_SCAN + " if not set] and filter all alignments in one-pass without re-reading the input" + newLine +
+				"            --max-records-in-ram  INT               max scanned alignments to keep in memory in --single-pass mode before spilling to disk [" + MAX_RECORDS_IN_RAM + "]" + newLine +
+				"            --tmp-dir  DIR                          directory for spilled alignments in --single-pass mode [" + tmpDir + "]" + newLine +
 				"            --clip-handle  STRING                   how to treat soft/hard-clipped bases as mismathes, USE for use all, IGNORE for ignore, END5 for only use 5' clipped, END3 for only use 3' clipped [" + SAMAlignFixer.CLIP_MODE + "]" + newLine +
 				"            --1DP  FLAG                             enable 1-dimentional dymamic programming insert re-assesment, useful for non-local aligners, i.e. bowtie" + newLine +
 				"            --1DP-gap-open-penalty  INT             gap open penalty for 1DP [" + SAMAlignFixer.GAP_OPEN_PENALTY_1DP + "]" + newLine +
@@ -539,9 +683,13 @@ public class FilterSAMAlignPE {
 				"            --max-sensitivity  FLAG                 maximaze sensitivity by ignoring the mismatch, indel options" + newLine +
 				"            --sort-method  STRING                   sorting method for output SAM/BAM file, must be \"none\", \"name\" or \"coordinate\" [none]" + newLine +
 				"            --chrom-list  FILE                      pre-filtering file containing one chromosome name per-line" + newLine +
-				"            --known-SNP  FILE                       known SNP file in vcf/gvcf format (v4.0+, .gz supported), used for calculating mapQ" + newLine +
+				"            --known-SNP  FILE                       known SNP file in vcf/gvcf format (v4.0+, .gz supported), or binary index built by 'utils buildSnpIndex', used for calculating mapQ" + newLine +
 				"            --AF-tag  STRING                        Allele Frequency Tag in VCF file to check/use for determining penaltyScores for known SNPs, use NULL to disable [AF]" + newLine +
+				"            --known-SNP-max-mem  INT                max memory in MB for caching known SNPs in memory, or 0 to query the VCF file for each alignment [" + KNOWN_SNP_MAX_MEM + "]" + newLine +
 				"            --fix-MD  FLAG                          try to fix the MD:Z string format for certain NGS aligners that generate invalid tags" + newLine +
+				"            --typed-tags  FLAG                      write XH/XP tags as single-precision float (f) tags instead of double-precision strings (Z)" + newLine +
+				"            --nr  FLAG                              treat reads as NR-tags, and write their clone into the ZC:i tag for downstream tools" + newLine +
+				"            -p/--threads  INT                       number of worker threads for filtering read groups, output is identical to a single thread [" + nThreads + "]" + newLine +
 				"            -v  FLAG                                show verbose information"
 				);
 	}
@@ -581,6 +729,25 @@ public class FilterSAMAlignPE {
 			else if(args[i].equals("--max-estimate-scan")) {
 				MAX_ESTIMATE_SCAN = Long.parseLong(args[++i]);
 			}
+			else if(args[i].equals("--mean-frag-len")) {
+				MEAN_FRAG_LEN = Double.parseDouble(args[++i]);
+				if(!(MEAN_FRAG_LEN > 0))
+					throw new IllegalArgumentException("--mean-frag-len must be positive");
+			}
+			else if(args[i].equals("--sd-frag-len")) {
+				SD_FRAG_LEN = Double.parseDouble(args[++i]);
+				if(!(SD_FRAG_LEN > 0))
+					throw new IllegalArgumentException("--sd-frag-len must be positive");
+			}
+			else if(args[i].equals("--single-pass"))
+				SINGLE_PASS = true;
+			else if(args[i].equals("--max-records-in-ram")) {
+				MAX_RECORDS_IN_RAM = Integer.parseInt(args[++i]);
+				if(MAX_RECORDS_IN_RAM <= 0)
+					throw new IllegalArgumentException("--max-records-in-ram must be positive");
+			}
+			else if(args[i].equals("--tmp-dir"))
+				tmpDir = args[++i];
 			else if(args[i].equals("--clip-handle"))
 				SAMAlignFixer.CLIP_MODE = SAMAlignFixer.ClipHandlingMode.valueOf(args[++i]);
 			else if(args[i].equals("--1DP"))
@@ -656,12 +823,20 @@ public class FilterSAMAlignPE {
 				chrFile = args[++i];
 			else if(args[i].equals("--known-SNP"))
 				knownSnpFile = args[++i];
+			else if(args[i].equals("--known-SNP-max-mem"))
+				KNOWN_SNP_MAX_MEM = Integer.parseInt(args[++i]);
 			else if(args[i].equals("--AF-tag"))
 				SAMAlignFixer.setAFTag(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else if(args[i].equals("--fix-MD"))
 				fixMD = true;
+			else if(args[i].equals("--typed-tags"))
+				SAMAlignFixer.setTYPED_TAGS(true);
+			else if(args[i].equals("--nr"))
+				doNR = true;
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else
 				throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
 		// Check required options
@@ -693,6 +868,14 @@ public class FilterSAMAlignPE {
 			throw new IllegalArgumentException("--max-best must be non negative integer");
 		if(MAX_REPORT < 0)
 			throw new IllegalArgumentException("--max-report must be non negative integer");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive integer");
+		if(KNOWN_SNP_MAX_MEM < 0)
+			throw new IllegalArgumentException("--known-SNP-max-mem must be non negative integer");
+		if((MEAN_FRAG_LEN > 0) != (SD_FRAG_LEN > 0))
+			throw new IllegalArgumentException("--mean-frag-len and --sd-frag-len must be specified together");
+		if(SINGLE_PASS && MAX_ESTIMATE_SCAN <= 0)
+			MAX_ESTIMATE_SCAN = DEFAULT_SINGLE_PASS_SCAN;
 	}
 
 	/** get align length from AlignerBoost internal tag
@@ -886,6 +1069,10 @@ public class FilterSAMAlignPE {
 	private static double SD_FRAG_LEN;
 	private static final long MIN_ESTIMATE_BASE = 1000; // MIN alignment number to make an accurate estimate
 	private static long MAX_ESTIMATE_SCAN;
+	private static boolean SINGLE_PASS; // estimate and filter in one-pass?
+	private static final long DEFAULT_SINGLE_PASS_SCAN = 100000; // default MAX_ESTIMATE_SCAN in single-pass mode
+	private static int MAX_RECORDS_IN_RAM = 500000; // max scanned alignments kept in memory in single-pass mode
+	private static String tmpDir = System.getProperty("java.io.tmpdir");
 	// best stratum options
 	private static int MAX_HIT = 10; // MAX_HIT used during the mapping step
 	private static int MIN_MAPQ = 10;
@@ -894,8 +1081,24 @@ public class FilterSAMAlignPE {
 	private static boolean doUpdateBit = true;
 	private static int verbose; // verbose level
 	private static boolean fixMD = false;
+	private static boolean doNR; // whether to write the clone of NR-tag reads
 	private static Set<String> chrFilter;
 	private static VCFFileReader knownVCF;
+	private static KnownVariantTable knownVars; // known SNPs cached in memory, shared by all threads
+	private static int KNOWN_SNP_MAX_MEM = 1024; // max memory in MB for caching known SNPs
+	// VCFFileReader is not thread-safe, so each worker thread queries its own copy
+	private static final List<VCFFileReader> localVCFList = Collections.synchronizedList(new ArrayList<VCFFileReader>());
+	private static final ThreadLocal<VCFFileReader> localVCF = new ThreadLocal<VCFFileReader>() {
+		@Override
+		protected VCFFileReader initialValue() {
+			if(knownSnpFile == null)
+				return null;
+			VCFFileReader vcf = new VCFFileReader(new File(knownSnpFile));
+			localVCFList.add(vcf);
+			return vcf;
+		}
+	};
+	private static int nThreads = 1; // number of worker threads
 	// general options
 	private static GroupOrder groupOrder = GroupOrder.none;
 	private static SortOrder sortOrder = SortOrder.unsorted;
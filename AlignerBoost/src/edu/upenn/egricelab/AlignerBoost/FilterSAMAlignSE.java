@@ -22,7 +22,9 @@ import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
 import java.io.*;
 import java.util.*;
 
+import edu.upenn.egricelab.AlignerBoost.utils.NRTagUtils;
 import edu.upenn.egricelab.AlignerBoost.utils.ProcessStatusTask;
+import edu.upenn.egricelab.AlignerBoost.utils.SamTotalCounter;
 import edu.upenn.egricelab.AlignerBoost.utils.Stats;
 import edu.upenn.egricelab.AlignerBoost.utils.StringUtils;
 import htsjdk.samtools.*;
@@ -35,6 +37,8 @@ import htsjdk.variant.vcf.VCFFileReader;
  * Tag  Type  Description
  * NH   i     Number of reported alignments
  * XN   i     Number of total alignments satisfying the user-specified criteria except for the mapQ limitation
+ * ZC   i     Clone of the NR-tag read, if --nr is set
+ * The total number of written alignments is also written into the OUTFILE.stats file
  * @author Qi Zheng
  * @version 1.2
  * @since 1.1
@@ -83,9 +87,41 @@ public class FilterSAMAlignSE {
 		
 		// Read in known SNP file, if specified
 		if(knownSnpFile != null) {
+			try {
+				if(KnownVariantTable.isIndexFile(new File(knownSnpFile))) { // a pre-built binary index
+					if(verbose > 0)
+						System.err.println("Checking known SNPs from user specified binary index file");
+					knownVars = KnownVariantTable.loadIndex(new File(knownSnpFile));
+					if(!knownVars.getAFTag().equals(SAMAlignFixer.getAFTag()))
+						System.err.println("Warning: known SNP index was built with AF-tag " + knownVars.getAFTag() +
+								", ignoring --AF-tag " + SAMAlignFixer.getAFTag());
+					if(verbose > 0)
+						System.err.printf("%d known SNPs mapped from %.1f MB index file%n",
+								knownVars.getNumVariants(), knownVars.getMappedSize() / 1048576.0);
+				}
+			}
+			catch(IOException e) {
+				System.err.println("Error: " + e.getMessage());
+				if(verbose > 0)
+					processMonitor.cancel();
+				return;
+			}
+		}
+		if(knownSnpFile != null && knownVars == null) {
 			if(verbose > 0)
 				System.err.println("Checking known SNPs from user specified VCF file");
 			knownVCF = new VCFFileReader(new File(knownSnpFile));
+			if(KNOWN_SNP_MAX_MEM > 0) { // try to cache all known SNPs in memory
+				try {
+					knownVars = KnownVariantTable.load(knownVCF, SAMAlignFixer.getAFTag(), (long) KNOWN_SNP_MAX_MEM << 20);
+					if(verbose > 0)
+						System.err.printf("%d known SNPs cached in memory using %.1f MB%n",
+								knownVars.getNumVariants(), knownVars.getMemoryUsage() / 1048576.0);
+				}
+				catch(IllegalStateException e) {
+					System.err.println("Warning: cannot cache known SNPs: " + e.getMessage() + ", querying the VCF file for each alignment instead");
+				}
+			}
 		}
 		
 		SamReaderFactory readerFac = SamReaderFactory.makeDefault();
@@ -117,10 +153,19 @@ public class FilterSAMAlignSE {
 		String prevID = null;
 		SAMRecord prevRecord = null;
 		List<SAMRecord> recordList = new ArrayList<SAMRecord>();
+		// filter each read group with one or more threads, the reported alignments are written in input order
+		SAMRecordGroupPool groupPool = new SAMRecordGroupPool(new SAMRecordGroupPool.GroupFilter() {
+			@Override
+			public List<SAMRecord> filter(List<SAMRecord> group) {
+				return filterRecordGroup(group, nThreads > 1 && knownVars == null ? localVCF.get() : knownVCF);
+			}
+		}, out, nThreads);
 		// check each alignment
 		SAMRecordIterator results = in.iterator();
 		if(verbose > 0) {
 			System.err.println("Filtering alignments ...");
+			if(nThreads > 1)
+				System.err.println("Using " + nThreads + " worker threads");
 			statusTask.reset();
 			statusTask.setInfo("alignments processed");
 		}
@@ -139,56 +184,17 @@ public class FilterSAMAlignSE {
 				continue;
 			}
 
-			// fix MD:Z string for certain aligners with invalid format (i.e. seqAlto)
-			if(fixMD)
-				SAMAlignFixer.fixMisStr(record);
-			
-			// fix alignment, ignore if failed (unmapped or empty)
-			if(!SAMAlignFixer.fixSAMRecord(record, knownVCF, DO_1DP)) {
+			// ignore alignments cannot be fixed (unmapped or empty), the actual fixing is done with its read group
+			if(!SAMAlignFixer.isFixableSAMRecord(record)) {
 				prevID = ID;
 				prevRecord = record;
 				continue;
 			}
 
 			if(!ID.equals(prevID) && prevID != null || !results.hasNext()) { // a non-first new ID meet, or end of alignments
-				int totalHit = recordList.size();
-				// remove highly unlikey hits
-				filterHits(recordList, MIN_ALIGN_RATE, MIN_IDENTITY);
-				// calculate Bayesian based posterior probabilities
-				calcHitPostP(recordList, totalHit, MAX_HIT);
-				// filter hits by mapQ
-				if(MIN_MAPQ > 0)
-					filterHits(recordList, MIN_MAPQ);
-				// sort the list using the mapQ, using DESCREASING order
-				Collections.sort(recordList, Collections.reverseOrder(recordComp));
-				
-				if(MAX_BEST != 0 && recordList.size() > MAX_BEST) { // potential too much best hits
-					int nBestStratum = 0;
-					int bestMapQ = recordList.get(0).getMappingQuality();
-					for(SAMRecord rec : recordList)
-						if(rec.getMappingQuality() == bestMapQ)
-							nBestStratum++;
-						else
-							break; // no need search for sorted list
-					if(nBestStratum > MAX_BEST)
-						recordList.clear();
-				}
-				// filter hits with auxiliary filters
-				if(!MAX_SENSITIVITY)
-					filterHits(recordList, MAX_SEED_MIS, MAX_SEED_INDEL, MAX_ALL_MIS, MAX_ALL_INDEL);
-
-				// report remaining alignments, up-to MAX_REPORT
-				for(int i = 0; i < recordList.size() && (MAX_REPORT == 0 || i < MAX_REPORT); i++) {
-					SAMRecord repRecord = recordList.get(i);
-					if(doUpdateBit)
-						repRecord.setNotPrimaryAlignmentFlag(i != 0);
-					repRecord.setAttribute("NH",
-							MAX_REPORT == 0 ? Math.min(recordList.size(), MAX_REPORT) : recordList.size());
-					repRecord.setAttribute("XN", recordList.size());
-					out.addAlignment(repRecord);
-				}
-				// reset list
-				recordList.clear();
+				groupPool.submit(recordList);
+				// the submitted list is owned by the pool now
+				recordList = new ArrayList<SAMRecord>();
 			}
 			// update only when ID changes
 			if(!ID.equals(prevID)) {
@@ -197,11 +203,17 @@ public class FilterSAMAlignSE {
 			}
 			recordList.add(record);
 		}
+		// wait for all submitted groups to be written
+		groupPool.finish();
 
 		// close files
 		try {
 			in.close();
 			out.close();
+			// the total number of written alignments for the downstream tools, i.e. for RPM normalization
+			SamTotalCounter.writeStats(new File(outFile), groupPool.getNumWritten());
+			for(VCFFileReader vcf : localVCFList)
+				vcf.close();
 		}
 		catch(IOException e) {
 			System.err.println(e.getMessage());
@@ -215,11 +227,69 @@ public class FilterSAMAlignSE {
 		}
 	}
 
+	/**
+	 * Fix and filter all alignments of a read, and calculate their posterior mapQ with the Bayesian method
+	 * @param recordList  all alignments of a read, which will be modified
+	 * @param knownVCF  knownSnp to look at, ignored if null or the known SNPs are cached in memory
+	 * @return  alignments to be reported, in their output order
+	 */
+	private static List<SAMRecord> filterRecordGroup(List<SAMRecord> recordList, VCFFileReader knownVCF) {
+		for(SAMRecord record : recordList) {
+			// fix MD:Z string for certain aligners with invalid format (i.e. seqAlto)
+			if(fixMD)
+				SAMAlignFixer.fixMisStr(record);
+			// fix alignment
+			if(knownVars != null)
+				SAMAlignFixer.fixSAMRecord(record, knownVars, DO_1DP);
+			else
+				SAMAlignFixer.fixSAMRecord(record, knownVCF, DO_1DP);
+		}
+
+		int totalHit = recordList.size();
+		// remove highly unlikey hits
+		filterHits(recordList, MIN_ALIGN_RATE, MIN_IDENTITY);
+		// calculate Bayesian based posterior probabilities
+		calcHitPostP(recordList, totalHit, MAX_HIT);
+		// filter hits by mapQ
+		if(MIN_MAPQ > 0)
+			filterHits(recordList, MIN_MAPQ);
+		// sort the list using the mapQ, using DESCREASING order
+		Collections.sort(recordList, Collections.reverseOrder(recordComp));
+		
+		if(MAX_BEST != 0 && recordList.size() > MAX_BEST) { // potential too much best hits
+			int nBestStratum = 0;
+			int bestMapQ = recordList.get(0).getMappingQuality();
+			for(SAMRecord rec : recordList)
+				if(rec.getMappingQuality() == bestMapQ)
+					nBestStratum++;
+				else
+					break; // no need search for sorted list
+			if(nBestStratum > MAX_BEST)
+				recordList.clear();
+		}
+		// filter hits with auxiliary filters
+		if(!MAX_SENSITIVITY)
+			filterHits(recordList, MAX_SEED_MIS, MAX_SEED_INDEL, MAX_ALL_MIS, MAX_ALL_INDEL);
+
+		// report remaining alignments, up-to MAX_REPORT
+		int nFiltered = recordList.size();
+		for(int i = 0; i < nFiltered && (MAX_REPORT == 0 || i < MAX_REPORT); i++) {
+			SAMRecord repRecord = recordList.get(i);
+			if(doUpdateBit)
+				repRecord.setNotPrimaryAlignmentFlag(i != 0);
+			repRecord.setAttribute("NH",
+					MAX_REPORT == 0 ? Math.min(nFiltered, MAX_REPORT) : nFiltered);
+			repRecord.setAttribute("XN", nFiltered);
+			if(doNR)
+				NRTagUtils.setCloneTag(repRecord);
+		}
+		return MAX_REPORT != 0 && nFiltered > MAX_REPORT ? recordList.subList(0, MAX_REPORT) : recordList;
+	}
+
 	// a nested class for sorting SAMRecord using align score
 	static class SAMRecordMapQComparator implements Comparator<SAMRecord> {
 		public int compare(SAMRecord r1, SAMRecord r2) {
-			return Double.compare(Double.parseDouble(r1.getStringAttribute("XP")),
-									Double.parseDouble(r2.getStringAttribute("XP")));
+			return Double.compare(getSAMRecordAlignPostP(r1), getSAMRecordAlignPostP(r2));
 		}
 	}
 
@@ -261,9 +331,13 @@ public class FilterSAMAlignSE {
 				"            --max-sensitivity  FLAG                 maximaze sensitivity by ignoring the mismatch, indel options" + newLine +
 				"            --sort-method  STRING                   sorting method for output SAM/BAM file, must be \"none\", \"name\" or \"coordinate\" [none]" + newLine +
 				"            --chrom-list  FILE                      pre-filtering file containing one chromosome name per-line" + newLine +
-				"            --known-SNP  FILE                       known SNP file in vcf/gvcf format (v4.0+, .gz supported), used for calculating mapQ" + newLine +
+				"            --known-SNP  FILE                       known SNP file in vcf/gvcf format (v4.0+, .gz supported), or binary index built by 'utils buildSnpIndex', used for calculating mapQ" + newLine +
 				"            --AF-tag  STRING                        Allele Frequency Tag in VCF file to check/use for determining penaltyScores for known SNPs, use NULL to disable [AF]" + newLine +
+				"            --known-SNP-max-mem  INT                max memory in MB for caching known SNPs in memory, or 0 to query the VCF file for each alignment [" + KNOWN_SNP_MAX_MEM + "]" + newLine +
 				"            --fix-MD  FLAG                          try to fix the MD:Z string format for certain NGS aligners that generate invalid tags" + newLine +
+				"            --typed-tags  FLAG                      write XH/XP tags as single-precision float (f) tags instead of double-precision strings (Z)" + newLine +
+				"            --nr  FLAG                              treat reads as NR-tags, and write their clone into the ZC:i tag for downstream tools" + newLine +
+				"            -p/--threads  INT                       number of worker threads for filtering read groups, output is identical to a single thread [" + nThreads + "]" + newLine +
 				"            -v  FLAG                                show verbose information"
 				);
 	}
@@ -363,10 +437,18 @@ public class FilterSAMAlignSE {
 				chrFile = args[++i];
 			else if(args[i].equals("--known-SNP"))
 				knownSnpFile = args[++i];
+			else if(args[i].equals("--known-SNP-max-mem"))
+				KNOWN_SNP_MAX_MEM = Integer.parseInt(args[++i]);
 			else if(args[i].equals("--AF-tag"))
 				SAMAlignFixer.setAFTag(args[++i]);
 			else if(args[i].equals("--fix-MD"))
 				fixMD = true;
+			else if(args[i].equals("--typed-tags"))
+				SAMAlignFixer.setTYPED_TAGS(true);
+			else if(args[i].equals("--nr"))
+				doNR = true;
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else
@@ -399,6 +481,10 @@ public class FilterSAMAlignSE {
 			throw new IllegalArgumentException("--max-best must be non negative integer");
 		if(MAX_REPORT < 0)
 			throw new IllegalArgumentException("--max-report must be non negative integer");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive integer");
+		if(KNOWN_SNP_MAX_MEM < 0)
+			throw new IllegalArgumentException("--known-SNP-max-mem must be non negative integer");
 	}
 
 	/** get align length from AlignerBoost internal tag
@@ -534,7 +620,7 @@ public class FilterSAMAlignSE {
 	
 	/**
 	 * Calculate the posterior probability mapQ value (in phred scale) using the Bayesian method
-	 * the error values will be stored in XP:Z tag
+	 * the error values will be stored in XP tag
 	 * @param recordList
 	 * @param totalHit  totalHit found before any filtering
 	 * @param maxHit  max number of hit allowed during alignment
@@ -562,7 +648,7 @@ public class FilterSAMAlignSE {
 		Stats.normalizePostP(postP, maxHit == 0 || totalHit < maxHit ? 0 : Math.sqrt(maxHit));
 		// reset the mapQ values
 		for(int i = 0; i < nHits; i++) {
-			recordList.get(i).setAttribute("XP", Double.toString(postP[i]));
+			SAMAlignFixer.setAlignPostP(recordList.get(i), postP[i]);
 			double mapQ = Stats.phredP2Q(1 - postP[i]);
 			if(Double.isNaN(mapQ)) // is NaN
 				recordList.get(i).setMappingQuality(INVALID_MAPQ);
@@ -582,7 +668,7 @@ public class FilterSAMAlignSE {
 	 * @return  log10 likelihood
 	 */
 	static double getSAMRecordAlignLikelihood(SAMRecord record) {
-		return Double.parseDouble(record.getStringAttribute("XH"));
+		return SAMAlignFixer.getAlignLikelihood(record);
 	}
 
 
@@ -592,7 +678,7 @@ public class FilterSAMAlignSE {
 	 * @return  posterior probability of this alignment
 	 */
 	static double getSAMRecordAlignPostP(SAMRecord record) {
-		return Double.parseDouble(record.getStringAttribute("XP"));
+		return SAMAlignFixer.getAlignPostP(record);
 	}
 	
 	static final int INVALID_MAPQ = 255;
@@ -619,10 +705,26 @@ public class FilterSAMAlignSE {
 	private static int MAX_REPORT = 1;
 	private static boolean doUpdateBit = true;
 	private static boolean fixMD = false;
+	private static boolean doNR; // whether to write the clone of NR-tag reads
 	private static int verbose; // verbose level
 	private static SAMRecordMapQComparator recordComp = new SAMRecordMapQComparator();
 	private static Set<String> chrFilter;
 	private static VCFFileReader knownVCF;
+	private static KnownVariantTable knownVars; // known SNPs cached in memory, shared by all threads
+	private static int KNOWN_SNP_MAX_MEM = 1024; // max memory in MB for caching known SNPs
+	// VCFFileReader is not thread-safe, so each worker thread queries its own copy
+	private static final List<VCFFileReader> localVCFList = Collections.synchronizedList(new ArrayList<VCFFileReader>());
+	private static final ThreadLocal<VCFFileReader> localVCF = new ThreadLocal<VCFFileReader>() {
+		@Override
+		protected VCFFileReader initialValue() {
+			if(knownSnpFile == null)
+				return null;
+			VCFFileReader vcf = new VCFFileReader(new File(knownSnpFile));
+			localVCFList.add(vcf);
+			return vcf;
+		}
+	};
+	private static int nThreads = 1; // number of worker threads
 	// general options
 	private static GroupOrder groupOrder = GroupOrder.none;
 	private static SortOrder sortOrder = SortOrder.unsorted;
@@ -0,0 +1,819 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to hold known variants (SNPs, MNPs and in-dels) of a VCF file in memory
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.*;
+import htsjdk.variant.vcf.VCFFileReader;
+
+/** An in-memory table of known variants, stored per chromosome in coordinate-sorted primitive arrays,
+ * with the alternative alleles packed as bytes and their penalty scores pre-computed from the allele frequency tag.
+ * The variants overlapping an alignment are found by a binary search, instead of a VCF index query per alignment.
+ * Filtered variants are never used by {@link SAMAlignFixer} and are not stored.
+ * A KnownVariantTable can also be saved as a binary index file, which is memory-mapped when loaded,
+ * so concurrent jobs on the same node share the same page-cached copy.
+ * Each array of a chromosome is mapped separately, and the packed alleles and IDs are mapped in fixed-size windows
+ * with long offsets, so a dbSNP-scale chromosome is not limited by the 2 GB size of a single mapping.
+ * A loaded KnownVariantTable is read-only and can be shared by multiple threads.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class KnownVariantTable {
+	/**
+	 * Construct an empty KnownVariantTable
+	 * @param AFTag  allele frequency tag for calculating the penalty scores
+	 */
+	public KnownVariantTable(String AFTag) {
+		this.AFTag = AFTag;
+	}
+
+	/**
+	 * Load all variants of a coordinate-sorted VCF file into a new KnownVariantTable
+	 * @param vcf  VCFFileReader to read
+	 * @param AFTag  allele frequency tag for calculating the penalty scores
+	 * @param maxMem  max memory in bytes this table can use
+	 * @return  a KnownVariantTable with all non-filtered variants
+	 * @throws IllegalStateException  if the VCF file is not sorted, or the table exceeds maxMem
+	 */
+	public static KnownVariantTable load(VCFFileReader vcf, String AFTag, long maxMem) throws IllegalStateException {
+		KnownVariantTable table = new KnownVariantTable(AFTag);
+		CloseableIterator<VariantContext> it = vcf.iterator();
+		try {
+			while(it.hasNext()) {
+				table.add(it.next());
+				if(table.getMemoryUsage() > maxMem)
+					throw new IllegalStateException("known variants need more than " + (maxMem >> 20) + " MB memory");
+			}
+		}
+		finally {
+			it.close();
+		}
+		return table;
+	}
+
+	/**
+	 * Convert a coordinate-sorted VCF file into a binary index file, only one chromosome is held in memory at a time
+	 * @param vcf  VCFFileReader to read
+	 * @param AFTag  allele frequency tag for calculating the penalty scores
+	 * @param indexFile  binary index file to write
+	 * @return  number of variants written
+	 * @throws IOException  if any IO error occurs
+	 * @throws IllegalStateException  if the VCF file is not sorted
+	 */
+	public static long buildIndex(VCFFileReader vcf, String AFTag, File indexFile) throws IOException, IllegalStateException {
+		RandomAccessFile out = new RandomAccessFile(indexFile, "rw");
+		FileChannel channel = out.getChannel();
+		CloseableIterator<VariantContext> it = vcf.iterator();
+		long nWritten = 0;
+		boolean isBuilt = false;
+		try {
+			channel.truncate(0);
+			// write header, with the directory offset to be updated at the end
+			ByteBuffer header = newBuffer(HEADER_LEN + AFTag.length());
+			header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(0);
+			putString(header, AFTag);
+			writeFully(channel, header);
+			// write the variants of each chromosome
+			Map<String, ChromVariants> written = new LinkedHashMap<String, ChromVariants>(); // header-only copy of each chromosome
+			Map<String, Long> offsets = new HashMap<String, Long>();
+			ChromVariants vars = new ChromVariants();
+			String chr = null;
+			while(it.hasNext()) {
+				VariantContext var = it.next();
+				if(var.isFiltered())
+					continue;
+				if(!var.getContig().equals(chr)) { // a new chromosome
+					if(chr != null)
+						nWritten += writeChrom(channel, chr, vars, written, offsets);
+					chr = var.getContig();
+					if(written.containsKey(chr))
+						throw new IllegalStateException("known variants are not sorted at " + chr + ":" + var.getStart());
+					vars.clear();
+				}
+				vars.add(var, AFTag);
+			}
+			if(chr != null)
+				nWritten += writeChrom(channel, chr, vars, written, offsets);
+			// write the directory
+			long dirOffset = channel.position();
+			int dirLen = 4;
+			for(String name : written.keySet())
+				dirLen += 4 + name.length() + 4 * 3 + 8 + 8;
+			ByteBuffer dir = newBuffer(dirLen);
+			dir.putInt(written.size());
+			for(Map.Entry<String, ChromVariants> entry : written.entrySet()) {
+				ChromVariants chrVars = entry.getValue();
+				putString(dir, entry.getKey());
+				dir.putInt(chrVars.nVars).putInt(chrVars.nAlts).putLong(chrVars.pool.length()).putInt(chrVars.maxSpan);
+				dir.putLong(offsets.get(entry.getKey()));
+			}
+			writeFully(channel, dir);
+			// update the directory offset
+			ByteBuffer dirPtr = newBuffer(8);
+			dirPtr.putLong(dirOffset);
+			dirPtr.flip();
+			channel.write(dirPtr, 8);
+			isBuilt = true;
+		}
+		finally {
+			it.close();
+			out.close();
+			if(!isBuilt) // never leave a partially written index file
+				indexFile.delete();
+		}
+		return nWritten;
+	}
+
+	/**
+	 * Load a binary index file built by {@link #buildIndex(VCFFileReader, String, File)} with memory-mapping,
+	 * the variants are read directly from the mapped file without copying
+	 * @param indexFile  binary index file
+	 * @return  a read-only KnownVariantTable backed by the mapped file
+	 * @throws IOException  if any IO error occurs or the file is not a valid index file
+	 */
+	public static KnownVariantTable loadIndex(File indexFile) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+		FileChannel channel = in.getChannel();
+		try {
+			long fileLen = channel.size();
+			ByteBuffer header = map(channel, 0, Math.min(fileLen, HEADER_LEN + MAX_NAME_LEN));
+			if(header.remaining() < HEADER_LEN || header.getInt() != INDEX_MAGIC)
+				throw new IOException(indexFile + " is not a known SNP index file");
+			int version = header.getInt();
+			if(version != INDEX_VERSION)
+				throw new IOException("unsupported known SNP index version " + version + " of " + indexFile);
+			long dirOffset = header.getLong();
+			KnownVariantTable table = new KnownVariantTable(getString(header));
+			table.mappedLen = fileLen;
+			ByteBuffer dir = map(channel, dirOffset, fileLen - dirOffset);
+			int nChroms = dir.getInt();
+			for(int i = 0; i < nChroms; i++) {
+				String chr = getString(dir);
+				int nVars = dir.getInt();
+				int nAlts = dir.getInt();
+				long poolLen = dir.getLong();
+				int maxSpan = dir.getInt();
+				long offset = dir.getLong();
+				table.chrVars.put(chr, new ChromVariants(channel, offset, nVars, nAlts, poolLen, maxSpan));
+			}
+			return table;
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException(indexFile + " is truncated or corrupted");
+		}
+		finally {
+			in.close(); // the mappings stay valid after closing
+		}
+	}
+
+	/**
+	 * Test whether a file is a binary index file built by {@link #buildIndex(VCFFileReader, String, File)}
+	 * @param file  file to test
+	 * @return  true if this file starts with the index magic number
+	 * @throws IOException  if any IO error occurs
+	 */
+	public static boolean isIndexFile(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return Integer.reverseBytes(in.readInt()) == INDEX_MAGIC;
+		}
+		catch(EOFException e) {
+			return false;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Add a variant to this table, the variants of each chromosome must be added in coordinate-sorted order
+	 * @param var  variant to add, ignored if filtered
+	 * @throws IllegalStateException  if var is not sorted relative to the last variant on the same chromosome
+	 */
+	public void add(VariantContext var) throws IllegalStateException {
+		if(var.isFiltered())
+			return;
+		String chr = var.getContig();
+		ChromVariants vars = chrVars.get(chr);
+		long prevMem = 0;
+		if(vars == null) {
+			vars = new ChromVariants();
+			chrVars.put(chr, vars);
+		}
+		else
+			prevMem = vars.getMemoryUsage();
+		vars.add(var, AFTag);
+		memUsage += vars.getMemoryUsage() - prevMem; // keep a running total, so checking it is O(1)
+	}
+
+	/**
+	 * Get the known variants of a chromosome
+	 * @param chr  chromosome name
+	 * @return  variants on this chromosome, or null if none exists
+	 */
+	ChromVariants getVariants(String chr) {
+		return chrVars.get(chr);
+	}
+
+	/**
+	 * @return  the allele frequency tag used for calculating the penalty scores
+	 */
+	public String getAFTag() {
+		return AFTag;
+	}
+
+	/**
+	 * @return  total number of variants in this table
+	 */
+	public long getNumVariants() {
+		long n = 0;
+		for(ChromVariants vars : chrVars.values())
+			n += vars.size();
+		return n;
+	}
+
+	/**
+	 * @return  estimated heap memory usage in bytes, not including the memory-mapped index file
+	 */
+	public long getMemoryUsage() {
+		return memUsage;
+	}
+
+	/**
+	 * @return  size of the memory-mapped index file, or 0 if this table is not loaded from an index file
+	 */
+	public long getMappedSize() {
+		return mappedLen;
+	}
+
+	/**
+	 * Calculate the penalty score of an alternative allele from the allele frequency tag of a variant
+	 * @param var  variant to look at
+	 * @param alleleIdx  index of the allele in var, 0 for the reference
+	 * @param tag  allele frequency tag
+	 * @return  penalty score as -log10(AF), or -1 if not available
+	 */
+	static int getPenaltyScoreFromInfo(VariantContext var, int alleleIdx, String tag) {
+		if(!var.hasAttribute(tag))
+			return -1; // use -1 indicator
+		String[] afVals = var.getAttributeAsString(tag, "").split(",");
+		if(alleleIdx < 1 || alleleIdx > afVals.length) // afVals only contains altAlleles
+			return -1;
+		String val = afVals[alleleIdx - 1];
+		if(val.startsWith("["))
+			val = val.substring(1);
+		if(val.endsWith("]"))
+			val = val.substring(0, val.length() - 1);
+		try {
+			double logLik = - Math.log10(Double.parseDouble(val));
+			if(!Double.isInfinite(logLik) && logLik >= 0)
+				return (int) Math.round(logLik);
+		}
+		catch(NumberFormatException e) { // such as a missing value
+		}
+		return -1;
+	}
+
+	/**
+	 * write the variants of a chromosome to the index file
+	 * @return  number of variants written
+	 */
+	private static int writeChrom(FileChannel channel, String chr, ChromVariants vars,
+			Map<String, ChromVariants> written, Map<String, Long> offsets) throws IOException {
+		long offset = channel.position();
+		offset += -offset & (SECTION_ALIGN - 1); // align each chromosome
+		channel.position(offset);
+		vars.write(channel);
+		ChromVariants header = new ChromVariants(0);
+		header.nVars = vars.nVars;
+		header.nAlts = vars.nAlts;
+		header.pool = new BytePool(vars.pool.length());
+		header.maxSpan = vars.maxSpan;
+		written.put(chr, header);
+		offsets.put(chr, offset);
+		return vars.nVars;
+	}
+
+	private static ByteBuffer newBuffer(int capacity) {
+		return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long len) throws IOException {
+		if(offset < 0 || len < 0 || offset + len > channel.size() || len > Integer.MAX_VALUE)
+			throw new IOException("invalid section at offset " + offset + " of the known SNP index file");
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, len).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while(buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	private static void putString(ByteBuffer buf, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.US_ASCII);
+		buf.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) throws BufferUnderflowException {
+		int len = buf.getInt();
+		if(len < 0 || len > buf.remaining())
+			throw new BufferUnderflowException();
+		byte[] bytes = new byte[len];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * A nested static class member holding the known variants of a single chromosome in coordinate-sorted order,
+	 * backed by either growable heap arrays or read-only sections of a memory-mapped index file
+	 * @author Qi Zheng
+	 */
+	static class ChromVariants {
+		/**
+		 * Construct an empty growable ChromVariants
+		 */
+		ChromVariants() {
+			this(INIT_CAPACITY);
+		}
+
+		/**
+		 * Construct an empty growable ChromVariants with given initial capacity
+		 */
+		private ChromVariants(int capacity) {
+			starts = IntBuffer.allocate(capacity);
+			ends = IntBuffer.allocate(capacity);
+			refLens = IntBuffer.allocate(capacity);
+			types = ByteBuffer.allocate(capacity);
+			altFrom = IntBuffer.allocate(capacity + 1);
+			idFrom = LongBuffer.allocate(capacity);
+			idTo = LongBuffer.allocate(capacity);
+			altPenalties = IntBuffer.allocate(capacity);
+			alleleFrom = LongBuffer.allocate(capacity);
+			alleleTo = LongBuffer.allocate(capacity);
+			pool = new BytePool();
+		}
+
+		/**
+		 * Construct a read-only ChromVariants mapped from an index file, in the same layout as {@link #write(FileChannel)}
+		 */
+		private ChromVariants(FileChannel channel, long offset, int nVars, int nAlts, long poolLen, int maxSpan) throws IOException {
+			if(nVars < 0 || nVars > MAX_VARS || nAlts < 0 || nAlts > MAX_VARS || poolLen < 0)
+				throw new IOException("invalid chromosome section at offset " + offset + " of the known SNP index file");
+			this.nVars = nVars;
+			this.nAlts = nAlts;
+			this.maxSpan = maxSpan;
+			// map each array separately, so no single mapping exceeds 2 GB
+			long pos = offset;
+			idFrom = map(channel, pos, 8L * nVars).asLongBuffer();
+			pos += 8L * nVars;
+			idTo = map(channel, pos, 8L * nVars).asLongBuffer();
+			pos += 8L * nVars;
+			alleleFrom = map(channel, pos, 8L * nAlts).asLongBuffer();
+			pos += 8L * nAlts;
+			alleleTo = map(channel, pos, 8L * nAlts).asLongBuffer();
+			pos += 8L * nAlts;
+			starts = map(channel, pos, 4L * nVars).asIntBuffer();
+			pos += 4L * nVars;
+			ends = map(channel, pos, 4L * nVars).asIntBuffer();
+			pos += 4L * nVars;
+			refLens = map(channel, pos, 4L * nVars).asIntBuffer();
+			pos += 4L * nVars;
+			altFrom = map(channel, pos, 4L * (nVars + 1)).asIntBuffer();
+			pos += 4L * (nVars + 1);
+			altPenalties = map(channel, pos, 4L * nAlts).asIntBuffer();
+			pos += 4L * nAlts;
+			types = map(channel, pos, nVars);
+			pos += nVars;
+			pool = new BytePool(channel, pos, poolLen);
+			isMapped = true;
+		}
+
+		/**
+		 * Add a variant after all existing variants
+		 * @param var  variant to add
+		 * @param AFTag  allele frequency tag for calculating the penalty scores
+		 * @throws IllegalStateException  if var starts before the last variant
+		 */
+		void add(VariantContext var, String AFTag) throws IllegalStateException {
+			int start = var.getStart();
+			if(nVars > 0 && start < starts.get(nVars - 1))
+				throw new IllegalStateException("known variants are not sorted at " + var.getContig() + ":" + start);
+			if(nVars == starts.capacity()) { // grow variant arrays
+				if(nVars == MAX_VARS)
+					throw new IllegalStateException("more than " + MAX_VARS + " known variants on " + var.getContig());
+				int capacity = Math.min(nVars + (nVars >> 1), MAX_VARS);
+				starts = grow(starts, capacity);
+				ends = grow(ends, capacity);
+				refLens = grow(refLens, capacity);
+				types = grow(types, capacity);
+				altFrom = grow(altFrom, capacity + 1);
+				idFrom = grow(idFrom, capacity);
+				idTo = grow(idTo, capacity);
+			}
+			List<Allele> alts = var.getAlternateAlleles();
+			if(nAlts + alts.size() > altPenalties.capacity()) { // grow allele arrays
+				if((long) nAlts + alts.size() > MAX_VARS)
+					throw new IllegalStateException("more than " + MAX_VARS + " known alternative alleles on " + var.getContig());
+				int capacity = Math.min(Math.max(nAlts + alts.size(), nAlts + (nAlts >> 1)), MAX_VARS);
+				altPenalties = grow(altPenalties, capacity);
+				alleleFrom = grow(alleleFrom, capacity);
+				alleleTo = grow(alleleTo, capacity);
+			}
+			int end = var.getEnd();
+			starts.put(nVars, start);
+			ends.put(nVars, end);
+			refLens.put(nVars, var.getReference().length());
+			types.put(nVars, var.isSNP() ? SNP : var.isMNP() ? MNP : var.isIndel() ? INDEL : OTHER);
+			if(end - start + 1 > maxSpan)
+				maxSpan = end - start + 1;
+			// pack the alternative alleles, in the same order as in var
+			for(Allele alt : alts) {
+				altPenalties.put(nAlts, getPenaltyScoreFromInfo(var, var.getAlleleIndex(alt), AFTag));
+				alleleFrom.put(nAlts, pool.length());
+				pool.append(alt.getBases());
+				alleleTo.put(nAlts++, pool.length());
+			}
+			altFrom.put(nVars + 1, nAlts);
+			// pack the ID
+			idFrom.put(nVars, pool.length());
+			pool.append(var.getID().getBytes(StandardCharsets.US_ASCII));
+			idTo.put(nVars++, pool.length());
+		}
+
+		/**
+		 * Remove all variants, but keep the allocated memory for reuse
+		 */
+		void clear() {
+			nVars = nAlts = 0;
+			maxSpan = 0;
+			pool.clear();
+		}
+
+		/**
+		 * Write all variants to a file channel at its current position, in little-endian
+		 * @param channel  channel to write
+		 * @throws IOException  if any IO error occurs
+		 */
+		void write(FileChannel channel) throws IOException {
+			writeLongs(channel, idFrom, nVars);
+			writeLongs(channel, idTo, nVars);
+			writeLongs(channel, alleleFrom, nAlts);
+			writeLongs(channel, alleleTo, nAlts);
+			writeInts(channel, starts, nVars);
+			writeInts(channel, ends, nVars);
+			writeInts(channel, refLens, nVars);
+			writeInts(channel, altFrom, nVars + 1);
+			writeInts(channel, altPenalties, nAlts);
+			writeBytes(channel, types, nVars);
+			pool.write(channel);
+		}
+
+		/**
+		 * @return  number of variants
+		 */
+		int size() {
+			return nVars;
+		}
+
+		/**
+		 * Find the first variant that possibly overlaps a given region with a binary search
+		 * @param start  1-based region start
+		 * @return  index of the first variant whose end can be at or after start
+		 */
+		int firstOverlap(int start) {
+			int from = start - maxSpan + 1; // any variant starting before from cannot overlap start
+			int lo = 0;
+			int hi = nVars;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(starts.get(mid) < from)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  1-based start of the variant
+		 */
+		int getStart(int i) {
+			return starts.get(i);
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  1-based end of the variant
+		 */
+		int getEnd(int i) {
+			return ends.get(i);
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  reference allele length
+		 */
+		int getRefLength(int i) {
+			return refLens.get(i);
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  true if this variant is a SNP
+		 */
+		boolean isSNP(int i) {
+			return types.get(i) == SNP;
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  true if this variant is a MNP
+		 */
+		boolean isMNP(int i) {
+			return types.get(i) == MNP;
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  true if this variant is an in-del
+		 */
+		boolean isIndel(int i) {
+			return types.get(i) == INDEL;
+		}
+
+		/**
+		 * @param i  variant index
+		 * @return  ID of the variant, or "." if not available
+		 */
+		String getID(int i) {
+			long from = idFrom.get(i);
+			byte[] id = new byte[(int) (idTo.get(i) - from)];
+			for(int k = 0; k < id.length; k++)
+				id[k] = pool.get(from + k);
+			return new String(id, StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Find an alternative allele of a variant that is the same as a region of the read, case-insensitive
+		 * @param i  variant index
+		 * @param qSeq  read bases
+		 * @param start  0-based start on read
+		 * @param end  1-based end on read
+		 * @return  index of the matched alternative allele of this variant, or -1 if not found
+		 */
+		int findAltAllele(int i, byte[] qSeq, int start, int end) {
+			if(start < 0 || end > qSeq.length)
+				return -1;
+			int len = end - start;
+			int altStart = altFrom.get(i);
+			int altEnd = altFrom.get(i + 1);
+			for(int j = altStart; j < altEnd; j++) {
+				long from = alleleFrom.get(j);
+				if(alleleTo.get(j) - from != len)
+					continue;
+				int k = 0;
+				while(k < len && pool.get(from + k) == toUpperCase(qSeq[start + k]))
+					k++;
+				if(k == len)
+					return j - altStart;
+			}
+			return -1;
+		}
+
+		/**
+		 * @param i  variant index
+		 * @param altIdx  index of the alternative allele of this variant
+		 * @return  pre-computed penalty score of this allele, or -1 if not available
+		 */
+		int getAltPenalty(int i, int altIdx) {
+			return altPenalties.get(altFrom.get(i) + altIdx);
+		}
+
+		/**
+		 * @return  estimated heap memory usage in bytes, 0 if mapped
+		 */
+		long getMemoryUsage() {
+			if(isMapped)
+				return 0;
+			return 4L * (starts.capacity() + ends.capacity() + refLens.capacity() + altFrom.capacity() + altPenalties.capacity())
+					+ 8L * (idFrom.capacity() + idTo.capacity() + alleleFrom.capacity() + alleleTo.capacity())
+					+ types.capacity() + pool.getMemoryUsage();
+		}
+
+		private static IntBuffer grow(IntBuffer buf, int capacity) {
+			return IntBuffer.wrap(Arrays.copyOf(buf.array(), capacity));
+		}
+
+		private static LongBuffer grow(LongBuffer buf, int capacity) {
+			return LongBuffer.wrap(Arrays.copyOf(buf.array(), capacity));
+		}
+
+		private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+			return ByteBuffer.wrap(Arrays.copyOf(buf.array(), capacity));
+		}
+
+		private static void writeInts(FileChannel channel, IntBuffer src, int n) throws IOException {
+			ByteBuffer buf = newBuffer(4 * Math.min(n, WRITE_CHUNK_LEN));
+			for(int i = 0; i < n; ) {
+				buf.clear();
+				for(int end = Math.min(n, i + WRITE_CHUNK_LEN); i < end; i++)
+					buf.putInt(src.get(i));
+				writeFully(channel, buf);
+			}
+		}
+
+		private static void writeLongs(FileChannel channel, LongBuffer src, int n) throws IOException {
+			ByteBuffer buf = newBuffer(8 * Math.min(n, WRITE_CHUNK_LEN));
+			for(int i = 0; i < n; ) {
+				buf.clear();
+				for(int end = Math.min(n, i + WRITE_CHUNK_LEN); i < end; i++)
+					buf.putLong(src.get(i));
+				writeFully(channel, buf);
+			}
+		}
+
+		private static void writeBytes(FileChannel channel, ByteBuffer src, int n) throws IOException {
+			ByteBuffer buf = src.duplicate();
+			buf.position(n);
+			writeFully(channel, buf);
+		}
+
+		private static byte toUpperCase(byte b) {
+			return b >= 'a' && b <= 'z' ? (byte) (b - 'a' + 'A') : b;
+		}
+
+		private static final byte OTHER = 0;
+		private static final byte SNP = 1;
+		private static final byte MNP = 2;
+		private static final byte INDEL = 3;
+		private static final int MAX_VARS = Integer.MAX_VALUE / 8; // max variants or alleles of a chromosome, so each array maps within 2 GB
+		private int nVars;
+		private int nAlts;
+		private int maxSpan; // max variant length on reference
+		private boolean isMapped;
+		private IntBuffer starts;
+		private IntBuffer ends;
+		private IntBuffer refLens;
+		private ByteBuffer types;
+		private IntBuffer altFrom; // first alternative allele index of each variant, with an extra end index
+		private LongBuffer idFrom; // start of each ID in the pool
+		private LongBuffer idTo; // end of each ID in the pool
+		private IntBuffer altPenalties;
+		private LongBuffer alleleFrom; // start of each alternative allele in the pool
+		private LongBuffer alleleTo; // end of each alternative allele in the pool
+		private BytePool pool; // packed alleles and IDs
+	}
+
+	/**
+	 * A nested static class member of the packed alleles and IDs of a chromosome, addressed by long offsets,
+	 * and stored in fixed-size chunks of either growable heap buffers or read-only mapped windows of an index file,
+	 * so it is not limited to 2 GB
+	 */
+	static class BytePool {
+		/**
+		 * Construct an empty growable BytePool
+		 */
+		BytePool() {
+			chunks = new ArrayList<ByteBuffer>();
+		}
+
+		/**
+		 * Construct an empty BytePool only recording a length, used as a header-only copy
+		 */
+		private BytePool(long len) {
+			this();
+			this.len = len;
+		}
+
+		/**
+		 * Construct a read-only BytePool mapped from an index file in fixed-size windows
+		 */
+		private BytePool(FileChannel channel, long offset, long len) throws IOException {
+			this();
+			for(long from = 0; from < len; from += CHUNK_LEN)
+				chunks.add(map(channel, offset + from, Math.min(CHUNK_LEN, len - from)));
+			this.len = len;
+			isMapped = true;
+		}
+
+		/**
+		 * @return  number of bytes in this pool
+		 */
+		long length() {
+			return len;
+		}
+
+		/**
+		 * @param i  offset in this pool
+		 * @return  byte at this offset
+		 */
+		byte get(long i) {
+			return chunks.get((int) (i >>> CHUNK_SHIFT)).get((int) (i & CHUNK_MASK));
+		}
+
+		/**
+		 * Append bytes after all existing bytes
+		 * @param bytes  bytes to append
+		 */
+		void append(byte[] bytes) {
+			for(byte b : bytes) {
+				int k = (int) (len >>> CHUNK_SHIFT);
+				int j = (int) (len & CHUNK_MASK);
+				if(k == chunks.size()) { // a new chunk, only the first one starts small and grows
+					chunks.add(ByteBuffer.allocate(k == 0 ? INIT_CAPACITY * 4 : CHUNK_LEN));
+					memUsage += chunks.get(k).capacity();
+				}
+				ByteBuffer chunk = chunks.get(k);
+				if(j == chunk.capacity()) { // grow the first chunk
+					chunk = ChromVariants.grow(chunk, Math.min(j + (j >> 1), CHUNK_LEN));
+					memUsage += chunk.capacity() - j;
+					chunks.set(k, chunk);
+				}
+				chunk.put(j, b);
+				len++;
+			}
+		}
+
+		/**
+		 * Remove all bytes, but keep the allocated memory for reuse
+		 */
+		void clear() {
+			len = 0;
+		}
+
+		/**
+		 * Write all bytes to a file channel at its current position
+		 * @param channel  channel to write
+		 * @throws IOException  if any IO error occurs
+		 */
+		void write(FileChannel channel) throws IOException {
+			for(int k = 0; (long) k << CHUNK_SHIFT < len; k++) {
+				ByteBuffer buf = chunks.get(k).duplicate();
+				buf.clear();
+				buf.position((int) Math.min(CHUNK_LEN, len - ((long) k << CHUNK_SHIFT)));
+				writeFully(channel, buf);
+			}
+		}
+
+		/**
+		 * @return  estimated heap memory usage in bytes, 0 if mapped
+		 */
+		long getMemoryUsage() {
+			return isMapped ? 0 : memUsage;
+		}
+
+		private static final int CHUNK_SHIFT = 26;
+		private static final int CHUNK_LEN = 1 << CHUNK_SHIFT; // 64 MB per chunk or mapped window
+		private static final long CHUNK_MASK = CHUNK_LEN - 1;
+		private final List<ByteBuffer> chunks;
+		private long len;
+		private long memUsage; // capacity of the heap chunks
+		private boolean isMapped;
+	}
+
+	/* binary index file layout, all in little-endian:
+	 * header: magic, version, directory offset (long), AF-tag (int length + ASCII)
+	 * per-chromosome sections: idFrom, idTo, alleleFrom, alleleTo (long pool offsets),
+	 *   starts, ends, refLens, altFrom (nVars + 1), altPenalties, types, pool
+	 * directory: nChroms, and for each chromosome: name (int length + ASCII), nVars, nAlts, poolLen (long), maxSpan, offset (long)
+	 */
+	private static final int INDEX_MAGIC = 0x49564241; // "ABVI" in little-endian
+	private static final int INDEX_VERSION = 2;
+	private static final int HEADER_LEN = 4 + 4 + 8 + 4; // magic, version, dirOffset, AF-tag length
+	private static final int MAX_NAME_LEN = 1024;
+	private static final int SECTION_ALIGN = 8;
+	private static final int WRITE_CHUNK_LEN = 1 << 20;
+	private static final int INIT_CAPACITY = 16;
+	private final String AFTag;
+	private final Map<String, ChromVariants> chrVars = new HashMap<String, ChromVariants>();
+	private long mappedLen;
+	private long memUsage; // estimated heap memory usage of all chromosomes
+}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to collapse FASTQ reads/pairs into NR-tags/NR-pairs with compact primitive storage
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import static edu.upenn.egricelab.AlignerBoost.utils.Stats.ASCII_OFFSET;
+
+import java.util.Arrays;
+
+/** An open-addressing hash table of NR-tags (or NR-pairs), keyed by the 2-bit packed read (and mate) sequences.
+ * A sequence with any base other than upper-case A/C/G/T is escaped and stored as packed raw bytes instead.
+ * The packed keys and the per-base quality sums of all NR-tags are stored in slabs of primitive arrays,
+ * so there are no per-tag objects or Strings, and the NR-tags are kept in the order they are first seen.
+ * An NRTable is not thread-safe.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+class NRTable {
+	/**
+	 * Construct an empty NRTable
+	 * @param isPaired  whether this table holds NR-pairs instead of NR-tags
+	 * @param asciiOffset  ascii-offset of the input phred scores
+	 */
+	public NRTable(boolean isPaired, int asciiOffset) {
+		this.isPaired = isPaired;
+		this.asciiOffset = asciiOffset;
+		slots = new int[INIT_CAPACITY * 2];
+		hashes = new int[INIT_CAPACITY];
+		clones = new int[INIT_CAPACITY];
+		keyFrom = new long[INIT_CAPACITY];
+		qualFrom = new long[INIT_CAPACITY];
+	}
+
+	/**
+	 * Add a single-end read to this table
+	 * @param read  buffer of the read
+	 * @param seqFrom  start of the read seq in the buffer
+	 * @param qualFrom  start of the read quality in the buffer
+	 * @param len  read length
+	 */
+	public void add(byte[] read, int seqFrom, int qualFrom, int len) {
+		assert !isPaired;
+		add(read, seqFrom, qualFrom, len, null, 0, 0, 0);
+	}
+
+	/**
+	 * Add a read pair to this table
+	 * @param read  buffer of the forward read
+	 * @param readSeqFrom  start of the forward read seq in its buffer
+	 * @param readQualFrom  start of the forward read quality in its buffer
+	 * @param readLen  forward read length
+	 * @param mate  buffer of the reverse mate, or null if not paired
+	 * @param mateSeqFrom  start of the reverse mate seq in its buffer
+	 * @param mateQualFrom  start of the reverse mate quality in its buffer
+	 * @param mateLen  reverse mate length
+	 */
+	public void add(byte[] read, int readSeqFrom, int readQualFrom, int readLen,
+			byte[] mate, int mateSeqFrom, int mateQualFrom, int mateLen) {
+		if(mate == null)
+			mateLen = 0;
+		// encode the key into keyBuf
+		keyLen = 1;
+		boolean readRaw = encode(read, readSeqFrom, readLen);
+		boolean mateRaw = mate != null && encode(mate, mateSeqFrom, mateLen);
+		keyBuf[0] = (long) readLen << 32 | (long) mateLen << 2 | (mateRaw ? 2 : 0) | (readRaw ? 1 : 0);
+		int hash = hashKey();
+		// find the NR-tag by linear probing
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		int tag;
+		while((tag = slots[slot] - 1) >= 0 && !(hashes[tag] == hash && keyEquals(tag)))
+			slot = (slot + 1) & mask;
+		if(tag < 0) { // a new NR-tag
+			tag = newTag(hash);
+			slots[slot] = tag + 1;
+			if(nTags * 4 > slots.length * 3) // keep load factor <= 0.75
+				rehash();
+		}
+		clones[tag]++;
+		long from = qualFrom[tag];
+		for(int i = 0; i < readLen; i++)
+			quals.add(from + i, read[readQualFrom + i] - asciiOffset);
+		from += readLen;
+		for(int i = 0; i < mateLen; i++)
+			quals.add(from + i, mate[mateQualFrom + i] - asciiOffset);
+	}
+
+	/**
+	 * @return  number of NR-tags in this table
+	 */
+	public int size() {
+		return nTags;
+	}
+
+	/**
+	 * @param tag  NR-tag index, in the order first seen
+	 * @return  clone of this NR-tag
+	 */
+	public int getClone(int tag) {
+		return clones[tag];
+	}
+
+	/**
+	 * @param tag  NR-tag index
+	 * @return  (forward) read seq of this NR-tag
+	 */
+	public String getSeq(int tag) {
+		long header = keys.get(keyFrom[tag]);
+		return decode(keyFrom[tag] + 1, (int) (header >>> 32), (header & 1) != 0);
+	}
+
+	/**
+	 * @param tag  NR-tag index
+	 * @return  reverse mate seq of this NR-pair
+	 */
+	public String getMateSeq(int tag) {
+		long header = keys.get(keyFrom[tag]);
+		int readLen = (int) (header >>> 32);
+		boolean readRaw = (header & 1) != 0;
+		return decode(keyFrom[tag] + 1 + getNumWords(readLen, readRaw),
+				(int) (header & 0xFFFFFFFFL) >>> 2, (header & 2) != 0);
+	}
+
+	/**
+	 * @param tag  NR-tag index
+	 * @return  collapsed (forward) read quality string
+	 */
+	public String getNRQual(int tag) {
+		return getNRQual(qualFrom[tag], (int) (keys.get(keyFrom[tag]) >>> 32));
+	}
+
+	/**
+	 * @param tag  NR-tag index
+	 * @return  collapsed reverse mate quality string
+	 */
+	public String getMateNRQual(int tag) {
+		long header = keys.get(keyFrom[tag]);
+		int readLen = (int) (header >>> 32);
+		return getNRQual(qualFrom[tag] + readLen, (int) (header & 0xFFFFFFFFL) >>> 2);
+	}
+
+	/**
+	 * @return  estimated memory usage in bytes
+	 */
+	public long getMemoryUsage() {
+		return 4L * slots.length + (4 + 4 + 8 + 8) * (long) hashes.length + keys.getMemoryUsage() + quals.getMemoryUsage();
+	}
+
+	/**
+	 * encode a sequence after the current key in keyBuf, 2-bit packed if possible, or escaped as raw bytes
+	 * @return  true if this sequence is escaped
+	 */
+	private boolean encode(byte[] buf, int from, int len) {
+		boolean isRaw = false;
+		for(int i = from; i < from + len && !isRaw; i++)
+			isRaw = buf[i] < 0 || BASE_CODE[buf[i]] < 0;
+		int nWords = getNumWords(len, isRaw);
+		if(keyLen + nWords > keyBuf.length)
+			keyBuf = Arrays.copyOf(keyBuf, Math.max(keyLen + nWords, keyBuf.length * 2));
+		int perWord = isRaw ? 8 : 32;
+		int bits = isRaw ? 8 : 2;
+		for(int w = 0; w < nWords; w++) {
+			long word = 0;
+			for(int i = from + w * perWord, end = Math.min(from + len, i + perWord), shift = 0; i < end; i++, shift += bits)
+				word |= (isRaw ? buf[i] & 0xFFL : BASE_CODE[buf[i]]) << shift;
+			keyBuf[keyLen++] = word;
+		}
+		return isRaw;
+	}
+
+	/**
+	 * decode a sequence from the key slab
+	 */
+	private String decode(long from, int len, boolean isRaw) {
+		char[] seq = new char[len];
+		int perWord = isRaw ? 8 : 32;
+		for(int i = 0; i < len; i++) {
+			long word = keys.get(from + i / perWord);
+			seq[i] = isRaw ? (char) (word >>> (i % 8 * 8) & 0xFF) : BASES[(int) (word >>> (i % 32 * 2) & 3)];
+		}
+		return new String(seq);
+	}
+
+	private String getNRQual(long from, int len) {
+		char[] qual = new char[len];
+		for(int i = 0; i < len; i++) {
+			int b = quals.get(from + i) + ASCII_OFFSET;
+			if(b > Byte.MAX_VALUE)
+				b = Byte.MAX_VALUE;
+			qual[i] = (char) b;
+		}
+		return new String(qual);
+	}
+
+	private int hashKey() {
+		long h = 0;
+		for(int i = 0; i < keyLen; i++) {
+			h = (h ^ keyBuf[i]) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 32;
+		}
+		return (int) h;
+	}
+
+	private boolean keyEquals(int tag) {
+		long from = keyFrom[tag];
+		for(int i = 0; i < keyLen; i++)
+			if(keys.get(from + i) != keyBuf[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * create a new NR-tag with the key in keyBuf and zero clone and quality sums
+	 * @return  index of the new NR-tag
+	 */
+	private int newTag(int hash) {
+		if(nTags == hashes.length) {
+			int capacity = nTags + (nTags >> 1);
+			hashes = Arrays.copyOf(hashes, capacity);
+			clones = Arrays.copyOf(clones, capacity);
+			keyFrom = Arrays.copyOf(keyFrom, capacity);
+			qualFrom = Arrays.copyOf(qualFrom, capacity);
+		}
+		hashes[nTags] = hash;
+		keyFrom[nTags] = keys.append(keyBuf, keyLen);
+		long header = keyBuf[0];
+		qualFrom[nTags] = quals.extend((int) (header >>> 32) + ((int) (header & 0xFFFFFFFFL) >>> 2));
+		return nTags++;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+		for(int tag = 0; tag < nTags; tag++) {
+			int slot = hashes[tag] & mask;
+			while(slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = tag + 1;
+		}
+	}
+
+	private static int getNumWords(int len, boolean isRaw) {
+		return isRaw ? (len + 7) / 8 : (len + 31) / 32;
+	}
+
+	/**
+	 * A nested static class member for a growable long array stored in fixed-size slabs
+	 * @author Qi Zheng
+	 */
+	private static class LongSlabs {
+		long get(long idx) {
+			return slabs[(int) (idx >>> SLAB_BITS)][(int) (idx & SLAB_MASK)];
+		}
+
+		/**
+		 * append values to the end
+		 * @return  start index of the appended values
+		 */
+		long append(long[] vals, int n) {
+			long from = length;
+			for(int i = 0; i < n; i++) {
+				int slab = (int) (length >>> SLAB_BITS);
+				if(slab == nSlabs)
+					addSlab();
+				slabs[slab][(int) (length++ & SLAB_MASK)] = vals[i];
+			}
+			return from;
+		}
+
+		/**
+		 * @return  memory of the used values, so a small table is not over-estimated by its first slab
+		 */
+		long getMemoryUsage() {
+			return 8L * length;
+		}
+
+		private void addSlab() {
+			if(nSlabs == slabs.length)
+				slabs = Arrays.copyOf(slabs, nSlabs * 2);
+			slabs[nSlabs++] = new long[1 << SLAB_BITS];
+		}
+
+		private long[][] slabs = new long[1][];
+		private int nSlabs;
+		private long length;
+	}
+
+	/**
+	 * A nested static class member for a growable int array stored in fixed-size slabs
+	 * @author Qi Zheng
+	 */
+	private static class IntSlabs {
+		int get(long idx) {
+			return slabs[(int) (idx >>> SLAB_BITS)][(int) (idx & SLAB_MASK)];
+		}
+
+		void add(long idx, int val) {
+			slabs[(int) (idx >>> SLAB_BITS)][(int) (idx & SLAB_MASK)] += val;
+		}
+
+		/**
+		 * extend n zeros to the end
+		 * @return  start index of the extended values
+		 */
+		long extend(int n) {
+			long from = length;
+			length += n;
+			while(length > (long) nSlabs << SLAB_BITS) {
+				if(nSlabs == slabs.length)
+					slabs = Arrays.copyOf(slabs, nSlabs * 2);
+				slabs[nSlabs++] = new int[1 << SLAB_BITS];
+			}
+			return from;
+		}
+
+		/**
+		 * @return  memory of the used values, so a small table is not over-estimated by its first slab
+		 */
+		long getMemoryUsage() {
+			return 4L * length;
+		}
+
+		private int[][] slabs = new int[1][];
+		private int nSlabs;
+		private long length;
+	}
+
+	private static final int INIT_CAPACITY = 1024;
+	private static final int SLAB_BITS = 16;
+	private static final long SLAB_MASK = (1 << SLAB_BITS) - 1;
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+	private static final long[] BASE_CODE = new long[128]; // 2-bit code of upper-case A/C/G/T, or -1 for others
+	static {
+		Arrays.fill(BASE_CODE, -1);
+		BASE_CODE['A'] = 0;
+		BASE_CODE['C'] = 1;
+		BASE_CODE['G'] = 2;
+		BASE_CODE['T'] = 3;
+	}
+
+	private final boolean isPaired;
+	private final int asciiOffset;
+	private int nTags;
+	private int[] slots; // NR-tag index + 1 of each slot, or 0 if empty
+	private int[] hashes;
+	private int[] clones;
+	private long[] keyFrom; // start of each packed key in keys
+	private long[] qualFrom; // start of each quality sums in quals
+	private final LongSlabs keys = new LongSlabs();
+	private final IntSlabs quals = new IntSlabs();
+	private long[] keyBuf = new long[16]; // encoded key of the current read
+	private int keyLen;
+}
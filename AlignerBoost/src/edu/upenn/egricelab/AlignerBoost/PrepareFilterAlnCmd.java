@@ -69,6 +69,7 @@ public class PrepareFilterAlnCmd {
 				String maxHit = NGSExpDesign.supportMaxHit(conf.aligner) ? " -N " + conf.maxHit : " "; 
 				String knownSnp = conf.knownSnpFile != null ? " --known-SNP " + conf.knownSnpFile + " " : " ";
 				String fixMD = conf.aligner.equals("seqalto") ? " --fix-MD " : " ";
+				String nr = conf.doNR ? " --nr " : " ";
 				String ignoreClip = conf.hasSpliced() && !NGSExpDesign.isRNAAligner(conf.aligner) ? " --ignore-clip-penalty " : " ";
 				String fragLen = conf.isPaired && !conf.hasSpliced ? " --min-frag-len " + conf.minFragLen + " --max-frag-len " + conf.maxFragLen + " " : " ";
 				String est = !conf.isPaired ? " " : !conf.hasSpliced ? " " : " --no-estimate ";
@@ -83,7 +84,7 @@ public class PrepareFilterAlnCmd {
 						" --seed-len " + conf.seedLen + " --max-sensitivity " + 
 						dp + silent + maxHit + ignoreClip + fragLen + est +
 						" --min-mapQ " + conf.minMapQ + " --max-best " + conf.maxBest + " --max-report " + conf.maxReport +
-						" --sort-method " + conf.sortMethod + " " + knownSnp + fixMD + conf.otherFilterOpts + " -in " + inFn + " -out " + outFn;
+						" --sort-method " + conf.sortMethod + " " + knownSnp + fixMD + nr + conf.otherFilterOpts + " -in " + inFn + " -out " + outFn;
 				if(!(new File(outFn)).exists())
 					out.write(cmd + newLine);
 				else {
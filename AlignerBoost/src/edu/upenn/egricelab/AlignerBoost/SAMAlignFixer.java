@@ -20,8 +20,8 @@
  * a class to provide static method to filter and fix SAM/BAM alignment
  */
 package edu.upenn.egricelab.AlignerBoost;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.regex.*;
 
 import edu.upenn.egricelab.AlignerBoost.utils.IUPACNucl;
 import edu.upenn.egricelab.AlignerBoost.utils.Stats;
@@ -43,8 +43,11 @@ import htsjdk.samtools.util.CloseableIterator;
  * XF   i     actual insert from (start) relative to reference
  * XI   f     alignment identity as 1 - (YX + YG) / XL
  * XH   Z     alignment likelihood given this mapping loc and quality, in string format to preserve double precision
+ *            or f (float) if TYPED_TAGS is set
  * XV   Z     known SNVs (if any) used in calculating XH
- * XP   Z     alignment posterior probability in string 
+ * XP   Z     alignment posterior probability in string, or f (float) if TYPED_TAGS is set
+ * The likelihood and posterior probability are also kept as primitives in a transient AlignScore of each SAMRecord,
+ * so they never need to be parsed back from the tags during filtering
  * YL	i     seed length for calculating seed mismatches and indels
  * YX   i     # of seed mismatches
  * YG   i     # of seed indels
@@ -108,13 +111,48 @@ public class SAMAlignFixer {
 	}
 
 	/**
-	 * Fix a SAMRecord by adding the AlignerBoost-specific tags above, and optionally fix the alignment by 1DP 
+	 * Test whether a SAMRecord can be fixed by {@link #fixSAMRecord(SAMRecord, VCFFileReader, boolean)}
+	 * @param record  SAMRecord alignment to be tested
+	 * @return  false if this SAMRecord is not-mapped or empty, and will be ignored by fixSAMRecord
+	 */
+	public static boolean isFixableSAMRecord(SAMRecord record) {
+		if(record.getReadUnmappedFlag() || record.getReferenceIndex() == -1 || record.getReadLength() == 0) // non mapped read or 0-length read
+			return false;
+		return calcAlnLenByCigar(record.getCigar()) != 0;
+	}
+
+	/**
+	 * Fix a SAMRecord by adding the AlignerBoost-specific tags above, and optionally fix the alignment by 1DP
 	 * @param record  SAMRecord alignment to be fixed
 	 * @param knownVCF  knownSnp to look at, ignored if null
 	 * @param do1DP  whether do additional 1DP fixing?
 	 * @return  false if this SAMRecord does not need to be fixed because it is not-mapped or empty.
 	 */
 	public static boolean fixSAMRecord(SAMRecord record, VCFFileReader knownVCF, boolean do1DP) {
+		return fixSAMRecord(record, null, knownVCF, do1DP);
+	}
+
+	/**
+	 * Fix a SAMRecord by adding the AlignerBoost-specific tags above, and optionally fix the alignment by 1DP
+	 * @param record  SAMRecord alignment to be fixed
+	 * @param knownVars  in-memory known variants to look at, ignored if null
+	 * @param do1DP  whether do additional 1DP fixing?
+	 * @return  false if this SAMRecord does not need to be fixed because it is not-mapped or empty.
+	 */
+	public static boolean fixSAMRecord(SAMRecord record, KnownVariantTable knownVars, boolean do1DP) {
+		return fixSAMRecord(record, knownVars, null, do1DP);
+	}
+
+	/**
+	 * Fix a SAMRecord with known variants either from an in-memory table or a VCF file
+	 * @param record  SAMRecord alignment to be fixed
+	 * @param knownVars  in-memory known variants to look at, or null to use knownVCF
+	 * @param knownVCF  knownSnp to look at, ignored if null
+	 * @param do1DP  whether do additional 1DP fixing?
+	 * @return  false if this SAMRecord does not need to be fixed because it is not-mapped or empty.
+	 */
+	private static boolean fixSAMRecord(SAMRecord record, KnownVariantTable knownVars, VCFFileReader knownVCF,
+			boolean do1DP) {
 		int readLen = record.getReadLength();
 		if(record.getReadUnmappedFlag() || record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
 			return false;
@@ -127,51 +165,76 @@ public class SAMAlignFixer {
 		// valid cigar first
 		assert isValidCigarLength(cigar, readLen);
 		
+		// get the reusable working buffers of this thread
+		StatusBuffer buf = localBuffer.get();
+		buf.ensureCapacity(alnLen);
 		// get align status index
-		char[] status = getAlnStatusBySAMRecord(record, alnLen);
-		// get InsertRegion from either Cigar or 1DP
-		InsertRegion oldInsReg = calcInsertRegionByAlnStatus(status);
-		int insertFrom = oldInsReg.from; // 0-based
-		int insertTo = oldInsReg.to; // 1-based
+		byte[] status = buf.status;
+		getAlnStatusBySAMRecord(record, status, alnLen, buf.tokenizer);
+		// get insert region from either Cigar or 1DP
+		int oldInsertFrom = calcInsertFromByAlnStatus(status, alnLen); // 0-based
+		int oldInsertTo = calcInsertToByAlnStatus(status, alnLen); // 1-based
+		int insertFrom = oldInsertFrom;
+		int insertTo = oldInsertTo;
 		// alignment need to be fixed after 1DP
 		if(do1DP) {
-			InsertRegion newInsReg = calcInsertRegionBy1DP(status);
-			if(!(oldInsReg.from == newInsReg.from && oldInsReg.to == newInsReg.to)) { // if insertRegion changed
-				insertFrom = newInsReg.from;
-				insertTo = newInsReg.to;
+			calcInsertRegionBy1DP(status, alnLen, buf);
+			if(!(oldInsertFrom == buf.insertFrom1DP && oldInsertTo == buf.insertTo1DP)) { // if insertRegion changed
+				insertFrom = buf.insertFrom1DP;
+				insertTo = buf.insertTo1DP;
 				// fix Cigar and misStr
-				fixSAMRecordCigarMisStr(record, alnLen, status, newInsReg, oldInsReg);
+				fixSAMRecordCigarMisStr(record, alnLen, status, insertFrom, insertTo, oldInsertFrom, oldInsertTo, buf.tokenizer);
 				// fix alignStart
-				record.setAlignmentStart(record.getAlignmentStart() + insertFrom - oldInsReg.from);
+				record.setAlignmentStart(record.getAlignmentStart() + insertFrom - oldInsertFrom);
 			}
 		}
 		int insertLen = insertTo - insertFrom;
 
 
 		// set log-likelihood tag
-		double log10lik = calcAlignLik(status, record.getBaseQualities(), cigar); // likelihood w/o knownSnp
-		char[] bestStatus = status; // record the best likelihood status
-		if(knownVCF != null) { // try every alternative alignment w/ known varation
-			String qSeq = record.getReadString();
-			
-			CloseableIterator<VariantContext> vars = knownVCF.query(record.getReferenceName(), record.getAlignmentStart(), record.getAlignmentEnd());
-			while(vars.hasNext()) {
-				VariantContext var = vars.next();
-				char[] updatedStatus = status.clone(); // make a new copy of the old status
-				int[] penaltyScore = new int[status.length];
-				Arrays.fill(penaltyScore, -1); // indicating default value
-				if(updateKnownSnv(updatedStatus, penaltyScore, record.getReferenceName(), record.getAlignmentStart(), alnLen, qSeq, var) > 0) { // is a ready known SNP
-					double updatedLog10lik = calcAlignLik(updatedStatus, record.getBaseQualities(), cigar, penaltyScore);
+		byte[] qual = record.getBaseQualities();
+		double log10lik = calcAlignLik(status, alnLen, qual, cigar); // likelihood w/o knownSnp
+		byte[] bestStatus = status; // record the best likelihood status
+		if(knownVars != null || knownVCF != null) { // try every alternative alignment w/ known varation
+			byte[] qSeq = record.getReadBases();
+			byte[] updatedStatus = buf.updatedStatus;
+			int[] penaltyScore = buf.penaltyScore;
+			String chr = record.getReferenceName();
+			int alignStart = record.getAlignmentStart();
+			int alignEnd = record.getAlignmentEnd();
+
+			KnownVariantTable.ChromVariants vars;
+			if(knownVars != null)
+				vars = knownVars.getVariants(chr);
+			else { // query the VCF file, and hold the overlapping variants in the buffer
+				vars = buf.queriedVars;
+				vars.clear();
+				CloseableIterator<VariantContext> it = knownVCF.query(chr, alignStart, alignEnd);
+				while(it.hasNext()) {
+					VariantContext var = it.next();
+					if(!var.isFiltered())
+						vars.add(var, AFTag);
+				}
+				it.close();
+			}
+			// check each variant overlapping this alignment, in coordinate order
+			for(int v = vars != null ? vars.firstOverlap(alignStart) : 0; vars != null && v < vars.size() && vars.getStart(v) <= alignEnd; v++) {
+				if(vars.getEnd(v) < alignStart)
+					continue;
+				System.arraycopy(status, 0, updatedStatus, 0, alnLen); // reset to the old status
+				Arrays.fill(penaltyScore, 0, alnLen, -1); // indicating default value
+				if(updateKnownSnv(status, updatedStatus, penaltyScore, alignStart, alnLen, qSeq, vars, v) > 0) { // is a ready known SNP
+					double updatedLog10lik = calcAlignLik(updatedStatus, alnLen, qual, cigar, penaltyScore);
 					if(updatedLog10lik > log10lik) { // a better likelihood
-						record.setAttribute("XV", var.getContig() + ":" + var.getStart() + "-" + var.getEnd() + ":" + var.getID());
+						record.setAttribute("XV", chr + ":" + vars.getStart(v) + "-" + vars.getEnd(v) + ":" + vars.getID(v));
 						log10lik = updatedLog10lik; // update
-						bestStatus = updatedStatus; // update
+						bestStatus = buf.bestStatus; // update
+						System.arraycopy(updatedStatus, 0, bestStatus, 0, alnLen);
 					}
 				}
 			} // end each var
-			vars.close();
 		}
-		record.setAttribute("XH", Double.toString(log10lik)); // use the best likelihood
+		setAlignLikelihood(record, log10lik); // use the best likelihood
 
 		// calculate mismatches and indels
 		boolean isMinus = record.getReadNegativeStrandFlag();
@@ -325,14 +388,19 @@ public class SAMAlignFixer {
 	}*/
 
 	/** get align status ('M', '=', 'X', 'I', 'S') given cigar and mismatch tag, if exists
-	 * @return a char array index with length = alnLen, and always in the reference orientation
+	 * @param record  SAMRecord to look at
+	 * @param status  status buffer to fill, with at least alnLen capacity
+	 * @param alnLen  alignment length
+	 * @param tokens  reusable tokenizer for the MD:Z string
+	 * the status index is filled with length = alnLen, and always in the reference orientation
+	 * @throws IllegalArgumentException  if the MD:Z string doesn't start with a number
 	 */
-	private static char[] getAlnStatusBySAMRecord(SAMRecord record, int alnLen) {
+	private static void getAlnStatusBySAMRecord(SAMRecord record, byte[] status, int alnLen, MisStrTokenizer tokens)
+			throws IllegalArgumentException {
 		Cigar cigar = record.getCigar();
 		String misStr = record.getStringAttribute("MD");
 
 		// Initiate align status index
-		char[] status = new char[alnLen];
 		int shift = 0;
 		// build status from cigar first
 		for(CigarElement cigEle : cigar.getCigarElements()) {
@@ -340,8 +408,8 @@ public class SAMAlignFixer {
 			CigarOperator cigOp = cigEle.getOperator();
 			switch(cigOp) {
 			case M: case EQ: case X: case I: case D: case S:
-				for(int i = 0; i < cigLen; i++)
-					status[shift++] = (char) CigarOperator.enumToCharacter(cigOp);
+				Arrays.fill(status, shift, shift + cigLen, CigarOperator.enumToCharacter(cigOp));
+				shift += cigLen;
 				break;
 			default: // H, N or P, do nothing
 				break;
@@ -351,48 +419,49 @@ public class SAMAlignFixer {
 		if(misStr != null) {
 			// set the pos to the first non 'S'
 			int pos = 0;
-			while(status[pos] == 'S')
+			while(pos < alnLen && status[pos] == 'S')
 				pos++;
-			Matcher match1 = misPat1.matcher(misStr);
-			match1.find();
-			pos = advanceReferencePos(status, pos, Integer.parseInt(match1.group(1)));
-			String other = match1.group(2);
-			Matcher match2 = misPat2.matcher(other); // parse other part
-			while(match2.find()) {
-				String misSeq = match2.group(1);
-				int followLen = Integer.parseInt(match2.group(2));
-				if(misSeq.length() == 1) { // a mismatch
-					/*if(!(status[pos] == '=' || status[pos] == 'M')) {
-						System.out.println(pos + ":" + status[pos] + " " + match2.group());
-						System.out.println(record.getSAMString());
-						System.out.println(inFile);
-						System.exit(-1);
-					}*/
+			tokens.reset(misStr, false);
+			if(tokens.next() != MisStrTokenizer.SPAN || tokens.start != 0) // MD:Z must start with a number
+				throw new IllegalArgumentException("Invalid MD:Z tag '" + misStr + "' found in " + record.getReadName());
+			pos = advanceReferencePos(status, alnLen, pos, tokens.span());
+			int type = tokens.next();
+			while(type != MisStrTokenizer.END) {
+				if(type == MisStrTokenizer.SPAN) { // a span not following a mismatch or deletion, ignored
+					type = tokens.next();
+					continue;
+				}
+				int misType = type;
+				int misLen = tokens.length();
+				int misEnd = tokens.end;
+				type = tokens.next();
+				if(!(type == MisStrTokenizer.SPAN && tokens.start == misEnd)) // not followed by a span, ignored
+					continue;
+				if(misType == MisStrTokenizer.MISMATCH) { // a mismatch
 					assert status[pos] == '=' || status[pos] == 'M';
 					status[pos] = 'X';
-					pos = advanceReferencePos(status, pos);
+					pos = advanceReferencePos(status, alnLen, pos);
 				}
 				else // a deletion
-					pos += misSeq.length() - 1;
+					pos += misLen - 1;
 				// advance the pos by followLen relative to read
-				pos = advanceReferencePos(status, pos, followLen);
-				//pos += followLen;
+				pos = advanceReferencePos(status, alnLen, pos, tokens.span());
+				type = tokens.next();
 			}
 			assert pos <= alnLen;
 		}
 /*		// reverse status index, if on minus strand, so it is always in read orientation
 		if(isMinus)
 			reverse(status);*/
-		return status;
 	}
 /*
 
 	/** private method to advance reference pos to a given step, ignore I (insertion) that is not present on reference
 	 */
-	private static int advanceReferencePos(char[] status, int oldPos, int step) {
+	private static int advanceReferencePos(byte[] status, int alnLen, int oldPos, int step) {
 		int shift = 0;
 		int pos = oldPos;
-		while(pos < status.length) {
+		while(pos < alnLen) {
 			if(shift == step && status[pos] != 'I')
 				break;
 			if(status[pos++] != 'I') // insertion not present on reference
@@ -401,44 +470,51 @@ public class SAMAlignFixer {
 		return pos;
 	}
 
-	private static int advanceReferencePos(char[] status, int oldPos) {
-		return advanceReferencePos(status, oldPos, 1);
+	private static int advanceReferencePos(byte[] status, int alnLen, int oldPos) {
+		return advanceReferencePos(status, alnLen, oldPos, 1);
 	}
 
 	/**
-	 * calculate insert region with given alnStatus
-	 * @param alnStatus  array of char index of insert status
-	 * @return insertRegion
+	 * calculate insert from with given alnStatus
+	 * @param status  array of byte index of insert status
+	 * @param alnLen  alignment length
+	 * @return 0-based insert from
 	 */
-	private static InsertRegion calcInsertRegionByAlnStatus(char[] status) {
-		if(status == null || status.length == 0)
-			return null;
-		int alnLen = status.length;
-		int from = 0;
-		int to = alnLen;
+	private static int calcInsertFromByAlnStatus(byte[] status, int alnLen) {
+		int from;
 		// determine from by searching alnStatus 5'
 		for(from = 0; from < alnLen && status[from] == 'S'; from++)
 			continue;
+		return from;
+	}
+
+	/**
+	 * calculate insert to with given alnStatus
+	 * @param status  array of byte index of insert status
+	 * @param alnLen  alignment length
+	 * @return 1-based insert to
+	 */
+	private static int calcInsertToByAlnStatus(byte[] status, int alnLen) {
+		int to;
 		// determine to by searching alnStatus 3'
 		for(to = alnLen; to > 0 && status[to - 1] == 'S'; to--)
 			continue;
-		return new InsertRegion(from, to);
+		return to;
 	}
 	
 	/**
-	 * calculate insert region with given alnStatus, using original status or by 1DP
-	 * @param alnStatus  array of char index of insert status
-	 * @param do1DP  whether to do1DP
-	 * @return insertRegion
+	 * calculate insert region with given alnStatus by 1DP,
+	 * the result is stored in the insertFrom1DP and insertTo1DP of the given buffer
+	 * @param status  array of byte index of insert status
+	 * @param alnLen  alignment length
+	 * @param buf  working buffer of this thread
 	 */
-	private static InsertRegion calcInsertRegionBy1DP(char[] status) {
-		if(status == null || status.length == 0)
-			return null;
-		int alnLen = status.length;
+	private static void calcInsertRegionBy1DP(byte[] status, int alnLen, StatusBuffer buf) {
 		int from = 0;
 		int to = alnLen;
 		// do 1DP to determine insert region
-		int[] dpScore = new int[alnLen + 1]; // Position 0 is dummy
+		int[] dpScore = buf.dpScore; // Position 0 is dummy
+		dpScore[0] = 0;
 		int maxScore = Integer.MIN_VALUE;
 		// dynamic-programming to get dp-score, highest score and insert region simultaneously
 		for(int i = 0; i < alnLen; i++) {
@@ -469,7 +545,8 @@ public class SAMAlignFixer {
 		// track back to get from
 		for(from = to; from >= 0 && dpScore[from] > 0; from--)
 			continue;
-		return new InsertRegion(from, to);
+		buf.insertFrom1DP = from;
+		buf.insertTo1DP = to;
 	}
 
 	/** Calculate refFrom from from
@@ -477,7 +554,7 @@ public class SAMAlignFixer {
 	 * @param from  align from
 	 * @return refFrom relative to the reference
 	 */
-	private static int calcReferenceFrom(char[] status, int from) {
+	private static int calcReferenceFrom(byte[] status, int from) {
 		int refFrom = from;
 		for(int i = 0; i < from; i++)
 			if(status[i] == 'I') // I
@@ -490,7 +567,7 @@ public class SAMAlignFixer {
 	 * @param to  align to
 	 * @return refTo relative to the reference
 	 */
-	private static int calcReferenceTo(char[] status, int to) {
+	private static int calcReferenceTo(byte[] status, int to) {
 		int refTo = to;
 		for(int i = 0; i < to; i++)
 			if(status[i] == 'I') // I
@@ -506,21 +583,21 @@ public class SAMAlignFixer {
 		String misStr = record.getStringAttribute("MD");
 		if(misStr == null)
 			return false;
-		Matcher match4 = misPat4.matcher(misStr); // parse the entire misStr
+		MisStrTokenizer tokens = localBuffer.get().tokenizer;
+		tokens.reset(misStr, true); // parse the entire misStr, with consecutive mismatches merged
 		StringBuilder newMisStr = new StringBuilder();
 		boolean fixedFlag = false;
-		while(match4.find()) {
-			String word = match4.group();
-			if(word.length() > 1 && !Character.isDigit(word.charAt(0)) && word.charAt(0) != '^') { // a consecutive mismatch string, not a valid format
-				for(int i = 0; i < word.length(); i++) {
-					newMisStr.append(word.charAt(i));
-					if(i != word.length() - 1)
+		for(int type = tokens.next(); type != MisStrTokenizer.END; type = tokens.next()) {
+			if(type == MisStrTokenizer.MISMATCH && tokens.length() > 1) { // a consecutive mismatch string, not a valid format
+				for(int i = tokens.start; i < tokens.end; i++) {
+					newMisStr.append(misStr.charAt(i));
+					if(i != tokens.end - 1)
 						newMisStr.append(0);
 				}
 				fixedFlag = true;
 			}
 			else
-				newMisStr.append(word);
+				newMisStr.append(misStr, tokens.start, tokens.end);
 		}
 		/* fixed the misStr start and end */
 		if(Character.isLetter(newMisStr.charAt(0))) {
@@ -541,12 +618,10 @@ public class SAMAlignFixer {
 	/** Fix SAMRecord Cigar and mismatch tag (MD:Z), given the insert from and insert length
 	 *
 	 */
-	private static void fixSAMRecordCigarMisStr(SAMRecord record, int alnLen, char[] status,
-			InsertRegion newInsReg, InsertRegion oldInsReg) {
-		if(newInsReg.from == oldInsReg.from && newInsReg.to == oldInsReg.to) // no fix needed if the insert region doesn't change
+	private static void fixSAMRecordCigarMisStr(SAMRecord record, int alnLen, byte[] status,
+			int from, int to, int oldFrom, int oldTo, MisStrTokenizer tokens) {
+		if(from == oldFrom && to == oldTo) // no fix needed if the insert region doesn't change
 			return;
-		int from = newInsReg.from; // 0-based
-		int to = newInsReg.to; // 1-based
 		//int readLen = record.getReadLength();
 		// calculate readFrom and readTo
 /*		int readFrom = calcReadInsertFrom(status, from, alnLen);
@@ -601,12 +676,11 @@ public class SAMAlignFixer {
 		String oldMisStr = record.getStringAttribute("MD");
 		if(oldMisStr != null) {
 			StringBuilder newMisStr = new StringBuilder(); // use StringBuilder for performance
-			Matcher match = misPat3.matcher(oldMisStr);
-			int refPos = oldInsReg.from; // relative pos to the reference, excluding 'I'
-			while(match.find()) {
-				String s = match.group();
-				if(Stats.isDecimal(s)) { // a span met
-					int span = Integer.parseInt(s);
+			tokens.reset(oldMisStr, false);
+			int refPos = oldFrom; // relative pos to the reference, excluding 'I'
+			for(int type = tokens.next(); type != MisStrTokenizer.END; type = tokens.next()) {
+				if(type == MisStrTokenizer.SPAN) { // a span met
+					int span = tokens.span();
 					if(refPos + span <= refFrom || refPos >= refTo) // completely in soft-clipped region
 						; // do nothing
 					else if(refPos < refTo && refPos + span > refFrom) { // partially clipped
@@ -620,13 +694,13 @@ public class SAMAlignFixer {
 				}
 				else { // a mismatch or deletion tag
 					if(refPos >= refFrom && refPos < refTo) // not in clip region, note deletion won't partially in clipped region
-						newMisStr.append(s);
-					if(s.length() == 1) // a mismatch
+						newMisStr.append(oldMisStr, tokens.start, tokens.end);
+					if(type == MisStrTokenizer.MISMATCH) // a mismatch
 						refPos++;
 					else // a deletion
-						refPos += s.length() - 1;
+						refPos += tokens.length() - 1;
 				}
-			} // end while find
+			} // end for each token
 			if(!Character.isDigit(newMisStr.charAt(newMisStr.length() - 1))) // if the new misStr deosn't end with number
 					newMisStr.append("0");
 /*			if(!isMatchedCigarMisStr(newCig, newMisStr.toString())) {
@@ -659,21 +733,29 @@ public class SAMAlignFixer {
 			}
 		}
 
-		Matcher match1 = misPat1.matcher(misStr);
-		boolean found = match1.find();
-		if(!found && cigar.numCigarElements() != 0)
+		MisStrTokenizer tokens = new MisStrTokenizer();
+		tokens.reset(misStr, false);
+		if(tokens.next() != MisStrTokenizer.SPAN || tokens.start != 0) // MD:Z must start with a number
 			return false;
-		misRefAlnLen = Integer.parseInt(match1.group(1)); // starting pos in the MD:Z string, can be 0
-		String other = match1.group(2);
-		Matcher match2 = misPat2.matcher(other); // parse other part
-		while(match2.find()) {
-			String misSeq = match2.group(1);
-			int followLen = Integer.parseInt(match2.group(2));
-			if(misSeq.length() == 1) // mismatch
+		misRefAlnLen = tokens.span(); // starting pos in the MD:Z string, can be 0
+		int type = tokens.next();
+		while(type != MisStrTokenizer.END) {
+			if(type == MisStrTokenizer.SPAN) { // a span not following a mismatch or deletion, ignored
+				type = tokens.next();
+				continue;
+			}
+			int misType = type;
+			int misLen = tokens.length();
+			int misEnd = tokens.end;
+			type = tokens.next();
+			if(!(type == MisStrTokenizer.SPAN && tokens.start == misEnd)) // not followed by a span, ignored
+				continue;
+			if(misType == MisStrTokenizer.MISMATCH) // mismatch
 				misRefAlnLen++;
 			else // deletion
-				misRefAlnLen += misSeq.length() - 1;
-			misRefAlnLen += followLen;
+				misRefAlnLen += misLen - 1;
+			misRefAlnLen += tokens.span();
+			type = tokens.next();
 		}
 /*		if(cigRefAlnLen != misRefAlnLen)
 			System.err.printf("cigRefAlnLen:%d misRefAlnLen:%d%n", cigRefAlnLen, misRefAlnLen);*/
@@ -718,19 +800,30 @@ public class SAMAlignFixer {
 		return alnScore;
 	}*/
 
-	private static int updateKnownSnv(char[] status, int penaltyScore[], String chr, int alnStart,
-			int alnLen, String qSeq, VariantContext var) {
-		assert status.length == penaltyScore.length;
-		assert status.length == alnLen;
+	/** update the alignment status and penalty scores with a known variant on the same chromosome
+	 * @param oldStatus  status index
+	 * @param status  status index to be updated
+	 * @param penaltyScore  customized penaltyScores to be updated
+	 * @param alnStart  1-based alignment start
+	 * @param alnLen  alignment length
+	 * @param qSeq  read bases
+	 * @param vars  known variants on this chromosome
+	 * @param v  index of the variant to check
+	 * @return  # of updated positions
+	 */
+	private static int updateKnownSnv(byte[] oldStatus, byte[] status, int penaltyScore[], int alnStart,
+			int alnLen, byte[] qSeq, KnownVariantTable.ChromVariants vars, int v) {
+		assert status.length >= alnLen && penaltyScore.length >= alnLen;
 
-		char[] oldStatus = status.clone(); // make a copy of old status
-		if(var.isFiltered() || !(var.getContig().equals(chr) && var.getStart() < alnStart + alnLen && var.getEnd() >= alnStart))
+		int start = vars.getStart(v);
+		int end = vars.getEnd(v);
+		if(!(start < alnStart + alnLen && end >= alnStart))
 			return 0; // no status updated
 		int nUpdated = 0;
 		int varStart = 0;
 		int varEnd = 0;
 		int varLen = 0;
-		String varAllele = null;
+		int altIdx = -1;
 		for(int i = 0, loc = alnStart, pos = 0; i < alnLen; i++) {
 			// loc is on reference
 			// pos is on read
@@ -747,17 +840,16 @@ public class SAMAlignFixer {
 			case 'X': // an SNV/SNP
 				if(i == 0 || oldStatus[i-1] != 'X')
 					varStart = loc;
-				if(i == oldStatus.length - 1 || oldStatus[i+1] != 'X') {
+				if(i == alnLen - 1 || oldStatus[i+1] != 'X') {
 					varEnd = loc;
 					varLen = varEnd - varStart + 1;
-					varAllele = qSeq.substring(pos - varLen + 1, pos + 1);
 					// check this variant
-					if(var.getStart() == varStart && var.getEnd() == varEnd &&
-							(varLen == 1 && var.isSNP() || varLen > 1 && var.isMNP()) // matched SNV or MNP found
-							&& var.hasAlternateAllele(Allele.create(varAllele))) {
+					if(start == varStart && end == varEnd &&
+							(varLen == 1 && vars.isSNP(v) || varLen > 1 && vars.isMNP(v)) // matched SNV or MNP found
+							&& (altIdx = vars.findAltAllele(v, qSeq, pos - varLen + 1, pos + 1)) != -1) {
 						nUpdated += varLen;
 						Arrays.fill(status, i - varLen + 1, i + 1, (varLen == 1 ? knownSnp : knownMnp)); // a known SNP/MNP
-						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, getPenaltyScoreFromInfo(var, varAllele, AFTag));
+						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, vars.getAltPenalty(v, altIdx));
 					}
 				}
 				loc++;
@@ -766,16 +858,15 @@ public class SAMAlignFixer {
 			case 'I': // an insertion
 				if(i == 0 || oldStatus[i-1] != 'I') // an insert start
 					varStart = loc;
-				if(i == oldStatus.length - 1 || oldStatus[i+1] != 'I') { // an insert end
+				if(i == alnLen - 1 || oldStatus[i+1] != 'I') { // an insert end
 					varEnd = loc;
 					varLen = varEnd - varStart + 1;
-					varAllele = qSeq.substring(pos - varLen + 1, pos + 1);
 					// check each variant here
-					if(var.getStart() == varStart && var.getEnd() == varEnd &&
-							var.isIndel() && var.hasAlternateAllele(Allele.create(varAllele))) { // known insertion
+					if(start == varStart && end == varEnd &&
+							vars.isIndel(v) && (altIdx = vars.findAltAllele(v, qSeq, pos - varLen + 1, pos + 1)) != -1) { // known insertion
 						nUpdated += varLen;
 						Arrays.fill(status, i - varLen + 1, i + 1, knownIns);
-						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, getPenaltyScoreFromInfo(var, varAllele, AFTag));
+						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, vars.getAltPenalty(v, altIdx));
 					}
 				}
 				pos++; // insertion takes pos on read
@@ -783,18 +874,18 @@ public class SAMAlignFixer {
 			case 'D': // a deletion
 				if(i == 0 || oldStatus[i-1] != 'D') // a deletion start
 					varStart = loc;
-				if(i == oldStatus.length - 1 || oldStatus[i+1] != 'D') { // a deletion end
+				if(i == alnLen - 1 || oldStatus[i+1] != 'D') { // a deletion end
 					varEnd = loc;
 					varLen = varEnd - varStart + 1;
 					if(pos - varLen + 1 < 0)
 						break;
-					varAllele = qSeq.substring(pos - varLen + 1, pos + 1);
 					// check each variant here
-					if(var.getStart() == varStart && var.getEnd() == varEnd &&
-							var.isIndel() && var.getReference().length() == varLen) { // a known deletion
+					if(start == varStart && end == varEnd &&
+							vars.isIndel(v) && vars.getRefLength(v) == varLen) { // a known deletion
+						altIdx = vars.findAltAllele(v, qSeq, pos - varLen + 1, pos + 1);
 						nUpdated += varLen;
 						Arrays.fill(status, i - varLen + 1, i + 1, knownDel);
-						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, getPenaltyScoreFromInfo(var, varAllele, AFTag));
+						Arrays.fill(penaltyScore, i - varLen + 1, i + 1, altIdx != -1 ? vars.getAltPenalty(v, altIdx) : -1);
 					}
 				}
 				loc++; // deletion takes loc on reference
@@ -808,44 +899,35 @@ public class SAMAlignFixer {
 
 	/** calculate Alignment log-likelihood given the alignment status and quality
 	 * @param status  status index
+	 * @param alnLen  alignment length
 	 * @param qual  quality scores in Phred scale
 	 * @param hClipLen  hard-clipped length
 	 * @param penaltyScore  customized penaltyScores for known SNPs
 	 * @return  log-likelihood of this alignment
 	 */
-	private static double calcAlignLik(char[] status, byte[] qual, Cigar cigar, int[] penaltyScore) {
+	private static double calcAlignLik(byte[] status, int alnLen, byte[] qual, Cigar cigar, int[] penaltyScore) {
 		if(status == null)
 			return Double.NaN;
-		assert qual == null || status.length >= qual.length && (penaltyScore == null || status.length == penaltyScore.length);
-		// make local copy of qual, or dummy array if no qual available
-		byte[] baseQ;
-		if(qual != null) {
-			baseQ = new byte[qual.length];
-			for(int i = 0; i < qual.length; i++)
-				baseQ[i] = qual[i] >= MIN_PHRED_QUAL ? qual[i] : MIN_PHRED_QUAL;
-		}
-		else {
-			// create a dummy qual array with REF_QUAL
-			baseQ = new byte[status.length];
-			Arrays.fill(baseQ, REF_QUAL);
-		}
+		assert qual == null || alnLen >= qual.length && (penaltyScore == null || alnLen <= penaltyScore.length);
+		// use qual as index of the pre-computed tables, or REF_QUAL if no qual available
+		int qualLen = qual != null ? qual.length : alnLen;
 		
 		double log10Lik = 0;
 		int pos = 0; // relative pos on read
-		for(int i = 0; i < status.length; i++) {
+		for(int i = 0; i < alnLen; i++) {
 			switch(status[i]) {
 			case 'M': case '=': // treat as match
-				if(pos >= baseQ.length){
-					System.err.println("pos:" + pos + " baseQ:" + baseQ.length + " cigar:" + cigar.toString() + " status:" + String.valueOf(status));
+				if(pos >= qualLen){
+					System.err.println("pos:" + pos + " baseQ:" + qualLen + " cigar:" + cigar.toString() + " status:" + new String(status, 0, alnLen, StandardCharsets.US_ASCII));
 				}
-				log10Lik += Stats.phredP2Q(1 - Stats.phredQ2P(baseQ[pos++]), -1); // use non-error prob
+				log10Lik += MATCH_LOG10_PROB[getQualIndex(qual, pos++)]; // use non-error prob
 				break;
 			case 'X': // mismatch
-				log10Lik += baseQ[pos++] / -PHRED_SCALE; // use error prob directly
+				log10Lik += ERROR_LOG10_PROB[getQualIndex(qual, pos++)]; // use error prob directly
 				break;
 			case 'S': // soft-clipped
 				if(!IGNORE_CLIP_PENALTY)
-					log10Lik += baseQ[pos++] / -PHRED_SCALE - CLIP_PENALTY;
+					log10Lik += ERROR_LOG10_PROB[getQualIndex(qual, pos++)] - CLIP_PENALTY;
 				break;
 			case 'H': case 'P': case 'N': // not possible
 				break;
@@ -854,7 +936,7 @@ public class SAMAlignFixer {
 					log10Lik -= GAP_OPEN_PENALTY;
 				log10Lik -= GAP_EXT_PENALTY;
 				if(INDEL_MODE == IndelPenaltyMode.RELATIVE)
-					log10Lik += baseQ[pos] / -PHRED_SCALE;
+					log10Lik += ERROR_LOG10_PROB[getQualIndex(qual, pos)];
 				pos++;
 				break;
 			case 'D':
@@ -862,24 +944,24 @@ public class SAMAlignFixer {
 					log10Lik -= GAP_OPEN_PENALTY;
 				log10Lik -= GAP_EXT_PENALTY;
 				if(INDEL_MODE == IndelPenaltyMode.RELATIVE)
-					log10Lik += baseQ[pos] / -PHRED_SCALE;
+					log10Lik += ERROR_LOG10_PROB[getQualIndex(qual, pos)];
 				break;
 			case knownSnp: // known SNP/SNV position, treat similar as match
 				int snpPenalty = penaltyScore != null && penaltyScore[i] >= 0 ? penaltyScore[i] : KNOWN_SNP_PENALTY;  
-				log10Lik += Stats.phredP2Q(1 - Stats.phredQ2P(baseQ[pos++]), -1) - snpPenalty;
+				log10Lik += MATCH_LOG10_PROB[getQualIndex(qual, pos++)] - snpPenalty;
 				break;
 			case knownIns: // known insertion
 				int insPenalty = penaltyScore != null && penaltyScore[i] >= 0 ? penaltyScore[i] : KNOWN_INDEL_PENALTY;
-				log10Lik += Stats.phredP2Q(1 - Stats.phredQ2P(baseQ[pos]), -1) - insPenalty;
+				log10Lik += MATCH_LOG10_PROB[getQualIndex(qual, pos)] - insPenalty;
 				pos++;
 				break;
 			case knownDel: // known deletion
 				int delPenalty = penaltyScore != null && penaltyScore[i] >= 0 ? penaltyScore[i] : KNOWN_INDEL_PENALTY;
-				log10Lik += Stats.phredP2Q(1 - Stats.phredQ2P(baseQ[pos]), -1) - delPenalty;
+				log10Lik += MATCH_LOG10_PROB[getQualIndex(qual, pos)] - delPenalty;
 				break;	
 			case knownMnp: // known multi-substitution
 				int mnpPenalty = penaltyScore != null && penaltyScore[i] >= 0 ? penaltyScore[i] : KNOWN_MULTISUBSTITUTION_PENALTY;
-				log10Lik += Stats.phredP2Q(1 - Stats.phredQ2P(baseQ[pos++]), -1) - mnpPenalty;
+				log10Lik += MATCH_LOG10_PROB[getQualIndex(qual, pos++)] - mnpPenalty;
 			default:
 				break; // do nothing
 			}
@@ -893,12 +975,37 @@ public class SAMAlignFixer {
 
 	/** calculate Alignment log-likelihood given the alignment status and quality, using default penalties
 	 * @param status  status index
+	 * @param alnLen  alignment length
 	 * @param qual  quality scores in Phred scale
 	 * @param hClipLen  hard-clipped length
 	 * @return  log-likelihood of this alignment
 	 */
-	private static double calcAlignLik(char[] status, byte[] qual, Cigar cigar) {
-		return calcAlignLik(status, qual, cigar, null);
+	private static double calcAlignLik(byte[] status, int alnLen, byte[] qual, Cigar cigar) {
+		return calcAlignLik(status, alnLen, qual, cigar, null);
+	}
+
+	/** get index of the pre-computed log10-prob tables at given read pos
+	 * @param qual  quality scores in Phred scale, or null if not available
+	 * @param pos  relative pos on read
+	 * @return  unsigned base quality, or REF_QUAL if qual is not available
+	 */
+	private static int getQualIndex(byte[] qual, int pos) {
+		return qual != null ? qual[pos] & 0xFF : REF_QUAL;
+	}
+
+	/** build a log10-prob table indexed by unsigned base quality, with MIN_PHRED_QUAL cutoff
+	 * @param isMatch  whether to use the non-error prob (match) or the error prob (mismatch)
+	 * @return  table of log10-prob for all possible quality bytes
+	 */
+	private static double[] buildLog10ProbTable(boolean isMatch) {
+		double[] table = new double[256];
+		for(int i = 0; i < table.length; i++) {
+			byte q = (byte) i;
+			if(q < MIN_PHRED_QUAL)
+				q = MIN_PHRED_QUAL;
+			table[i] = isMatch ? Stats.phredP2Q(1 - Stats.phredQ2P(q), -1) : q / -PHRED_SCALE;
+		}
+		return table;
 	}
 	
 /*	*//** calculate Alignment log-likelihood given only alignment status with no quality (from a FASTA alignment)
@@ -937,26 +1044,6 @@ public class SAMAlignFixer {
 	}
 */
 	
-	private static int getPenaltyScoreFromInfo(VariantContext var, String varAllele, String tag) {
-		if(!var.hasAttribute(tag))
-			return -1; // use -1 indicator
-		String[] afVals = var.getAttributeAsString(tag, "").split(",");
-		assert var.getNAlleles() == afVals.length + 1; // afVals only contains altAlleles
-		// check each allele of this variations
-		int alleleIdx = var.getAlleleIndex(Allele.create(varAllele));
-		if(alleleIdx != -1) {
-			String val = afVals[alleleIdx - 1];
-			if(val.startsWith("["))
-				val = val.substring(1);
-			if(val.endsWith("]"))
-				val = val.substring(0, val.length() - 1);
-			double logLik = - Math.log10(Double.parseDouble(val));
-			if(!Double.isInfinite(logLik) && logLik >= 0)
-				return (int) Math.round(logLik);
-		}
-		return -1;
-	}
-
 	/**
 	 * @return the sEED_LEN
 	 */
@@ -1162,23 +1249,247 @@ public class SAMAlignFixer {
 	}
 
 	/**
-	 * a nested static class member holding POD of a insertRegion
+	 * @return the TYPED_TAGS
+	 */
+	public static boolean isTYPED_TAGS() {
+		return TYPED_TAGS;
+	}
+
+	/**
+	 * @param tYPED_TAGS the TYPED_TAGS to set
+	 */
+	public static void setTYPED_TAGS(boolean tYPED_TAGS) {
+		TYPED_TAGS = tYPED_TAGS;
+	}
+
+	/**
+	 * get the transient AlignScore of a SAMRecord, create one if not exists
+	 * @param record  SAMRecord to look at
+	 * @return  AlignScore attached to this record
+	 */
+	private static AlignScore getAlignScore(SAMRecord record) {
+		AlignScore score = (AlignScore) record.getTransientAttribute(AlignScore.class);
+		if(score == null) {
+			score = new AlignScore();
+			record.setTransientAttribute(AlignScore.class, score);
+		}
+		return score;
+	}
+
+	/**
+	 * get the alignment log10-likelihood of a SAMRecord, from its AlignScore or the XH tag if not fixed in this run
+	 * @param record  SAMRecord to look at
+	 * @return  log10-likelihood
+	 */
+	public static double getAlignLikelihood(SAMRecord record) {
+		AlignScore score = (AlignScore) record.getTransientAttribute(AlignScore.class);
+		return score != null && score.hasLog10Lik ? score.log10Lik : getDoubleAttribute(record, "XH");
+	}
+
+	/**
+	 * set the alignment log10-likelihood of a SAMRecord, and update the XH tag
+	 * @param record  SAMRecord to update
+	 * @param log10Lik  log10-likelihood
+	 */
+	public static void setAlignLikelihood(SAMRecord record, double log10Lik) {
+		AlignScore score = getAlignScore(record);
+		score.log10Lik = log10Lik;
+		score.hasLog10Lik = true;
+		setDoubleAttribute(record, "XH", log10Lik);
+	}
+
+	/**
+	 * get the alignment posterior probability of a SAMRecord, from its AlignScore or the XP tag if not set in this run
+	 * @param record  SAMRecord to look at
+	 * @return  posterior probability
+	 */
+	public static double getAlignPostP(SAMRecord record) {
+		AlignScore score = (AlignScore) record.getTransientAttribute(AlignScore.class);
+		return score != null && score.hasPostP ? score.postP : getDoubleAttribute(record, "XP");
+	}
+
+	/**
+	 * set the alignment posterior probability of a SAMRecord, and update the XP tag
+	 * @param record  SAMRecord to update
+	 * @param postP  posterior probability
+	 */
+	public static void setAlignPostP(SAMRecord record, double postP) {
+		AlignScore score = getAlignScore(record);
+		score.postP = postP;
+		score.hasPostP = true;
+		setDoubleAttribute(record, "XP", postP);
+	}
+
+	/**
+	 * get a floating-point tag value written by AlignerBoost, in either string or typed format
+	 * @param record  SAMRecord to look at
+	 * @param tag  tag name
+	 * @return  tag value
+	 * @throws NullPointerException  if this tag doesn't exist
+	 */
+	private static double getDoubleAttribute(SAMRecord record, String tag) throws NullPointerException {
+		Object value = record.getAttribute(tag);
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble((String) value);
+	}
+
+	/**
+	 * set a floating-point tag value, as a double-precision string, or a float if TYPED_TAGS is set
+	 * @param record  SAMRecord to update
+	 * @param tag  tag name
+	 * @param value  tag value
+	 */
+	private static void setDoubleAttribute(SAMRecord record, String tag, double value) {
+		if(TYPED_TAGS)
+			record.setAttribute(tag, (float) value);
+		else
+			record.setAttribute(tag, Double.toString(value));
+	}
+
+	/**
+	 * a nested static class member carrying the likelihood and posterior probability of a SAMRecord as primitives
+	 * @author Qi Zheng
+	 */
+	private static class AlignScore {
+		double log10Lik; // alignment log10-likelihood, same as XH
+		double postP; // alignment posterior probability, same as XP
+		boolean hasLog10Lik;
+		boolean hasPostP;
+	}
+
+	/**
+	 * a nested static class member holding the reusable working buffers of a thread,
+	 * so no per-record arrays need to be allocated while fixing SAMRecords
 	 * @author Qi Zheng
 	 */
-	public static class InsertRegion {
+	private static class StatusBuffer {
 		/**
-		 * construct a InsertRegion
-		 * @param from
-		 * @param to
+		 * make sure the buffers can hold an alignment of given length
+		 * @param alnLen  alignment length
 		 */
-		public InsertRegion(int from, int to) {
-			this.from = from;
-			this.to = to;
+		void ensureCapacity(int alnLen) {
+			if(alnLen <= status.length)
+				return;
+			int capacity = Math.max(alnLen, 2 * status.length);
+			status = new byte[capacity];
+			updatedStatus = new byte[capacity];
+			bestStatus = new byte[capacity];
+			penaltyScore = new int[capacity];
+			dpScore = new int[capacity + 1];
 		}
-		
-		int from;
-		int to;
+
+		byte[] status = new byte[INIT_BUFFER_LEN]; // align status index
+		byte[] updatedStatus = new byte[INIT_BUFFER_LEN]; // align status updated by a known variant
+		byte[] bestStatus = new byte[INIT_BUFFER_LEN]; // best updated align status
+		int[] penaltyScore = new int[INIT_BUFFER_LEN]; // customized penaltyScores for known variants
+		int[] dpScore = new int[INIT_BUFFER_LEN + 1]; // 1DP scores, position 0 is dummy
+		int insertFrom1DP; // 0-based insert from by 1DP
+		int insertTo1DP; // 1-based insert to by 1DP
+		final KnownVariantTable.ChromVariants queriedVars = new KnownVariantTable.ChromVariants(); // variants queried from a VCF file
+		final MisStrTokenizer tokenizer = new MisStrTokenizer(); // MD:Z tokenizer
 	}
+
+	/**
+	 * a nested static class member to split a MD:Z mismatch string into tokens in a single pass without any allocation,
+	 * a token is either a span (# of matched bases), a mismatch or a deletion ('^' followed by deleted bases),
+	 * any other character is ignored
+	 * @author Qi Zheng
+	 */
+	private static class MisStrTokenizer {
+		/**
+		 * reset this tokenizer to the beginning of a new MD:Z string
+		 * @param misStr  MD:Z string to split
+		 * @param mergeMis  whether to merge consecutive mismatched bases into a single MISMATCH token
+		 */
+		void reset(String misStr, boolean mergeMis) {
+			this.misStr = misStr;
+			this.mergeMis = mergeMis;
+			cursor = start = end = 0;
+		}
+
+		/**
+		 * advance to the next token
+		 * @return  type of the next token, or END if no more token exists
+		 */
+		int next() {
+			int len = misStr.length();
+			while(cursor < len) {
+				char c = misStr.charAt(cursor);
+				start = cursor++;
+				if(isDigit(c)) {
+					while(cursor < len && isDigit(misStr.charAt(cursor)))
+						cursor++;
+					end = cursor;
+					return SPAN;
+				}
+				else if(isBase(c)) {
+					if(mergeMis)
+						while(cursor < len && isBase(misStr.charAt(cursor)))
+							cursor++;
+					end = cursor;
+					return MISMATCH;
+				}
+				else if(c == '^' && cursor < len && isBase(misStr.charAt(cursor))) {
+					while(cursor < len && isBase(misStr.charAt(cursor)))
+						cursor++;
+					end = cursor;
+					return DELETION;
+				}
+				// otherwise not a valid token, ignored
+			}
+			start = end = len;
+			return END;
+		}
+
+		/**
+		 * get the length of the current token
+		 * @return  # of characters of the current token
+		 */
+		int length() {
+			return end - start;
+		}
+
+		/**
+		 * get the value of the current SPAN token
+		 * @return  # of matched bases
+		 * @throws NumberFormatException  if the value is too large for an int
+		 */
+		int span() throws NumberFormatException {
+			int value = 0;
+			for(int i = start; i < end; i++) {
+				int digit = misStr.charAt(i) - '0';
+				if(value > (Integer.MAX_VALUE - digit) / 10)
+					throw new NumberFormatException("Invalid span '" + misStr.substring(start, end) + "' in MD:Z tag " + misStr);
+				value = value * 10 + digit;
+			}
+			return value;
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		private static boolean isBase(char c) {
+			return c >= 'A' && c <= 'Z';
+		}
+
+		static final int END = 0;
+		static final int SPAN = 1;
+		static final int MISMATCH = 2;
+		static final int DELETION = 3;
+		int start; // start of the current token, inclusive
+		int end; // end of the current token, exclusive
+		private String misStr;
+		private boolean mergeMis;
+		private int cursor;
+	}
+
+	// working buffers are thread-confined so SAMRecords can be fixed by multiple threads
+	private static final ThreadLocal<StatusBuffer> localBuffer = new ThreadLocal<StatusBuffer>() {
+		@Override
+		protected StatusBuffer initialValue() {
+			return new StatusBuffer();
+		}
+	};
 	
 	static int SEED_LEN = 25;
 	static int MATCH_SCORE = 1;
@@ -1195,18 +1506,18 @@ public class SAMAlignFixer {
 	static int KNOWN_INDEL_PENALTY = 2;
 	static int KNOWN_MULTISUBSTITUTION_PENALTY = 2;
 	static String AFTag = "AF"; // alleleFrequency tag
+	static boolean TYPED_TAGS = false; // write XH/XP as typed float tags instead of strings
 
 	private static final byte REF_QUAL = 40; // reference quality for deletions
 //	private static final byte AVG_READ_QUAL = 25;
 	private static final byte MIN_PHRED_QUAL = 3; // min phred qual to avoid -Inf
+	// pre-computed log10 non-error (match) and error (mismatch) probs indexed by base quality
+	private static final double[] MATCH_LOG10_PROB = buildLog10ProbTable(true);
+	private static final double[] ERROR_LOG10_PROB = buildLog10ProbTable(false);
 	private static final int HCLIP_SAMPLE_LEN = 5; // sampling length for estimating the average quality of hard-clipped regions
-	private static final char knownSnp = 'V';
-	private static final char knownMnp = 'B';
-	private static final char knownIns = 'i';
-	private static final char knownDel = 'd';
-	// mismatch string patterns
-	private static final Pattern misPat1 = Pattern.compile("(^\\d+)(.*)");
-	private static final Pattern misPat2 = Pattern.compile("([A-Z]|\\^[A-Z]+)(\\d+)");
-	private static final Pattern misPat3 = Pattern.compile("\\d+|[A-Z]|\\^[A-Z]+");
-	private static final Pattern misPat4 = Pattern.compile("\\d+|[A-Z]+|\\^[A-Z]+");
+	private static final int INIT_BUFFER_LEN = 256; // initial working buffer length, enough for most short reads
+	private static final byte knownSnp = 'V';
+	private static final byte knownMnp = 'B';
+	private static final byte knownIns = 'i';
+	private static final byte knownDel = 'd';
 }
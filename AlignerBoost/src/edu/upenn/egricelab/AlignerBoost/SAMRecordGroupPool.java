@@ -0,0 +1,196 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to filter groups of SAMRecords of the same read concurrently, while keeping the output order
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+
+/** A worker pool that processes read groups (all alignments of a read or read-pair) with a given GroupFilter
+ * on multiple worker threads, and writes the reported alignments by a single writer thread
+ * in exactly the same order as the groups are submitted.
+ * The submitted but not-yet written groups are kept in a bounded queue, so the reader will be blocked
+ * if the workers or the writer cannot keep up, and the memory usage stays flat.
+ * With only 1 thread, each group is filtered and written directly in the calling thread.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+class SAMRecordGroupPool {
+	/**
+	 * A filter that fix/filter all alignments of a given read group
+	 * and return the alignments to be reported, in their output order
+	 */
+	interface GroupFilter {
+		List<SAMRecord> filter(List<SAMRecord> group);
+	}
+
+	/**
+	 * Construct a SAMRecordGroupPool with given filter, output and number of worker threads
+	 * @param filter  GroupFilter to apply on each read group, must be thread-safe if nThreads > 1
+	 * @param out  SAMFileWriter for the reported alignments
+	 * @param nThreads  number of worker threads
+	 * @throws IllegalArgumentException  if nThreads is not positive
+	 */
+	public SAMRecordGroupPool(GroupFilter filter, SAMFileWriter out, int nThreads) throws IllegalArgumentException {
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive");
+		this.filter = filter;
+		this.out = out;
+		if(nThreads > 1) {
+			workers = Executors.newFixedThreadPool(nThreads, new DaemonThreadFactory("worker"));
+			pending = new ArrayBlockingQueue<Future<List<SAMRecord>>>(nThreads * MAX_PENDING_PER_THREAD);
+			writer = new Thread(new WriterRunnable(), "writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Submit a read group to this pool, the pool takes over the ownership of the group,
+	 * so the caller should not modify it afterwards
+	 * @param group  all alignments of a read or read-pair
+	 * @throws RuntimeException  if any previous group failed to be filtered or written
+	 */
+	public void submit(final List<SAMRecord> group) throws RuntimeException {
+		if(workers == null) { // single-threaded
+			for(SAMRecord record : filter.filter(group)) {
+				out.addAlignment(record);
+				nWritten++;
+			}
+			return;
+		}
+		checkFailure();
+		try {
+			pending.put(workers.submit(new Callable<List<SAMRecord>>() {
+				@Override
+				public List<SAMRecord> call() {
+					return filter.filter(group);
+				}
+			}));
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while submitting read group", e);
+		}
+	}
+
+	/**
+	 * Wait for all submitted groups to be written and stop all the threads of this pool.
+	 * The SAMFileWriter is not closed by this method
+	 * @throws RuntimeException  if any group failed to be filtered or written
+	 */
+	public void finish() throws RuntimeException {
+		if(workers == null)
+			return;
+		try {
+			pending.put(END_OF_GROUPS);
+			writer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for the writer", e);
+		}
+		finally {
+			workers.shutdownNow();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Get the number of written alignments, should be called after {@link #finish()}
+	 * @return  number of written alignments
+	 */
+	public long getNumWritten() {
+		return nWritten;
+	}
+
+	/**
+	 * check whether any failure happened in the worker or writer thread, and re-throw it in the calling thread
+	 */
+	private void checkFailure() throws RuntimeException {
+		if(failure != null)
+			throw new RuntimeException("failed to process read group: " + failure.getMessage(), failure);
+	}
+
+	/**
+	 * A Runnable for writing the filtered groups in submitted order
+	 */
+	private class WriterRunnable implements Runnable {
+		@Override
+		public void run() {
+			try {
+				Future<List<SAMRecord>> result;
+				while((result = pending.take()) != END_OF_GROUPS) {
+					if(failure != null)
+						continue; // keep draining the queue so the reader won't be blocked
+					try {
+						for(SAMRecord record : result.get()) {
+							out.addAlignment(record);
+							nWritten++;
+						}
+					}
+					catch(ExecutionException e) {
+						failure = e.getCause();
+					}
+					catch(RuntimeException e) {
+						failure = e;
+					}
+				}
+			}
+			catch(InterruptedException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * A ThreadFactory creating named daemon threads, so a failed run won't hang the JVM
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + ++nCreated);
+			thread.setDaemon(true);
+			return thread;
+		}
+
+		private final String prefix;
+		private int nCreated;
+	}
+
+	private static final int MAX_PENDING_PER_THREAD = 256; // max pending groups per worker
+	private static final Future<List<SAMRecord>> END_OF_GROUPS = new CompletableFuture<List<SAMRecord>>(); // poison pill
+	private final GroupFilter filter;
+	private final SAMFileWriter out;
+	private ExecutorService workers;
+	private BlockingQueue<Future<List<SAMRecord>>> pending;
+	private Thread writer;
+	private volatile Throwable failure;
+	private long nWritten; // only updated by the writing thread, and read after it finished
+}
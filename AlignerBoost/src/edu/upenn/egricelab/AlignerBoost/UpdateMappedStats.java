@@ -33,9 +33,8 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import edu.upenn.egricelab.AlignerBoost.utils.NRTagUtils;
 import htsjdk.samtools.*;
 import htsjdk.samtools.SAMFileHeader.GroupOrder;
 
@@ -108,6 +107,7 @@ public class UpdateMappedStats {
 				readerFac.validationStringency(ValidationStringency.SILENT); // set validation level to silent
 				samIn = readerFac.open(new File(conf.getAlignFilteredFileName()));
 				GroupOrder inOrder = samIn.getFileHeader().getGroupOrder();
+				boolean useCloneTag = conf.doNR && NRTagUtils.hasCloneTag(samIn.getFileHeader());
 				boolean isUniq = maxReport == 1 && !conf.isPaired; /* Single-end, uniquely reported alignments */
 				
 				if(!isUniq && inOrder != GroupOrder.query)
@@ -115,16 +115,13 @@ public class UpdateMappedStats {
 				for(SAMRecord record : samIn) {
 					String id = record.getReadName();
 					int clone = 1; // default is for read
-					if(conf.doNR) { // we are looking at NR tags
-						Matcher match = nrPat.matcher(id);
-						if(match.find())
-							clone = Integer.parseInt(match.group(1));
-					}
+					if(conf.doNR) // we are looking at NR tags
+						clone = NRTagUtils.getClone(record, useCloneTag);
 					if(isUniq || inOrder == GroupOrder.query && !id.equals(prevID)) // query-ordered, new ID found
 						totalMapped += clone;
 					else { // non-unique and not query-ordered, need recording found reads
 						// first make sure it is AlignerBoost filtered reads
-						if(record.getStringAttribute("XH") == null)
+						if(record.getAttribute("XH") == null)
 							throw new RuntimeException("Cannot get mapped read summary for non-query sorted non-AlignerBoost processed BAM file");
 						if(!readHit.containsKey(id)) { // this id hasn't been seen yet
 							totalMapped += clone;
@@ -167,6 +164,5 @@ public class UpdateMappedStats {
 	private static String inFile;
 	private static String outFile;
 	private static List<NGSExpDesign> configs;
-	private static Pattern nrPat = Pattern.compile("^(?:tr|un:nr)\\d+:(\\d+):\\d+");
 
 }
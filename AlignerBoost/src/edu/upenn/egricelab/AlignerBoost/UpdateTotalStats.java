@@ -24,7 +24,9 @@ import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
+
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader;
+import edu.upenn.egricelab.AlignerBoost.utils.FastqReader.FastqBatch;
 
 /**
  * @author Qi Zheng
@@ -39,14 +41,17 @@ public class UpdateTotalStats {
 	 */
 	public static void main(String[] args) {
 		// parse options
-		if(args.length != 2) {
+		try {
+			parseOptions(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
 			printUsage();
 			return;
 		}
-		inFile = args[0];
-		outFile = args[1];
 		
 		BufferedReader in = null;
+		FastqReader fastqIn = null;
 		BufferedWriter out = null;
 		String line = null;
 		String header = null;
@@ -82,23 +87,47 @@ public class UpdateTotalStats {
 					continue;
 				}
 				// check FASTQ readFile
-				int totalNum = 0;
+				long totalNum = 0;
+				// moments of the read counts and bytes of the sampled blocks
+				double unitNS = 0;
+				double unitNB = 0;
+				double unitBS = 0;
+				double totalBytes = 0;
+				long nUnits = 0;
 				String readFile = conf.getReadFile();
-				in = !readFile.endsWith(".gz") ? new BufferedReader(new FileReader(conf.getReadFile())) :
-					new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(readFile))));
-				while((line = in.readLine()) != null) {
-					if(line.startsWith("@")) {
-						totalNum++;
-						int readLen = in.readLine().length();
+				fastqIn = new FastqReader(readFile, FastqReader.DEFAULT_THREADS, sampleFraction, sampleReads);
+				FastqBatch batch;
+				while((batch = fastqIn.nextBatch()) != null) {
+					totalNum += batch.size();
+					double bytes = batch.getSampledBytes();
+					unitNS += (double) batch.size() * batch.size();
+					unitNB += batch.size() * bytes;
+					unitBS += bytes * bytes;
+					totalBytes += bytes;
+					nUnits++;
+					for(int i = 0; i < batch.size(); i++) {
+						int readLen = batch.getSeqLength(i);
 						if(readLen > conf.readLen) {
 							System.err.println("Warning: Found a read for lib \"" + conf.libName + "\" of length "
 									+ readLen + " that is longer than the read_len option in the config file, need to be fixed before following steps");
 						}
-						in.readLine();
-						in.readLine();
 					}
 				}
-				in.close();
+				fastqIn.close();
+				if(sampleFraction < 1 || sampleReads > 0) { // estimate the total from the sample
+					double f = fastqIn.getSampledFraction();
+					double est = totalNum / f;
+					double se = 0; // records of non-BGZF gzip files are sampled after a full scan, so the total is exact
+					if(fastqIn.isBlockSampled() && nUnits > 1) {
+						// SE of the ratio estimator of the total of a cluster sample of blocks, with finite population correction
+						double r = totalNum / totalBytes; // reads per byte
+						double var = (unitNS - 2 * r * unitNB + r * r * unitBS) / (nUnits - 1);
+						se = Math.sqrt(nUnits * Math.max(var, 0) * Math.max(1 - f, 0)) / f;
+					}
+					System.err.println("Estimated total reads of lib \"" + conf.libName + "\": " + Math.round(est)
+							+ " +/- " + Math.round(se) + " (SE), from " + totalNum + " sampled reads");
+					totalNum = Math.round(est);
+				}
 				out.write(conf.libName + "\t" + conf.readLen + "\t" + totalNum + newLine);
 			}
 		}
@@ -112,6 +141,8 @@ public class UpdateTotalStats {
 			try {
 				if(in != null)
 					in.close();
+				if(fastqIn != null)
+					fastqIn.close();
 				if(out != null)
 					out.close();
 			}
@@ -121,12 +152,41 @@ public class UpdateTotalStats {
 		}
 	}
 	
+	private static void parseOptions(String[] args) throws IllegalArgumentException {
+		List<String> files = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--sample-fraction"))
+				sampleFraction = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--sample-reads"))
+				sampleReads = Long.parseLong(args[++i]);
+			else if(args[i].startsWith("-"))
+				throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+			else
+				files.add(args[i]);
+		}
+		// Check options
+		if(files.size() != 2)
+			throw new IllegalArgumentException("EXPERIMENT-CONFIG-INFILE and OUTFILE must be specified");
+		inFile = files.get(0);
+		outFile = files.get(1);
+		if(!(sampleFraction > 0 && sampleFraction <= 1))
+			throw new IllegalArgumentException("--sample-fraction must be in (0, 1]");
+		if(sampleReads < 0)
+			throw new IllegalArgumentException("--sample-reads must be non-negative");
+		if(sampleFraction < 1 && sampleReads > 0)
+			throw new IllegalArgumentException("--sample-fraction and --sample-reads cannot be both specified");
+	}
+
 	private static void printUsage() {
-		System.err.println("Usage:    java -jar " + progFile + " stats total <EXPERIMENT-CONFIG-INFILE> <OUTFILE>");
+		System.err.println("Usage:    java -jar " + progFile + " stats total [options] <EXPERIMENT-CONFIG-INFILE> <OUTFILE>" + newLine +
+				"Options:    --sample-fraction  DOUBLE  estimate the total reads from a random fraction of each read file [1]" + newLine +
+				"            --sample-reads  INT  estimate the total reads from this many random reads of each read file, instead of --sample-fraction [0]");
 	}
 
 	private static String inFile;
 	private static String outFile;
+	private static double sampleFraction = 1;
+	private static long sampleReads;
 	private static List<NGSExpDesign> configs;
 
 }
@@ -45,7 +45,7 @@ public class BedToWig {
 			return;
 		}
 
-		chrIdx = new HashMap<String, int[]>();
+		chrIdx = new HashMap<String, CoverageIndex>();
 		BufferedReader chrIn = null;
 		BufferedReader bedIn = null;
 		BufferedWriter out = null;
@@ -83,7 +83,7 @@ public class BedToWig {
 				String[] fields = line.split("\t");
 				String chr = fields[0];
 				int len = Integer.parseInt(fields[1]);
-				chrIdx.put(chr, new int[len + 1]);  // Position 0 is dummy
+				chrIdx.put(chr, new CoverageIndex(len + 1));  // Position 0 is dummy
 				if(regionFile == null) { // no -R specified, add the whole chromosome as the interval
 					chrSeen.put(chr, new ArrayList<GenomeInterval>());
 					chrSeen.get(chr).add(new GenomeInterval(chr, 1, len));
@@ -121,9 +121,8 @@ public class BedToWig {
 				int strand = fields[5].equals("+") ? 1 : fields[5].equals("-") ? 2 : 3;
 				if((strand & myStrand) == 0)
 					continue;
-				int[] idx = chrIdx.get(chr);
-				for(int i = start + 1; i <= end; i++)
-					idx[i] += clone;
+				CoverageIndex idx = chrIdx.get(chr);
+				idx.addDiff(start + 1, end + 1, clone);
 				totalNum += clone;
 			} // end each record
 
@@ -137,6 +136,8 @@ public class BedToWig {
 			// Output
 			if(verbose > 0)
 				System.err.println("Output ...");
+			for(CoverageIndex idx : chrIdx.values())
+				idx.accumulate(idx.length());
 			if(includeTrack) // output track line
 				out.write(trackHeader + "\n");
 			
@@ -145,16 +146,16 @@ public class BedToWig {
 				List<GenomeInterval> intervals = entry.getValue();
 				if(regionFile != null)
 					intervals = GenomeInterval.optimizeIntervals(intervals);
-				int[] idx = chrIdx.get(chr);
+				CoverageIndex idx = chrIdx.get(chr);
 				if(idx == null)
 					continue;  // no index on this chrom
 				
 				for(GenomeInterval interval : intervals) {
 					int prevStart = 0;
 					// output coverage
-					for(int start = interval.start; start < interval.end && start < idx.length; start += step) {
-						int end = start + step <= idx.length ? start + step : idx.length;
-						double val = Stats.mean(idx, start, end);
+					for(int start = interval.start; start < interval.end && start < idx.length(); start += step) {
+						int end = start + step <= idx.length() ? start + step : idx.length();
+						double val = idx.mean(start, end);
 						if(normRPM)
 							val /= totalNum / 1e6;
 						if(keep0 || val > 0) {
@@ -274,7 +275,7 @@ public class BedToWig {
 	private static int verbose;
 
 	private static long totalNum;
-	private static Map<String, int[]> chrIdx;
+	private static Map<String, CoverageIndex> chrIdx;
 
 	private static Timer processMonitor;
 	private static ProcessStatusTask statusTask;
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a util class to convert a known SNP VCF file to a memory-mappable binary index file
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+import java.io.*;
+
+import htsjdk.tribble.TribbleException;
+import htsjdk.variant.vcf.VCFFileReader;
+import edu.upenn.egricelab.AlignerBoost.KnownVariantTable;
+import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
+
+/** Build a binary known SNP index file from a coordinate-sorted VCF file,
+ * which can be used as the --known-SNP file of filterSE/filterPE,
+ * and is memory-mapped instead of parsed for each run
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class BuildSnpIndex {
+	public static void main(String[] args) {
+		if(args.length == 0) {
+			printUsage();
+			return;
+		}
+		// Parse options
+		try {
+			parseOptions(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			return;
+		}
+
+		VCFFileReader vcfIn = null;
+		try {
+			vcfIn = new VCFFileReader(new File(inFile), false);
+			System.err.println("Building known SNP index ...");
+			long nVars = KnownVariantTable.buildIndex(vcfIn, AFTag, new File(outFile));
+			System.err.println(nVars + " known SNPs written to " + outFile);
+		}
+		catch(IOException e) {
+			System.err.println(e.getMessage());
+		}
+		catch(IllegalStateException e) {
+			System.err.println(e.getMessage());
+		}
+		catch(TribbleException e) {
+			System.err.println(e.getMessage());
+		}
+		finally {
+			if(vcfIn != null)
+				vcfIn.close();
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("java -jar " + progFile + " utils buildSnpIndex " +
+				"<-i VCF-INFILE> <-o INDEX-OUTFILE> [options]" + newLine +
+				"Options:    -i  FILE             coordinate-sorted known SNP file in vcf/gvcf format (v4.0+, .gz supported), required" + newLine +
+				"            -o  FILE             binary index file, required" + newLine +
+				"            --AF-tag  STRING     Allele Frequency Tag in VCF file to check/use for determining penaltyScores for known SNPs, use NULL to disable [" + AFTag + "]"
+				);
+	}
+	
+	private static void parseOptions(String[] args) throws IllegalArgumentException {
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-i"))
+				inFile = args[++i];
+			else if(args[i].equals("-o"))
+				outFile = args[++i];
+			else if(args[i].equals("--AF-tag"))
+				AFTag = args[++i];
+			else
+				throw new IllegalArgumentException("Unknown option '" + args[i] + "'.");
+		}
+		// Check required options
+		if(inFile == null)
+			throw new IllegalArgumentException("-i must be specified");
+		if(outFile == null)
+			throw new IllegalArgumentException("-o must be specified");
+	}
+
+	private static String inFile;
+	private static String outFile;
+	private static String AFTag = "AF";
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to store the base-wise coverage of a chromosome sparsely
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+/** A sparse replacement of a per-chromosome int[] coverage array.
+ * The positions are stored in fixed-size chunks allocated on first touch, so never-covered regions cost no memory.
+ * Each chunk starts as 16-bit values, and is promoted to 32-bit values once a value overflows 16 bits,
+ * so typical low-coverage chunks cost only half the memory of an int[].
+ * Reading an untouched position returns 0.
+ * Coverage is usually built as a difference array, by adding +val at the start and -val at the end of each covered block
+ * with {@link #addDiff(int, int, int)}, and then accumulated into base-wise values with {@link #accumulate(int)},
+ * so a read costs O(1) per block instead of O(1) per base.
+ * When the positions are finished in order, i.e. for a coordinate-sorted input, the positions can be accumulated
+ * and the chunks before a position released incrementally, so only a sliding window of chunks is kept in memory.
+ * A CoverageIndex is not thread-safe.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class CoverageIndex {
+	/**
+	 * Construct an empty CoverageIndex of given length
+	 * @param length  number of positions, including the dummy position 0 if used as 1-based
+	 * @throws IllegalArgumentException  if length is negative
+	 */
+	public CoverageIndex(int length) throws IllegalArgumentException {
+		if(length < 0)
+			throw new IllegalArgumentException("length must be non-negative");
+		this.length = length;
+		int nChunks = (int) (((long) length + CHUNK_SIZE - 1) >> CHUNK_SHIFT);
+		shortChunks = new short[nChunks][];
+		intChunks = new int[nChunks][];
+	}
+
+	/**
+	 * @return  number of positions
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @param i  position
+	 * @return  value at this position
+	 * @throws ArrayIndexOutOfBoundsException  if i is out of range
+	 */
+	public int get(int i) {
+		checkIndex(i);
+		int k = i >> CHUNK_SHIFT;
+		int j = i & CHUNK_MASK;
+		if(intChunks[k] != null)
+			return intChunks[k][j];
+		if(shortChunks[k] != null)
+			return shortChunks[k][j];
+		return 0;
+	}
+
+	/**
+	 * Add a value to a position
+	 * @param i  position
+	 * @param val  value to add
+	 * @throws ArrayIndexOutOfBoundsException  if i is out of range
+	 * @throws IllegalStateException  if i is already accumulated or released
+	 */
+	public void add(int i, int val) {
+		checkIndex(i);
+		if(i < accumulatedTo)
+			throw new IllegalStateException("position " + i + " is already accumulated");
+		int k = i >> CHUNK_SHIFT;
+		int j = i & CHUNK_MASK;
+		if(intChunks[k] != null) {
+			intChunks[k][j] += val;
+			return;
+		}
+		if(shortChunks[k] == null)
+			shortChunks[k] = new short[CHUNK_SIZE];
+		int newVal = shortChunks[k][j] + val;
+		if(newVal >= Short.MIN_VALUE && newVal <= Short.MAX_VALUE)
+			shortChunks[k][j] = (short) newVal;
+		else {
+			promote(k);
+			intChunks[k][j] = newVal;
+		}
+	}
+
+	/**
+	 * Add a value to a range of positions as differences, which take effect after accumulated
+	 * @param from  start position, inclusive
+	 * @param to  end position, exclusive
+	 * @param val  value to add
+	 * @throws ArrayIndexOutOfBoundsException  if the range is out of range
+	 * @throws IllegalStateException  if the range is already accumulated or released
+	 */
+	public void addDiff(int from, int to, int val) {
+		if(from >= to)
+			return;
+		add(from, val);
+		if(to != length)
+			add(to, -val);
+	}
+
+	/**
+	 * Accumulate the differences of positions up to a position in place, so they can be read as base-wise values
+	 * @param to  end position to accumulate, exclusive
+	 */
+	public void accumulate(int to) {
+		if(to > length)
+			to = length;
+		int i = accumulatedTo;
+		while(i < to) {
+			int k = i >> CHUNK_SHIFT;
+			int chunkEnd = (int) Math.min(to, (long) (k + 1) << CHUNK_SHIFT);
+			if(shortChunks[k] == null && intChunks[k] == null) {
+				if(runningSum == 0) { // nothing to accumulate
+					i = chunkEnd;
+					continue;
+				}
+				shortChunks[k] = new short[CHUNK_SIZE];
+			}
+			if(shortChunks[k] != null) {
+				short[] chunk = shortChunks[k];
+				for(; i < chunkEnd; i++) {
+					long newVal = runningSum + chunk[i & CHUNK_MASK];
+					if(newVal < Short.MIN_VALUE || newVal > Short.MAX_VALUE)
+						break; // promote and continue in 32-bit
+					runningSum = newVal;
+					chunk[i & CHUNK_MASK] = (short) newVal;
+				}
+				if(i < chunkEnd)
+					promote(k);
+				else
+					continue;
+			}
+			int[] chunk = intChunks[k];
+			for(; i < chunkEnd; i++) {
+				runningSum += chunk[i & CHUNK_MASK];
+				chunk[i & CHUNK_MASK] = (int) runningSum;
+			}
+		}
+		if(to > accumulatedTo)
+			accumulatedTo = to;
+	}
+
+	/**
+	 * Get the sum of a range of positions
+	 * @param from  start position, inclusive
+	 * @param to  end position, exclusive
+	 * @return  sum of the values
+	 */
+	public long sum(int from, int to) {
+		long x = 0;
+		if(from < 0)
+			from = 0;
+		if(to > length)
+			to = length;
+		// only look at the chunks inside the range, so a window costs no more than its own length in an uncovered gap
+		for(int i = from; i < to;) {
+			int k = i >> CHUNK_SHIFT;
+			int chunkEnd = (int) Math.min(to, (long) (k + 1) << CHUNK_SHIFT);
+			if(intChunks[k] != null) {
+				int[] chunk = intChunks[k];
+				for(; i < chunkEnd; i++)
+					x += chunk[i & CHUNK_MASK];
+			}
+			else if(shortChunks[k] != null) {
+				short[] chunk = shortChunks[k];
+				for(; i < chunkEnd; i++)
+					x += chunk[i & CHUNK_MASK];
+			}
+			else // untouched or released chunk reads as 0
+				i = chunkEnd;
+		}
+		return x;
+	}
+
+	/**
+	 * Get the mean value of a range of positions, same as {@link Stats#mean(int[], int, int)}
+	 * @param from  start position, inclusive
+	 * @param to  end position, exclusive
+	 * @return  mean value in double
+	 */
+	public double mean(int from, int to) {
+		if(length == 0)
+			return Double.NaN;
+		assert to > from;
+		return (double) sum(from, to) / (to - from);
+	}
+
+	/**
+	 * Find the next position that may be non-zero, skipping the untouched chunks
+	 * @param from  start position
+	 * @return  the first position no less than from in an allocated chunk, or length if none
+	 */
+	public int nextCovered(int from) {
+		if(from < 0)
+			from = 0;
+		for(int k = from >> CHUNK_SHIFT; k < shortChunks.length; k++)
+			if(shortChunks[k] != null || intChunks[k] != null)
+				return Math.min(Math.max(from, k << CHUNK_SHIFT), length);
+		return length;
+	}
+
+	/**
+	 * Release the chunks entirely before a position, so they are freed and read as 0 afterwards
+	 * @param to  end position to release, exclusive
+	 */
+	public void release(int to) {
+		int toChunk = to >= length ? shortChunks.length : to >> CHUNK_SHIFT; // only whole chunks are released
+		to = (int) Math.min((long) toChunk << CHUNK_SHIFT, length);
+		if(to <= releasedTo)
+			return;
+		accumulate(to); // the running value must be carried over the released chunks
+		for(int k = releasedTo >> CHUNK_SHIFT; k < toChunk; k++) {
+			shortChunks[k] = null;
+			intChunks[k] = null;
+		}
+		releasedTo = to;
+	}
+
+	/**
+	 * @return  estimated bytes used by the allocated chunks
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for(int k = 0; k < shortChunks.length; k++)
+			bytes += intChunks[k] != null ? 4L * CHUNK_SIZE : shortChunks[k] != null ? 2L * CHUNK_SIZE : 0;
+		return bytes;
+	}
+
+	private void promote(int k) {
+		int[] chunk = new int[CHUNK_SIZE];
+		short[] old = shortChunks[k];
+		for(int j = 0; j < CHUNK_SIZE; j++)
+			chunk[j] = old[j];
+		intChunks[k] = chunk;
+		shortChunks[k] = null;
+	}
+
+	private void checkIndex(int i) {
+		if(i < 0 || i >= length)
+			throw new ArrayIndexOutOfBoundsException(i);
+	}
+
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // positions per chunk
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int length;
+	private final short[][] shortChunks; // 16-bit chunks, null if untouched or promoted
+	private final int[][] intChunks; // promoted 32-bit chunks
+	private int releasedTo; // positions before it are released, always at a chunk boundary or the length
+	private int accumulatedTo; // positions before it are accumulated from differences to values
+	private long runningSum; // accumulated value at accumulatedTo - 1
+}
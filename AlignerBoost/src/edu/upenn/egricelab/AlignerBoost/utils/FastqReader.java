@@ -0,0 +1,1015 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to read plain or gzip/BGZF compressed FASTQ files in batches of records
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** A FASTQ reader that reads and decompresses the input on background threads,
+ * and hands out batches of records as byte slices of a per-batch buffer.
+ * BGZF compressed input is inflated block-by-block on a thread pool in parallel,
+ * other gzip compressed input is inflated on a single background thread.
+ * Every 4 lines are framed as a record, which must have a header line starting with '@',
+ * a separator line starting with '+', and a quality of the same length as the seq,
+ * so a quality line starting with '@' or '+' is never mis-framed. Blank lines between records are ignored.
+ * The records can be read either in batches, or one-by-one into a reusable FastqRecord.
+ * A FastqReader can also read a random sample of the records. Plain and BGZF compressed input is block sampled,
+ * by reading only randomly chosen fixed-size blocks of the file, and framing the records starting in each block
+ * into its own batch; other gzip compressed input cannot be randomly accessed, so it is fully inflated
+ * and sampled record-by-record instead.
+ * A FastqReader is not thread-safe.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class FastqReader implements Closeable {
+	/**
+	 * Construct a FastqReader with the default number of decompressing threads
+	 * @param inFile  FASTQ file, gzip or BGZF compressed if ends with .gz
+	 * @throws IOException  if the file cannot be opened
+	 */
+	public FastqReader(String inFile) throws IOException {
+		this(inFile, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Construct a FastqReader with given number of decompressing threads
+	 * @param inFile  FASTQ file, gzip or BGZF compressed if ends with .gz
+	 * @param nThreads  number of threads for inflating BGZF blocks
+	 * @throws IOException  if the file cannot be opened
+	 * @throws IllegalArgumentException  if nThreads is not positive
+	 */
+	public FastqReader(String inFile, int nThreads) throws IOException, IllegalArgumentException {
+		this(inFile, nThreads, 1, 0);
+	}
+
+	/**
+	 * Construct a FastqReader reading a random sample of the records, with given number of decompressing threads.
+	 * The sample is reproducible, as it is drawn with a fixed random seed
+	 * @param inFile  FASTQ file, gzip or BGZF compressed if ends with .gz
+	 * @param nThreads  number of threads for inflating BGZF blocks
+	 * @param sampleFraction  fraction of the input to sample, or 1 to read all records
+	 * @param sampleReads  number of records to sample, or 0 to sample by sampleFraction, this overrides sampleFraction
+	 * @throws IOException  if the file cannot be opened
+	 * @throws IllegalArgumentException  if nThreads is not positive, or the sampling parameters are out of range
+	 */
+	public FastqReader(String inFile, int nThreads, double sampleFraction, long sampleReads)
+			throws IOException, IllegalArgumentException {
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive");
+		if(!(sampleFraction > 0 && sampleFraction <= 1))
+			throw new IllegalArgumentException("sample fraction must be in (0, 1]");
+		if(sampleReads < 0)
+			throw new IllegalArgumentException("number of sampled reads must be non-negative");
+		this.inFile = inFile;
+		this.sampleFraction = sampleFraction;
+		this.sampleReads = sampleReads;
+		boolean isSampling = sampleFraction < 1 || sampleReads > 0;
+		InputStream raw = new BufferedInputStream(new FileInputStream(inFile), INPUT_BUFFER_SIZE);
+		boolean isGzip = inFile.endsWith(".gz");
+		isBGZF = isGzip && isBGZF(raw);
+		if(isBGZF && nThreads > 1)
+			inflaters = Executors.newFixedThreadPool(nThreads, new DaemonThreadFactory("inflater"));
+		if(isSampling && (!isGzip || isBGZF)) { // block sampling by random access
+			raw.close();
+			in = null;
+			channel = new RandomAccessFile(inFile, "r").getChannel();
+		}
+		else {
+			if(!isGzip)
+				in = raw;
+			else if(isBGZF)
+				in = new BGZFInputStream(raw, inflaters, nThreads * MAX_PENDING_PER_THREAD);
+			else
+				in = new GZIPInputStream(raw, INPUT_BUFFER_SIZE);
+			channel = null;
+		}
+		framer = new Thread(new FramerRunnable(), "framer");
+		framer.setDaemon(true);
+		framer.start();
+	}
+
+	/**
+	 * Get the next batch of records
+	 * @return  next non-empty batch, or null if the end of file is reached
+	 * @throws IOException  if the file cannot be read or decompressed
+	 */
+	public FastqBatch nextBatch() throws IOException {
+		if(isEOF)
+			return null;
+		FastqBatch batch;
+		try {
+			batch = pending.take();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while reading '" + inFile + "'", e);
+		}
+		if(batch == END_OF_BATCHES) {
+			isEOF = true;
+			if(failure != null)
+				throw failure;
+			return null;
+		}
+		return batch;
+	}
+
+	/**
+	 * Read the next record into a reusable FastqRecord, should not be mixed with nextBatch()
+	 * @param record  record to be set, its slices are valid until the record is set again
+	 * @return  true if a record is read, or false if the end of file is reached
+	 * @throws IOException  if the file cannot be read or decompressed
+	 */
+	public boolean next(FastqRecord record) throws IOException {
+		while(batch == null || batchIdx == batch.size()) {
+			batch = nextBatch();
+			batchIdx = 0;
+			if(batch == null)
+				return false;
+		}
+		batch.get(batchIdx++, record);
+		return true;
+	}
+
+	/**
+	 * @return  true if the records are block sampled, with the sampled records of each block in their own batch
+	 */
+	public boolean isBlockSampled() {
+		return channel != null;
+	}
+
+	/**
+	 * Get the fraction of the input that the read records represent, only known after the end of file is reached
+	 * @return  fraction of the input bytes sampled if block sampled, or of all records if sampled record-by-record,
+	 * or 1 if not sampling
+	 */
+	public double getSampledFraction() {
+		return sampledFraction;
+	}
+
+	/**
+	 * Stop the background threads and close the input file
+	 * @throws IOException  if the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		framer.interrupt();
+		if(inflaters != null)
+			inflaters.shutdownNow();
+		if(in != null)
+			in.close();
+		else
+			channel.close();
+	}
+
+	/**
+	 * check whether a buffered gzip input is BGZF compressed, without consuming it
+	 */
+	private static boolean isBGZF(InputStream in) throws IOException {
+		byte[] header = new byte[BGZF_HEADER_LEN];
+		in.mark(BGZF_HEADER_LEN);
+		int n = 0;
+		int len;
+		while(n < BGZF_HEADER_LEN && (len = in.read(header, n, BGZF_HEADER_LEN - n)) != -1)
+			n += len;
+		in.reset();
+		return n == BGZF_HEADER_LEN && isBGZFHeader(header);
+	}
+
+	private static boolean isBGZFHeader(byte[] header) {
+		return header[0] == 31 && (header[1] & 0xFF) == 139 && header[2] == 8 && (header[3] & 4) != 0
+				&& header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C';
+	}
+
+	/**
+	 * A batch of FASTQ records, with their header, seq and quality lines as byte slices of a shared buffer.
+	 * The header line includes the leading '@', all line terminators are excluded
+	 * @author Qi Zheng
+	 */
+	public static class FastqBatch {
+		FastqBatch(byte[] buf) {
+			this.buf = buf;
+			offsets = new int[INIT_BATCH_RECORDS * FIELDS_PER_RECORD];
+		}
+
+		/**
+		 * @return  number of records in this batch
+		 */
+		public int size() {
+			return nRecords;
+		}
+
+		/**
+		 * @return  the buffer that all records of this batch are sliced from
+		 */
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+		public int getHeaderFrom(int i) {
+			return offsets[i * FIELDS_PER_RECORD];
+		}
+
+		public int getHeaderLength(int i) {
+			return offsets[i * FIELDS_PER_RECORD + 1] - offsets[i * FIELDS_PER_RECORD];
+		}
+
+		public int getSeqFrom(int i) {
+			return offsets[i * FIELDS_PER_RECORD + 2];
+		}
+
+		public int getSeqLength(int i) {
+			return offsets[i * FIELDS_PER_RECORD + 3] - offsets[i * FIELDS_PER_RECORD + 2];
+		}
+
+		public int getQualFrom(int i) {
+			return offsets[i * FIELDS_PER_RECORD + 4];
+		}
+
+		public int getQualLength(int i) {
+			return offsets[i * FIELDS_PER_RECORD + 5] - offsets[i * FIELDS_PER_RECORD + 4];
+		}
+
+		/**
+		 * @param i  record index
+		 * @return  header line of the i-th record as a new String
+		 */
+		public String getHeader(int i) {
+			return new String(buf, getHeaderFrom(i), getHeaderLength(i), StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @param i  record index
+		 * @return  seq of the i-th record as a new String
+		 */
+		public String getSeq(int i) {
+			return new String(buf, getSeqFrom(i), getSeqLength(i), StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @param i  record index
+		 * @return  quality of the i-th record as a new String
+		 */
+		public String getQual(int i) {
+			return new String(buf, getQualFrom(i), getQualLength(i), StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * Set a reusable FastqRecord to the i-th record of this batch
+		 * @param i  record index
+		 * @param record  record to be set
+		 */
+		public void get(int i, FastqRecord record) {
+			record.buf = buf;
+			System.arraycopy(offsets, i * FIELDS_PER_RECORD, record.offsets, 0, FIELDS_PER_RECORD);
+		}
+
+		/**
+		 * @return  number of input bytes this batch represents if it is a sampled block, or 0 otherwise
+		 */
+		public double getSampledBytes() {
+			return sampledBytes;
+		}
+
+		/**
+		 * keep only the first n records
+		 */
+		void truncate(int n) {
+			if(n < nRecords)
+				nRecords = n;
+		}
+
+		/**
+		 * add a record with given line starts and ends
+		 */
+		void add(int[] lineFrom, int[] lineEnd) {
+			if((nRecords + 1) * FIELDS_PER_RECORD > offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			int k = nRecords * FIELDS_PER_RECORD;
+			offsets[k++] = lineFrom[0];
+			offsets[k++] = lineEnd[0];
+			offsets[k++] = lineFrom[1];
+			offsets[k++] = lineEnd[1];
+			offsets[k++] = lineFrom[3];
+			offsets[k] = lineEnd[3];
+			nRecords++;
+		}
+
+		private final byte[] buf;
+		private int[] offsets; // header, seq and qual from and end of each record
+		private int nRecords;
+		private double sampledBytes;
+	}
+
+	/**
+	 * A reusable FASTQ record, with its header, seq and quality lines as byte slices of a shared buffer,
+	 * so no Strings are created unless asked.
+	 * The header line includes the leading '@', all line terminators are excluded
+	 * @author Qi Zheng
+	 */
+	public static class FastqRecord {
+		/**
+		 * @return  the buffer that this record is sliced from
+		 */
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+		public int getHeaderFrom() {
+			return offsets[0];
+		}
+
+		public int getHeaderLength() {
+			return offsets[1] - offsets[0];
+		}
+
+		public int getSeqFrom() {
+			return offsets[2];
+		}
+
+		public int getSeqLength() {
+			return offsets[3] - offsets[2];
+		}
+
+		public int getQualFrom() {
+			return offsets[4];
+		}
+
+		public int getQualLength() {
+			return offsets[5] - offsets[4];
+		}
+
+		/**
+		 * @param i  0-based position
+		 * @return  ascii quality at given position
+		 */
+		public int getQualAt(int i) {
+			return buf[offsets[4] + i] & 0xFF;
+		}
+
+		/**
+		 * @return  header line as a new String
+		 */
+		public String getHeader() {
+			return new String(buf, getHeaderFrom(), getHeaderLength(), StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @return  seq as a new String
+		 */
+		public String getSeq() {
+			return new String(buf, getSeqFrom(), getSeqLength(), StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @return  quality as a new String
+		 */
+		public String getQual() {
+			return new String(buf, getQualFrom(), getQualLength(), StandardCharsets.ISO_8859_1);
+		}
+
+		private byte[] buf;
+		private final int[] offsets = new int[FIELDS_PER_RECORD]; // header, seq and qual from and end
+	}
+
+	/**
+	 * A Runnable for reading the (decompressed) input, and framing them into batches of records
+	 */
+	private class FramerRunnable implements Runnable {
+		@Override
+		public void run() {
+			boolean isClosed = false;
+			try {
+				if(channel != null)
+					frameBlocks();
+				else if(sampleFraction < 1 || sampleReads > 0)
+					frameRecordSample();
+				else
+					frame(null);
+			}
+			catch(IOException e) {
+				failure = e;
+			}
+			catch(InterruptedException e) {
+				isClosed = true;
+			}
+			catch(Throwable e) { // including Errors, i.e. OutOfMemoryError when growing the buffer for a very long record
+				failure = new IOException("failed to read '" + inFile + "': " + e, e);
+			}
+			finally {
+				// always end the batches, or the consumer will be blocked forever
+				if(!isClosed) {
+					try {
+						pending.put(END_OF_BATCHES);
+					}
+					catch(InterruptedException e) {
+						// closed
+					}
+				}
+			}
+		}
+
+		/**
+		 * check the framing of a 4-line record, so a mis-framed record is reported instead of being silently mis-read
+		 * @throws IOException  if the record is malformed
+		 */
+		private void checkRecord(byte[] buf, int[] lineFrom, int[] lineEnd) throws IOException {
+			String err = getRecordError(buf, lineFrom, lineEnd);
+			if(err != null)
+				throw new IOException("malformed FASTQ record #" + nRecords + " in '" + inFile + "': " + err);
+		}
+
+		/**
+		 * frame all records of the input into batches
+		 * @param sampler  sampler that decides whether to keep each record, or null to keep all
+		 */
+		private void frame(RecordSampler sampler) throws IOException, InterruptedException {
+			byte[] buf = new byte[BATCH_BUFFER_SIZE];
+			int len = 0; // bytes in buf
+			boolean isEnd = false;
+			while(!isEnd) {
+				// fill the buffer
+				int n;
+				while(len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1)
+					len += n;
+				isEnd = len < buf.length;
+				FastqBatch batch = new FastqBatch(buf);
+				int start = 0; // start of the next record
+				while((start = skipBlankLines(buf, start, len)) < len) {
+					int end = readRecord(buf, start, len, isEnd, lineFrom, lineEnd);
+					if(end == -1) {
+						if(isEnd)
+							throw new IOException("truncated FASTQ record at the end of '" + inFile + "'");
+						break;
+					}
+					nRecords++;
+					checkRecord(buf, lineFrom, lineEnd);
+					if(sampler == null)
+						batch.add(lineFrom, lineEnd);
+					else
+						sampler.sample(buf, lineFrom, lineEnd, batch);
+					start = end;
+				}
+				// carry the incomplete record to the next buffer, grow the buffer if a record is longer than it
+				byte[] next = new byte[start == 0 && !isEnd ? buf.length * 2 : buf.length];
+				len -= start;
+				System.arraycopy(buf, start, next, 0, len);
+				buf = next;
+				if(batch.size() > 0)
+					pending.put(batch);
+			}
+		}
+
+		/**
+		 * frame all records of the input, and keep a random sample of them,
+		 * by Bernoulli sampling with sampleFraction, or reservoir sampling of sampleReads
+		 */
+		private void frameRecordSample() throws IOException, InterruptedException {
+			RecordSampler sampler = new RecordSampler();
+			frame(sampler);
+			if(sampleReads > 0) {
+				// emit the reservoir in batches
+				int k = 0;
+				while(k < sampler.nKept) {
+					int size = 0;
+					int n = 0;
+					while(k + n < sampler.nKept && (n == 0 || size + sampler.reservoir[k + n].length <= BATCH_BUFFER_SIZE))
+						size += sampler.reservoir[k + n++].length;
+					byte[] buf = new byte[size];
+					FastqBatch batch = new FastqBatch(buf);
+					for(int pos = 0; n > 0; n--, k++) {
+						byte[] record = sampler.reservoir[k];
+						System.arraycopy(record, 0, buf, pos, record.length);
+						readRecord(buf, pos, size, true, lineFrom, lineEnd);
+						batch.add(lineFrom, lineEnd);
+						pos += record.length;
+					}
+					pending.put(batch);
+				}
+			}
+			sampledFraction = nRecords > 0 ? (double) sampler.nKept / nRecords : 1;
+		}
+
+		/**
+		 * frame the records of randomly chosen fixed-size blocks of a plain or BGZF compressed input,
+		 * until sampleFraction of the blocks or sampleReads records are read.
+		 * Each record belongs to the block it starts in, so no record is read twice
+		 */
+		private void frameBlocks() throws IOException, InterruptedException {
+			long size = channel.size();
+			int unitSize = isBGZF ? BGZF_SAMPLE_UNIT_SIZE : PLAIN_SAMPLE_UNIT_SIZE;
+			int nUnits = (int) ((size + unitSize - 1) / unitSize);
+			// shuffle the blocks
+			Random random = new Random(SAMPLE_SEED);
+			int[] units = new int[nUnits];
+			for(int i = 0; i < nUnits; i++) {
+				int j = random.nextInt(i + 1);
+				units[i] = units[j];
+				units[j] = i;
+			}
+			int nSampled = nUnits;
+			if(sampleReads == 0) { // sample by fraction, in file order
+				nSampled = Math.min(Math.max((int) Math.round(sampleFraction * nUnits), 1), nUnits);
+				Arrays.sort(units, 0, nSampled);
+			}
+			long nLeft = sampleReads > 0 ? sampleReads : Long.MAX_VALUE;
+			double bytesSampled = 0;
+			for(int k = 0; k < nSampled && nLeft > 0; k++) {
+				long from = (long) units[k] * unitSize;
+				long to = Math.min(from + unitSize, size);
+				FastqBatch batch = isBGZF ? frameBGZFBlock(from, to, size) : framePlainBlock(from, to, size);
+				int n = batch.size();
+				if(n > nLeft) // only part of this block is sampled
+					batch.truncate((int) nLeft);
+				batch.sampledBytes = n > 0 ? (double) (to - from) * batch.size() / n : to - from;
+				bytesSampled += batch.sampledBytes;
+				nLeft -= batch.size();
+				if(batch.size() > 0)
+					pending.put(batch);
+			}
+			sampledFraction = size > 0 ? bytesSampled / size : 1;
+		}
+
+		/**
+		 * frame the records starting in a block of a plain input
+		 */
+		private FastqBatch framePlainBlock(long from, long to, long size) throws IOException {
+			long readFrom = Math.max(from - 1, 0); // with 1 byte look-behind to find the first line start
+			long readTo = Math.min(to + SAMPLE_OVERRUN_SIZE, size);
+			byte[] buf = new byte[(int) (readTo - readFrom)];
+			readFully(buf, 0, buf.length, readFrom);
+			int start = from == 0 ? 0 : nextLine(buf, 0, buf.length);
+			return frameBlock(buf, start, (int) (to - readFrom), readTo == size);
+		}
+
+		/**
+		 * frame the records starting in the BGZF blocks whose headers are in a block of a BGZF input
+		 */
+		private FastqBatch frameBGZFBlock(long from, long to, long size) throws IOException, InterruptedException {
+			List<byte[]> blocks = new ArrayList<byte[]>();
+			long offset = findBGZFBlock(from, to, size);
+			while(offset < to && offset < size) {
+				byte[] block = readBGZFBlock(offset);
+				blocks.add(block);
+				offset += block.length;
+			}
+			List<byte[]> inflated = inflateAll(blocks);
+			int dataEnd = 0;
+			for(byte[] data : inflated)
+				dataEnd += data.length;
+			int len = dataEnd;
+			// inflate the following blocks to complete the last record
+			while(!blocks.isEmpty() && len - dataEnd < SAMPLE_OVERRUN_SIZE && offset < size) {
+				byte[] block = readBGZFBlock(offset);
+				offset += block.length;
+				byte[] data = BGZFInputStream.inflate(block);
+				inflated.add(data);
+				len += data.length;
+			}
+			byte[] buf = new byte[len];
+			int pos = 0;
+			for(byte[] data : inflated) {
+				System.arraycopy(data, 0, buf, pos, data.length);
+				pos += data.length;
+			}
+			return frameBlock(buf, 0, dataEnd, offset >= size); // no look-behind, the first record is found by resyncing
+		}
+
+		/**
+		 * frame the records starting before dataEnd of a block, after resyncing to the first valid record
+		 * @param buf  buffer of the block, followed by enough bytes to complete its last record
+		 * @param start  start of the first line to try
+		 * @param dataEnd  end of the block's own data
+		 * @param isEnd  whether the buffer ends at the end of file
+		 * @return  a batch of records starting in this block, with the incomplete ones dropped
+		 */
+		private FastqBatch frameBlock(byte[] buf, int start, int dataEnd, boolean isEnd) throws IOException {
+			FastqBatch batch = new FastqBatch(buf);
+			int len = buf.length;
+			// resync to the first record start
+			while(start < dataEnd && (buf[start] != '@' || readRecord(buf, start, len, isEnd, lineFrom, lineEnd) == -1
+					|| getRecordError(buf, lineFrom, lineEnd) != null))
+				start = nextLine(buf, start, len);
+			while((start = skipBlankLines(buf, start, len)) < dataEnd) {
+				int end = readRecord(buf, start, len, isEnd, lineFrom, lineEnd);
+				if(end == -1)
+					break; // longer than the overrun, dropped
+				nRecords++;
+				checkRecord(buf, lineFrom, lineEnd);
+				batch.add(lineFrom, lineEnd);
+				start = end;
+			}
+			return batch;
+		}
+
+		/**
+		 * inflate BGZF blocks, in parallel if there is an inflater pool
+		 */
+		private List<byte[]> inflateAll(List<byte[]> blocks) throws IOException, InterruptedException {
+			List<byte[]> inflated = new ArrayList<byte[]>(blocks.size());
+			if(inflaters == null) {
+				for(byte[] block : blocks)
+					inflated.add(BGZFInputStream.inflate(block));
+				return inflated;
+			}
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(blocks.size());
+			for(final byte[] block : blocks)
+				results.add(inflaters.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return BGZFInputStream.inflate(block);
+					}
+				}));
+			try {
+				for(Future<byte[]> result : results)
+					inflated.add(result.get());
+			}
+			catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("failed to inflate BGZF block: " + e.getCause().getMessage(), e.getCause());
+			}
+			return inflated;
+		}
+
+		/**
+		 * find the first BGZF block header in [from, to), as any block is shorter than the max block size
+		 * @return  offset of the found block, or to if not found
+		 */
+		private long findBGZFBlock(long from, long to, long size) throws IOException {
+			if(from == 0)
+				return 0;
+			int len = (int) Math.min(to - from + BGZF_HEADER_LEN - 1, size - from);
+			byte[] buf = new byte[len];
+			readFully(buf, 0, len, from);
+			byte[] header = new byte[BGZF_HEADER_LEN];
+			for(int i = 0; i + BGZF_HEADER_LEN <= len; i++) {
+				if(buf[i] != 31)
+					continue;
+				System.arraycopy(buf, i, header, 0, BGZF_HEADER_LEN);
+				if(isBGZFHeader(header) && header[14] == 2 && header[15] == 0)
+					return from + i;
+			}
+			return to;
+		}
+
+		/**
+		 * read a whole BGZF block at given offset
+		 */
+		private byte[] readBGZFBlock(long offset) throws IOException {
+			byte[] header = new byte[BGZF_HEADER_LEN];
+			readFully(header, 0, BGZF_HEADER_LEN, offset);
+			if(!isBGZFHeader(header))
+				throw new ZipException("invalid BGZF block header");
+			int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+			if(blockSize < BGZF_HEADER_LEN + BGZF_FOOTER_LEN)
+				throw new ZipException("invalid BGZF block size");
+			byte[] block = Arrays.copyOf(header, blockSize);
+			readFully(block, BGZF_HEADER_LEN, blockSize - BGZF_HEADER_LEN, offset + BGZF_HEADER_LEN);
+			return block;
+		}
+
+		private void readFully(byte[] b, int off, int len, long position) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while(buf.hasRemaining())
+				if(channel.read(buf, position + buf.position() - off) == -1)
+					throw new EOFException("unexpected end of '" + inFile + "'");
+		}
+
+		private long nRecords; // records framed so far
+		private final int[] lineFrom = new int[LINES_PER_RECORD];
+		private final int[] lineEnd = new int[LINES_PER_RECORD];
+	}
+
+	/**
+	 * A Bernoulli sampler keeping each record with sampleFraction, or a reservoir sampler keeping sampleReads records
+	 */
+	private class RecordSampler {
+		/**
+		 * sample a framed record, either add it to the batch, or copy it to the reservoir
+		 */
+		void sample(byte[] buf, int[] lineFrom, int[] lineEnd, FastqBatch batch) {
+			nSeen++;
+			if(sampleReads == 0) {
+				if(random.nextDouble() < sampleFraction) {
+					batch.add(lineFrom, lineEnd);
+					nKept++;
+				}
+				return;
+			}
+			int slot;
+			if(nKept < sampleReads) {
+				if(nKept == reservoir.length)
+					reservoir = Arrays.copyOf(reservoir, (int) Math.min(Math.max(reservoir.length * 2, 1024), sampleReads));
+				slot = nKept++;
+			}
+			else {
+				long j = (long) (random.nextDouble() * nSeen);
+				if(j >= sampleReads)
+					return;
+				slot = (int) j;
+			}
+			// copy as a compact record with an empty separator
+			int headerLen = lineEnd[0] - lineFrom[0];
+			int seqLen = lineEnd[1] - lineFrom[1];
+			byte[] record = new byte[headerLen + 2 * seqLen + 6];
+			int pos = 0;
+			System.arraycopy(buf, lineFrom[0], record, pos, headerLen);
+			record[pos += headerLen] = '\n';
+			System.arraycopy(buf, lineFrom[1], record, ++pos, seqLen);
+			record[pos += seqLen] = '\n';
+			record[++pos] = '+';
+			record[++pos] = '\n';
+			System.arraycopy(buf, lineFrom[3], record, ++pos, seqLen);
+			record[pos + seqLen] = '\n';
+			reservoir[slot] = record;
+		}
+
+		private final Random random = new Random(SAMPLE_SEED);
+		private byte[][] reservoir = new byte[0][];
+		private int nKept;
+		private long nSeen;
+	}
+
+	/**
+	 * frame the 4 lines of a record starting at a non-blank line
+	 * @return  start of the next line after the record, or -1 if the record is incomplete
+	 */
+	private static int readRecord(byte[] buf, int pos, int len, boolean isEnd, int[] lineFrom, int[] lineEnd) {
+		for(int k = 0; k < LINES_PER_RECORD; k++) {
+			if(pos == len)
+				return -1;
+			int end = pos;
+			while(end < len && buf[end] != '\n')
+				end++;
+			if(end == len && !isEnd)
+				return -1; // incomplete line
+			lineFrom[k] = pos;
+			lineEnd[k] = end > pos && buf[end - 1] == '\r' ? end - 1 : end;
+			pos = Math.min(end + 1, len);
+		}
+		return pos;
+	}
+
+	/**
+	 * @return  error of a framed record, or null if it is valid
+	 */
+	private static String getRecordError(byte[] buf, int[] lineFrom, int[] lineEnd) {
+		if(lineEnd[0] == lineFrom[0] || buf[lineFrom[0]] != '@')
+			return "header line not starting with '@'";
+		if(lineEnd[2] == lineFrom[2] || buf[lineFrom[2]] != '+')
+			return "separator line not starting with '+'";
+		if(lineEnd[1] - lineFrom[1] != lineEnd[3] - lineFrom[3])
+			return "seq and quality of different lengths";
+		return null;
+	}
+
+	/**
+	 * @return  start of the first non-blank line at or after pos, or len if not found
+	 */
+	private static int skipBlankLines(byte[] buf, int pos, int len) {
+		while(pos < len && (buf[pos] == '\n' || buf[pos] == '\r' && pos + 1 < len && buf[pos + 1] == '\n'))
+			pos += buf[pos] == '\n' ? 1 : 2;
+		return pos;
+	}
+
+	/**
+	 * @return  start of the next line after pos, or len if not found
+	 */
+	private static int nextLine(byte[] buf, int pos, int len) {
+		while(pos < len && buf[pos] != '\n')
+			pos++;
+		return Math.min(pos + 1, len);
+	}
+
+	/**
+	 * A nested static class member of an InputStream inflating BGZF blocks concurrently on a given thread pool,
+	 * while keeping the block order. With no pool, each block is inflated in the reading thread
+	 * @author Qi Zheng
+	 */
+	private static class BGZFInputStream extends InputStream {
+		BGZFInputStream(InputStream in, ExecutorService inflaters, int maxPending) {
+			this.in = in;
+			this.inflaters = inflaters;
+			this.maxPending = maxPending;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while(block == null || blockPos == block.length) {
+				if(!nextBlock())
+					return -1;
+			}
+			int n = Math.min(len, block.length - blockPos);
+			System.arraycopy(block, blockPos, b, off, n);
+			blockPos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * move to the next inflated block, reading ahead up to maxPending blocks
+		 * @return  false if no more blocks
+		 */
+		private boolean nextBlock() throws IOException {
+			if(inflaters == null) {
+				final byte[] compressed = readBlock();
+				if(compressed == null)
+					return false;
+				block = inflate(compressed);
+				blockPos = 0;
+				return true;
+			}
+			while(!isEOF && blocks.size() < maxPending) {
+				final byte[] compressed = readBlock();
+				if(compressed == null)
+					isEOF = true;
+				else
+					blocks.add(inflaters.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return inflate(compressed);
+						}
+					}));
+			}
+			Future<byte[]> result = blocks.poll();
+			if(result == null)
+				return false;
+			try {
+				block = result.get();
+				blockPos = 0;
+				return true;
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while inflating BGZF block");
+			}
+			catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("failed to inflate BGZF block: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+
+		/**
+		 * read the next whole BGZF block
+		 * @return  compressed block, or null if the end of file is reached
+		 */
+		private byte[] readBlock() throws IOException {
+			byte[] header = new byte[BGZF_HEADER_LEN];
+			int n = readFully(header, 0, BGZF_HEADER_LEN);
+			if(n == 0)
+				return null;
+			if(n < BGZF_HEADER_LEN || !isBGZFHeader(header))
+				throw new ZipException("invalid BGZF block header");
+			int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+			if(blockSize < BGZF_HEADER_LEN + BGZF_FOOTER_LEN)
+				throw new ZipException("invalid BGZF block size");
+			byte[] compressed = Arrays.copyOf(header, blockSize);
+			if(readFully(compressed, BGZF_HEADER_LEN, blockSize - BGZF_HEADER_LEN) < blockSize - BGZF_HEADER_LEN)
+				throw new EOFException("truncated BGZF block");
+			return compressed;
+		}
+
+		private int readFully(byte[] b, int off, int len) throws IOException {
+			int n = 0;
+			int k;
+			while(n < len && (k = in.read(b, off + n, len - n)) != -1)
+				n += k;
+			return n;
+		}
+
+		/**
+		 * inflate a whole BGZF block and check its size and CRC32
+		 */
+		private static byte[] inflate(byte[] compressed) throws IOException {
+			int len = compressed.length;
+			int size = (compressed[len - 4] & 0xFF) | (compressed[len - 3] & 0xFF) << 8
+					| (compressed[len - 2] & 0xFF) << 16 | (compressed[len - 1] & 0xFF) << 24;
+			int crc = (compressed[len - 8] & 0xFF) | (compressed[len - 7] & 0xFF) << 8
+					| (compressed[len - 6] & 0xFF) << 16 | (compressed[len - 5] & 0xFF) << 24;
+			byte[] block = new byte[size];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(compressed, BGZF_HEADER_LEN, len - BGZF_HEADER_LEN - BGZF_FOOTER_LEN);
+				int n = 0;
+				while(n < size && !inflater.finished()) {
+					int k = inflater.inflate(block, n, size - n);
+					if(k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += k;
+				}
+				if(n != size)
+					throw new ZipException("BGZF block size mismatch");
+			}
+			catch(DataFormatException e) {
+				throw new ZipException("invalid BGZF block: " + e.getMessage());
+			}
+			finally {
+				inflater.end();
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(block, 0, size);
+			if((int) checksum.getValue() != crc)
+				throw new ZipException("BGZF block CRC32 mismatch");
+			return block;
+		}
+
+		private final InputStream in;
+		private final ExecutorService inflaters;
+		private final int maxPending;
+		private final Queue<Future<byte[]>> blocks = new ArrayDeque<Future<byte[]>>();
+		private byte[] block;
+		private int blockPos;
+		private boolean isEOF;
+	}
+
+	/**
+	 * A ThreadFactory creating named daemon threads, so an unclosed reader won't hang the JVM
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + ++nCreated);
+			thread.setDaemon(true);
+			return thread;
+		}
+
+		private final String prefix;
+		private int nCreated;
+	}
+
+	public static final int DEFAULT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private static final int INPUT_BUFFER_SIZE = 1 << 16;
+	private static final int BATCH_BUFFER_SIZE = 1 << 20;
+	private static final int INIT_BATCH_RECORDS = 4096;
+	private static final int MAX_PENDING_BATCHES = 8;
+	private static final int MAX_PENDING_PER_THREAD = 4; // max pending BGZF blocks per inflater
+	private static final int LINES_PER_RECORD = 4;
+	private static final int FIELDS_PER_RECORD = 6;
+	private static final int BGZF_HEADER_LEN = 18;
+	private static final int BGZF_FOOTER_LEN = 8;
+	private static final int PLAIN_SAMPLE_UNIT_SIZE = 1 << 20; // block size of plain input sampling
+	private static final int BGZF_SAMPLE_UNIT_SIZE = 1 << 18; // block size of BGZF input sampling, ~1MB inflated
+	private static final int SAMPLE_OVERRUN_SIZE = 1 << 16; // max bytes read after a sampled block to complete its last record
+	private static final long SAMPLE_SEED = 0x41424653L; // fixed seed for reproducible samples
+	private static final FastqBatch END_OF_BATCHES = new FastqBatch(new byte[0]); // poison pill
+
+	private final String inFile;
+	private final InputStream in; // (decompressed) input, or null if block sampled
+	private final FileChannel channel; // input of block sampling
+	private final boolean isBGZF;
+	private final double sampleFraction;
+	private final long sampleReads;
+	private volatile double sampledFraction = 1;
+	private ExecutorService inflaters;
+	private final Thread framer;
+	private final BlockingQueue<FastqBatch> pending = new ArrayBlockingQueue<FastqBatch>(MAX_PENDING_BATCHES);
+	private volatile IOException failure;
+	private boolean isEOF;
+	private FastqBatch batch; // current batch of next()
+	private int batchIdx;
+}
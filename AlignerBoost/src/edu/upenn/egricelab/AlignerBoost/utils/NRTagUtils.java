@@ -0,0 +1,127 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a utility class to decode the clone of the NR-tag reads
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import static edu.upenn.egricelab.AlignerBoost.EnvConstants.progName;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMRecord;
+
+/** Utility methods to get the clone of an NR-tag read, which is named as nrID:clone:length by Fastq2NR,
+ * where nrID is "tr", "un" or "nr" followed by digits.
+ * The read name is scanned char by char instead of being matched by a regex, so no objects are allocated per read.
+ * The clone can also be stored in a ZC:i tag by filterSE/filterPE --nr, which is only trusted if the file header
+ * has a @PG record of such a run, since other tools may write the same tag for other purposes.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class NRTagUtils {
+	/**
+	 * Get the clone of an NR-tag read name
+	 * @param name  read name
+	 * @return  clone embedded in the name, or 1 if it is not an NR-tag name
+	 * @throws NumberFormatException  if the embedded clone is too large for an int
+	 */
+	public static int parseClone(String name) {
+		int len = name.length();
+		if(len < 2)
+			return 1;
+		char c1 = name.charAt(0);
+		char c2 = name.charAt(1);
+		if(!(c1 == 't' && c2 == 'r' || c1 == 'u' && c2 == 'n' || c1 == 'n' && c2 == 'r'))
+			return 1;
+		// skip the nrID digits
+		int i = skipDigits(name, 2);
+		if(i == 2 || i == len || name.charAt(i) != ':')
+			return 1;
+		// parse the clone digits
+		int from = ++i;
+		int clone = 0;
+		for(; i < len && isDigit(name.charAt(i)); i++) {
+			int digit = name.charAt(i) - '0';
+			if(clone > (Integer.MAX_VALUE - digit) / 10)
+				throw new NumberFormatException("For input string: \"" + name.substring(from, skipDigits(name, from)) + "\"");
+			clone = clone * 10 + digit;
+		}
+		if(i == from || i == len || name.charAt(i) != ':')
+			return 1;
+		// there must be length digits
+		return i + 1 < len && isDigit(name.charAt(i + 1)) ? clone : 1;
+	}
+
+	/**
+	 * Test whether the clone tags of a SAM/BAM file are written by filterSE/filterPE --nr, according to its @PG records
+	 * @param header  SAM/BAM file header
+	 * @return  true if the clone tags can be trusted
+	 */
+	public static boolean hasCloneTag(SAMFileHeader header) {
+		for(SAMProgramRecord progRec : header.getProgramRecords()) {
+			String prog = progRec.getProgramName();
+			String cmdLine = progRec.getCommandLine();
+			if(prog == null || cmdLine == null
+					|| !(prog.equals(progName + " run filterSE") || prog.equals(progName + " run filterPE")))
+				continue;
+			for(String arg : cmdLine.split(" "))
+				if(arg.equals("--nr"))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the clone of an NR-tag alignment, from its ZC:i tag if trusted and present, or its read name otherwise
+	 * @param record  alignment
+	 * @param useTag  whether the clone tag can be trusted, as tested by {@link #hasCloneTag(SAMFileHeader)}
+	 * @return  clone of this alignment, or 1 if it is not an NR-tag read
+	 */
+	public static int getClone(SAMRecord record, boolean useTag) {
+		if(useTag) {
+			Object clone = record.getAttribute(CLONE_TAG);
+			if(clone instanceof Integer)
+				return (Integer) clone;
+		}
+		return parseClone(record.getReadName());
+	}
+
+	/**
+	 * Store the clone of an NR-tag alignment in its ZC:i tag, decoded from its read name
+	 * @param record  alignment
+	 */
+	public static void setCloneTag(SAMRecord record) {
+		record.setAttribute(CLONE_TAG, parseClone(record.getReadName()));
+	}
+
+	private static int skipDigits(String str, int from) {
+		int i = from;
+		while(i < str.length() && isDigit(str.charAt(i)))
+			i++;
+		return i;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	public static final String CLONE_TAG = "ZC"; // SAM tag of the clone value
+}
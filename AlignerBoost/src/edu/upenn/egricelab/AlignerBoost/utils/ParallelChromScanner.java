@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to scan the chroms of an indexed SAM/BAM file in parallel
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import htsjdk.samtools.*;
+
+/** A shared per-chromosome scanner of the coverage and counting tools.
+ * Each chrom is queried by a worker thread with its own reader, largest chroms first,
+ * and each chrom is finished in the calling thread in the given order once scanned, i.e. to write the chroms in header order.
+ * The worker threads are terminated before their readers are closed, so no reader is closed while still in use.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class ParallelChromScanner {
+	/**
+	 * Construct a ParallelChromScanner of a SAM/BAM file
+	 * @param samInFile  sorted BAM file with pre-built index
+	 * @param nThreads  number of worker threads
+	 * @param statusTask  status task to update by the processed records, or null if not monitored
+	 */
+	public ParallelChromScanner(File samInFile, int nThreads, ProcessStatusTask statusTask) {
+		this.samInFile = samInFile;
+		this.nThreads = nThreads;
+		this.statusTask = statusTask;
+	}
+
+	/**
+	 * Scan the chroms in parallel, and finish them in the given order
+	 * @param tasks  tasks of the chroms in the order to be finished
+	 * @throws IOException  if any IO error occurs
+	 */
+	public void scan(List<? extends ChromTask> tasks) throws IOException {
+		List<ChromTask> sortedTasks = new ArrayList<ChromTask>(tasks);
+		Collections.sort(sortedTasks, new Comparator<ChromTask>() {
+			@Override
+			public int compare(ChromTask task1, ChromTask task2) {
+				return Long.compare(task2.size, task1.size); // largest first
+			}
+		});
+		// SamReader is not thread-safe, so each worker thread queries its own copy
+		final List<SamReader> localSamInList = Collections.synchronizedList(new ArrayList<SamReader>());
+		final ThreadLocal<SamReader> localSamIn = new ThreadLocal<SamReader>() {
+			@Override
+			protected SamReader initialValue() {
+				SamReader samIn = SamReaderFactory.makeDefault().open(samInFile);
+				localSamInList.add(samIn);
+				return samIn;
+			}
+		};
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		Map<ChromTask, Future<Void>> results = new HashMap<ChromTask, Future<Void>>();
+		try {
+			for(final ChromTask task : sortedTasks) {
+				results.put(task, workers.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						scanChrom(task, localSamIn.get());
+						return null;
+					}
+				}));
+			}
+			workers.shutdown();
+			for(ChromTask task : tasks) {
+				results.get(task).get();
+				task.finished();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while scanning chroms", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("failed to scan chrom: " + e.getCause().getMessage(), e.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); // readers may still be in use
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(SamReader samIn : localSamInList)
+				samIn.close();
+		}
+	}
+
+	/**
+	 * Scan a chrom by its own query
+	 * @param task  task of this chrom
+	 * @param samIn  indexed SAM/BAM reader of this thread
+	 */
+	private void scanChrom(ChromTask task, SamReader samIn) {
+		SAMRecordIterator chrResults = samIn.query(task.intervals, false);
+		long n = 0;
+		try {
+			while(chrResults.hasNext()) {
+				SAMRecord record = chrResults.next();
+				if(statusTask != null && ++n % statusFreq == 0)
+					statusTask.updateStatus(statusFreq); // Update status in batch
+				task.processRecord(record);
+			}
+		}
+		finally {
+			chrResults.close();
+		}
+		if(statusTask != null)
+			statusTask.updateStatus(n % statusFreq);
+		task.scanned();
+	}
+
+	/**
+	 * A nested static class member of the task of a chrom, which is scanned in a worker thread and finished in the calling thread
+	 */
+	public static abstract class ChromTask {
+		/**
+		 * Construct a ChromTask
+		 * @param intervals  sorted and optimized query intervals of this chrom
+		 * @param size  estimated size of this chrom, larger chroms are scanned first
+		 */
+		public ChromTask(QueryInterval[] intervals, long size) {
+			this.intervals = intervals;
+			this.size = size;
+		}
+
+		/**
+		 * Process a record of this chrom, called in the worker thread
+		 * @param record  record overlapping the query intervals
+		 */
+		protected abstract void processRecord(SAMRecord record);
+
+		/**
+		 * Called in the worker thread after all records of this chrom are processed
+		 */
+		protected void scanned() {
+		}
+
+		/**
+		 * Called in the calling thread in the given order after this chrom is scanned
+		 * @throws IOException  if any IO error occurs
+		 */
+		protected void finished() throws IOException {
+		}
+
+		private final QueryInterval[] intervals;
+		private final long size;
+	}
+
+	private final File samInFile;
+	private final int nThreads;
+	private final ProcessStatusTask statusTask;
+	private static final int statusFreq = 10000;
+}
@@ -61,6 +61,14 @@ public class ProcessStatusTask extends TimerTask {
 		status++;
 	}
 
+	/**
+	 * update the status by adding a batch count, which can be called by multiple threads
+	 * @param n  number of newly processed items
+	 */
+	public synchronized void updateStatus(long n) {
+		status += n;
+	}
+
 	/**
 	 * @return the info
 	 */
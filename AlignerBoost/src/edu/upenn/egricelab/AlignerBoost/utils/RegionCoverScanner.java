@@ -0,0 +1,709 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to compute the base-wise coverage of many BED6 regions from an indexed SAM/BAM file in one sweep
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import htsjdk.samtools.*;
+
+/** A shared coverage engine of the region-level coverage tools.
+ * The flank-extended scan regions are sorted and merged into blocks of overlapping regions,
+ * and each block is queried and covered only once, with the reads of each strand kept in separate buffers,
+ * so every region of the block takes its relative-strand coverage from the same shared buffers.
+ * The blocks can be covered in parallel, each worker thread querying by its own reader.
+ * The regions are written in the order they are added, directly if they are finished in order,
+ * i.e. for a sorted BED file, or through a temporary spill file otherwise.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class RegionCoverScanner {
+	/**
+	 * Construct a RegionCoverScanner with the read filters
+	 * @param samIn  indexed SAM/BAM input
+	 * @param myStrand  relative strand(s) to look at, 1: sense, 2: antisense, 3: both
+	 * @param minMapQ  minimum mapQ cutoff
+	 * @param countSoft  whether to count soft-clipped bases
+	 * @param doNR  whether to treat reads as NR-tags, in which their clone information are embedded
+	 * @throws IllegalArgumentException  if samIn is not indexed
+	 */
+	public RegionCoverScanner(SamReader samIn, int myStrand, int minMapQ, boolean countSoft, boolean doNR)
+			throws IllegalArgumentException {
+		if(!samIn.hasIndex())
+			throw new IllegalArgumentException("SAM/BAM file must be a sorted BAM file with pre-built index");
+		this.samIn = samIn;
+		this.myStrand = myStrand;
+		this.minMapQ = minMapQ;
+		this.countSoft = countSoft;
+		this.doNR = doNR;
+		useCloneTag = doNR && NRTagUtils.hasCloneTag(samIn.getFileHeader());
+		regions = new ArrayList<Region>();
+		chrRank = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Add a region to be scanned and written
+	 * @param chr  chrom name
+	 * @param start  1-based region start
+	 * @param end  1-based region end
+	 * @param name  region name
+	 * @param strand  region strand, '+', '-' or '.'
+	 * @param scanStart  1-based flank-extended start to cover
+	 * @param scanEnd  1-based flank-extended end to cover
+	 */
+	public void addRegion(String chr, int start, int end, String name, String strand, int scanStart, int scanEnd) {
+		if(!chrRank.containsKey(chr)) // chroms are scanned in their first appearance order
+			chrRank.put(chr, chrRank.size());
+		regions.add(new Region(regions.size(), chr, start, end, name, strand, scanStart, scanEnd));
+	}
+
+	/**
+	 * @return  number of regions added
+	 */
+	public int getNumRegions() {
+		return regions.size();
+	}
+
+	/**
+	 * Scan all added regions by merged blocks, and write each of them in added order
+	 * @param out  output
+	 * @param writer  RegionWriter to write the rows of each region
+	 * @throws IOException  if any IO error occurs
+	 */
+	public void scan(Writer out, RegionWriter writer) throws IOException {
+		scan(out, writer, null, 1);
+	}
+
+	/**
+	 * Scan all added regions by merged blocks in parallel, and write each of them in added order
+	 * @param out  output
+	 * @param writer  RegionWriter to write the rows of each region, must be thread-safe if nThreads > 1
+	 * @param samInFile  SAM/BAM file for each worker thread to open its own reader, not used if nThreads == 1
+	 * @param nThreads  number of worker threads
+	 * @throws IOException  if any IO error occurs
+	 */
+	public void scan(Writer out, final RegionWriter writer, final File samInFile, int nThreads) throws IOException {
+		RegionOutput regionOut = new RegionOutput(out, writer, regions.size());
+		try {
+			if(nThreads == 1) {
+				for(Block block : getBlocks())
+					scanBlock(block, samIn, regionOut);
+			}
+			else
+				scanParallel(getBlocks(), writer, samInFile, nThreads, regionOut);
+		}
+		finally {
+			regionOut.close();
+		}
+	}
+
+	/**
+	 * Merge the sorted overlapping regions into blocks
+	 * @return  blocks in chrom and start order
+	 */
+	private List<Block> getBlocks() {
+		List<Region> sortedRegions = new ArrayList<Region>(regions);
+		Collections.sort(sortedRegions, new Comparator<Region>() {
+			@Override
+			public int compare(Region r1, Region r2) {
+				int cmp = Integer.compare(chrRank.get(r1.chr), chrRank.get(r2.chr));
+				return cmp != 0 ? cmp : Integer.compare(r1.start, r2.start); // stable for the ties
+			}
+		});
+		List<Block> blocks = new ArrayList<Block>();
+		for(int i = 0; i < sortedRegions.size();) {
+			// merge the following overlapping regions into this block
+			Region first = sortedRegions.get(i);
+			int blockStart = first.scanStart;
+			int blockEnd = first.scanEnd;
+			long regionLenSum = first.getScanLength();
+			int j = i + 1;
+			for(; j < sortedRegions.size(); j++) {
+				Region region = sortedRegions.get(j);
+				if(!region.chr.equals(first.chr) || region.scanStart > blockEnd)
+					break;
+				int newStart = Math.min(blockStart, region.scanStart);
+				int newEnd = Math.max(blockEnd, region.scanEnd);
+				if(newEnd - newStart + 1 > MAX_BLOCK_LENGTH || regionLenSum + region.getScanLength() > MAX_BLOCK_LENGTH)
+					break;
+				blockStart = newStart;
+				blockEnd = newEnd;
+				regionLenSum += region.getScanLength();
+			}
+			blocks.add(new Block(first.chr, blockStart, blockEnd, sortedRegions.subList(i, j)));
+			i = j;
+		}
+		return blocks;
+	}
+
+	/**
+	 * Cover the blocks by worker threads, each with its own reader, and write their regions in block order,
+	 * with at most a few pending blocks per thread
+	 * @param blocks  blocks to scan
+	 * @param writer  RegionWriter to render the rows of each region
+	 * @param samInFile  SAM/BAM file for the worker readers
+	 * @param nThreads  number of worker threads
+	 * @param regionOut  output of the regions in added order
+	 * @throws IOException  if any IO error occurs
+	 */
+	private void scanParallel(List<Block> blocks, final RegionWriter writer, final File samInFile, int nThreads,
+			RegionOutput regionOut) throws IOException {
+		// SamReader is not thread-safe, so each worker thread queries its own copy
+		final List<SamReader> localSamInList = Collections.synchronizedList(new ArrayList<SamReader>());
+		final ThreadLocal<SamReader> localSamIn = new ThreadLocal<SamReader>() {
+			@Override
+			protected SamReader initialValue() {
+				SamReader samIn = SamReaderFactory.makeDefault().open(samInFile);
+				localSamInList.add(samIn);
+				return samIn;
+			}
+		};
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		Queue<Future<RenderedBlock>> pending = new ArrayDeque<Future<RenderedBlock>>();
+		try {
+			for(final Block block : blocks) {
+				if(pending.size() >= nThreads * MAX_PENDING_PER_THREAD) // wait for the oldest block
+					pending.poll().get().writeTo(regionOut);
+				pending.add(workers.submit(new Callable<RenderedBlock>() {
+					@Override
+					public RenderedBlock call() throws IOException {
+						RenderedBlock rendered = new RenderedBlock(writer);
+						scanBlock(block, localSamIn.get(), rendered);
+						return rendered;
+					}
+				}));
+			}
+			while(!pending.isEmpty())
+				pending.poll().get().writeTo(regionOut);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while scanning regions", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("failed to scan regions: " + e.getCause().getMessage(), e.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); // readers may still be in use
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(SamReader samIn : localSamInList)
+				samIn.close();
+		}
+	}
+
+	/**
+	 * Cover a block once, and write its regions
+	 * @param block  block to scan
+	 * @param samIn  indexed SAM/BAM reader
+	 * @param sink  where to write each region of the block
+	 * @throws IOException  if any IO error occurs
+	 */
+	private void scanBlock(Block block, SamReader samIn, RegionSink sink) throws IOException {
+		List<Region> blockRegions = block.regions;
+		String chr = block.chr;
+		int blockStart = block.start;
+		int blockEnd = block.end;
+		int blockLen = blockEnd - blockStart + 1;
+		boolean isStranded = myStrand != 3; // otherwise all reads are counted for every region
+		int[] plusIdx = new int[blockLen + 1]; // difference array with one more element
+		int[] minusIdx = isStranded ? new int[blockLen + 1] : plusIdx;
+		OuterClips clips = countSoft ? new OuterClips() : null;
+		SAMRecordIterator results = samIn.query(chr, blockStart, blockEnd, false);
+		try {
+			while(results.hasNext()) {
+				SAMRecord record = results.next();
+				int readLen = record.getReadLength();
+				if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
+					continue;
+				if(record.getMappingQuality() < minMapQ)
+					continue;
+				int clone = 1;
+				if(doNR)
+					clone = NRTagUtils.getClone(record, useCloneTag);
+
+				SamCoverUtils.addCover(record.getReadNegativeStrandFlag() ? minusIdx : plusIdx, blockStart, record, countSoft, clone);
+				if(countSoft)
+					clips.add(record, clone);
+			} // end each record
+		}
+		finally {
+			results.close();
+		}
+		SamCoverUtils.accumulate(plusIdx);
+		if(isStranded)
+			SamCoverUtils.accumulate(minusIdx);
+		if(countSoft)
+			clips.sort();
+
+		int[] bothIdx = isStranded ? null : plusIdx; // built on demand
+		int[] noneIdx = null; // built on demand
+		for(Region region : blockRegions) {
+			// check relative strands, reads on the same strand are sense
+			boolean usePlus = region.strand.equals(".") || ((region.strand.equals("+") ? 1 : 2) & myStrand) != 0;
+			boolean useMinus = region.strand.equals(".") || ((region.strand.equals("-") ? 1 : 2) & myStrand) != 0;
+			int[] cover;
+			if(usePlus && useMinus) {
+				if(bothIdx == null) {
+					bothIdx = new int[blockLen + 1];
+					for(int k = 0; k <= blockLen; k++)
+						bothIdx[k] = plusIdx[k] + minusIdx[k];
+				}
+				cover = bothIdx;
+			}
+			else if(usePlus)
+				cover = plusIdx;
+			else if(useMinus)
+				cover = minusIdx;
+			else {
+				if(noneIdx == null)
+					noneIdx = new int[blockLen + 1];
+				cover = noneIdx;
+			}
+			int offset = region.scanStart - blockStart;
+			if(countSoft) { // exclude the soft-clips of the reads not overlapping this region
+				int[] regionCover = clips.exclude(cover, offset, region.scanStart, region.scanEnd, usePlus, useMinus);
+				if(regionCover != null) {
+					cover = regionCover;
+					offset = 0;
+				}
+			}
+			sink.write(region, cover, offset);
+		}
+	}
+
+	/**
+	 * An interface to write the output rows of a region from its coverage
+	 */
+	public interface RegionWriter {
+		/**
+		 * write the rows of a region
+		 * @param out  output
+		 * @param region  region to write
+		 * @param cover  base-wise coverage of the region's relative strand(s)
+		 * @param offset  0-based index in cover of the region's scan start
+		 * @throws IOException  if any IO error occurs
+		 */
+		void write(Writer out, Region region, int[] cover, int offset) throws IOException;
+	}
+
+	/**
+	 * An interface of where a region is written once it is covered
+	 */
+	private interface RegionSink {
+		/**
+		 * write a covered region
+		 * @param region  covered region
+		 * @param cover  base-wise coverage of the region's relative strand(s)
+		 * @param offset  0-based index in cover of the region's scan start
+		 * @throws IOException  if any IO error occurs
+		 */
+		void write(Region region, int[] cover, int offset) throws IOException;
+	}
+
+	/**
+	 * A nested static class member of a block of merged regions
+	 */
+	private static class Block {
+		Block(String chr, int start, int end, List<Region> regions) {
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+			this.regions = regions;
+		}
+
+		final String chr;
+		final int start; // 1-based block start
+		final int end; // 1-based block end
+		final List<Region> regions; // regions in this block
+	}
+
+	/**
+	 * A nested static class member of the rendered rows of the regions of a block, rendered by a worker thread
+	 * and written later by the output thread
+	 */
+	private static class RenderedBlock implements RegionSink {
+		RenderedBlock(RegionWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(Region region, int[] cover, int offset) throws IOException {
+			StringWriter text = new StringWriter();
+			writer.write(text, region, cover, offset);
+			regions.add(region);
+			texts.add(text.toString());
+		}
+
+		/**
+		 * write all rendered regions
+		 * @param regionOut  output of the regions in added order
+		 * @throws IOException  if any IO error occurs
+		 */
+		void writeTo(RegionOutput regionOut) throws IOException {
+			for(int k = 0; k < regions.size(); k++)
+				regionOut.write(regions.get(k), texts.get(k));
+		}
+
+		private final RegionWriter writer;
+		private final List<Region> regions = new ArrayList<Region>();
+		private final List<String> texts = new ArrayList<String>();
+	}
+
+	/**
+	 * A nested static class member of a BED6 region to be scanned
+	 */
+	public static class Region {
+		Region(int index, String chr, int start, int end, String name, String strand, int scanStart, int scanEnd) {
+			this.index = index;
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+			this.name = name;
+			this.strand = strand;
+			this.scanStart = scanStart;
+			this.scanEnd = scanEnd;
+		}
+
+		/**
+		 * @return  length of the flank-extended scan region
+		 */
+		public int getScanLength() {
+			return scanEnd - scanStart + 1;
+		}
+
+		final int index; // added order
+		public final String chr;
+		public final int start; // 1-based region start
+		public final int end; // 1-based region end
+		public final String name;
+		public final String strand;
+		public final int scanStart; // 1-based flank-extended start
+		public final int scanEnd; // 1-based flank-extended end
+	}
+
+	/**
+	 * A nested static class member of the soft-clipped bases of the reads in a block that are outside their aligned spans,
+	 * which are excluded from a region if the read's aligned span does not overlap the region,
+	 * so the coverage is the same as if the region is queried alone
+	 */
+	private static class OuterClips {
+		/**
+		 * add the leading and trailing soft-clips of a read
+		 * @param record  alignment
+		 * @param clone  clone value of this alignment
+		 */
+		void add(SAMRecord record, int clone) {
+			boolean isMinus = record.getReadNegativeStrandFlag();
+			int leadLen = SamCoverUtils.getLeadingSoftClip(record.getCigar());
+			int trailLen = SamCoverUtils.getTrailingSoftClip(record.getCigar());
+			if(leadLen > 0) {
+				int alnStart = record.getAlignmentStart();
+				leading.add(new Clip(alnStart, alnStart - leadLen, alnStart, clone, isMinus));
+			}
+			if(trailLen > 0) {
+				int alnEnd = record.getAlignmentEnd();
+				trailing.add(new Clip(alnEnd, alnEnd + 1, alnEnd + 1 + trailLen, clone, isMinus));
+			}
+			maxLen = Math.max(maxLen, Math.max(leadLen, trailLen));
+		}
+
+		/**
+		 * sort the clips by their read ends, must be called after all reads are added
+		 */
+		void sort() {
+			Collections.sort(leading);
+			Collections.sort(trailing);
+		}
+
+		/**
+		 * exclude the outer soft-clips of the reads not overlapping a region from its coverage
+		 * @param cover  base-wise coverage of the block
+		 * @param offset  0-based index in cover of the region's scan start
+		 * @param scanStart  1-based region scan start
+		 * @param scanEnd  1-based region scan end
+		 * @param usePlus  whether the plus strand reads are covered
+		 * @param useMinus  whether the minus strand reads are covered
+		 * @return  a copy of the region's coverage with the clips excluded, or null if there is nothing to exclude
+		 */
+		int[] exclude(int[] cover, int offset, int scanStart, int scanEnd, boolean usePlus, boolean useMinus) {
+			int[] regionCover = null;
+			// trailing clips of the reads ending before the region
+			for(int k = search(trailing, scanStart - maxLen); k < trailing.size() && trailing.get(k).readEnd < scanStart; k++)
+				regionCover = exclude(trailing.get(k), regionCover, cover, offset, scanStart, scanEnd, usePlus, useMinus);
+			// leading clips of the reads starting after the region
+			for(int k = search(leading, scanEnd + 1); k < leading.size() && leading.get(k).readEnd <= scanEnd + maxLen; k++)
+				regionCover = exclude(leading.get(k), regionCover, cover, offset, scanStart, scanEnd, usePlus, useMinus);
+			return regionCover;
+		}
+
+		private static int[] exclude(Clip clip, int[] regionCover, int[] cover, int offset, int scanStart, int scanEnd,
+				boolean usePlus, boolean useMinus) {
+			if(clip.isMinus ? !useMinus : !usePlus)
+				return regionCover;
+			int from = Math.max(clip.from, scanStart);
+			int to = Math.min(clip.to, scanEnd + 1);
+			if(from >= to) // not in this region
+				return regionCover;
+			if(regionCover == null)
+				regionCover = Arrays.copyOfRange(cover, offset, offset + scanEnd - scanStart + 2);
+			for(int i = from; i < to; i++)
+				regionCover[i - scanStart] -= clip.clone;
+			return regionCover;
+		}
+
+		/**
+		 * @return  index of the first clip with read end no less than pos
+		 */
+		private static int search(List<Clip> clips, int pos) {
+			int lo = 0;
+			int hi = clips.size();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(clips.get(mid).readEnd < pos)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private final List<Clip> leading = new ArrayList<Clip>();
+		private final List<Clip> trailing = new ArrayList<Clip>();
+		private int maxLen; // max clip length
+	}
+
+	/**
+	 * A nested static class member of a soft-clip outside the aligned span of a read
+	 */
+	private static class Clip implements Comparable<Clip> {
+		Clip(int readEnd, int from, int to, int clone, boolean isMinus) {
+			this.readEnd = readEnd;
+			this.from = from;
+			this.to = to;
+			this.clone = clone;
+			this.isMinus = isMinus;
+		}
+
+		@Override
+		public int compareTo(Clip other) {
+			return Integer.compare(readEnd, other.readEnd);
+		}
+
+		final int readEnd; // aligned start of a leading clip, or aligned end of a trailing clip
+		final int from; // 1-based start, inclusive
+		final int to; // 1-based end, exclusive
+		final int clone;
+		final boolean isMinus;
+	}
+
+	/**
+	 * A nested static class member of the region output in added order,
+	 * writing a region directly if all previous regions are written, or spilling it to a temporary file otherwise
+	 * until it is its turn
+	 */
+	private static class RegionOutput implements RegionSink {
+		RegionOutput(Writer out, RegionWriter writer, int nRegions) {
+			this.out = out;
+			this.writer = writer;
+			spillFrom = new long[nRegions];
+			spillTo = new long[nRegions];
+			Arrays.fill(spillTo, -1);
+		}
+
+		@Override
+		public void write(Region region, int[] cover, int offset) throws IOException {
+			writer.write(begin(region), region, cover, offset);
+			end(region);
+		}
+
+		/**
+		 * write a region already rendered
+		 * @param region  rendered region
+		 * @param text  rendered rows
+		 * @throws IOException  if any IO error occurs
+		 */
+		void write(Region region, String text) throws IOException {
+			begin(region).write(text);
+			end(region);
+		}
+
+		/**
+		 * begin to write a region
+		 * @param region  region to write
+		 * @return  the output if it is in turn, or the spill file otherwise
+		 * @throws IOException  if any IO error occurs
+		 */
+		private Writer begin(Region region) throws IOException {
+			if(region.index == next)
+				return out;
+			if(spillOut == null) {
+				spillFile = File.createTempFile("RegionCoverScanner", ".tmp");
+				spillFile.deleteOnExit();
+				spillOut = new CharSpillWriter(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), SPILL_BUFFER_SIZE)));
+			}
+			spillFrom[region.index] = spillOut.getPosition();
+			return spillOut;
+		}
+
+		/**
+		 * end writing a region, and write the spilled regions that are now in turn
+		 * @param region  region written
+		 * @throws IOException  if any IO error occurs
+		 */
+		private void end(Region region) throws IOException {
+			if(region.index == next) {
+				next++;
+				writeSpilled();
+			}
+			else {
+				spillTo[region.index] = spillOut.getPosition();
+				isSpilled = true;
+			}
+		}
+
+		/**
+		 * write the spilled regions that are now in turn
+		 * @throws IOException  if any IO error occurs
+		 */
+		private void writeSpilled() throws IOException {
+			if(!isSpilled)
+				return;
+			while(next < spillTo.length && spillTo[next] != -1) {
+				spillOut.flush();
+				if(spillIn == null)
+					spillIn = new RandomAccessFile(spillFile, "r");
+				copySpilled(spillFrom[next], spillTo[next]);
+				next++;
+			}
+		}
+
+		/**
+		 * copy the chars of a spilled region to the output
+		 * @param from  start char position, inclusive
+		 * @param to  end char position, exclusive
+		 * @throws IOException  if any IO error occurs
+		 */
+		private void copySpilled(long from, long to) throws IOException {
+			byte[] buf = new byte[SPILL_BUFFER_SIZE];
+			char[] cbuf = new char[SPILL_BUFFER_SIZE / 2];
+			spillIn.seek(2 * from); // 2 bytes per char
+			for(long pos = from; pos < to;) {
+				int n = (int) Math.min(cbuf.length, to - pos);
+				spillIn.readFully(buf, 0, 2 * n);
+				for(int k = 0; k < n; k++)
+					cbuf[k] = (char) ((buf[2 * k] & 0xFF) << 8 | buf[2 * k + 1] & 0xFF);
+				out.write(cbuf, 0, n);
+				pos += n;
+			}
+		}
+
+		/**
+		 * close and delete the spill file, if any
+		 * @throws IOException  if any IO error occurs
+		 */
+		void close() throws IOException {
+			if(spillIn != null)
+				spillIn.close();
+			if(spillOut != null)
+				spillOut.close();
+			if(spillFile != null)
+				spillFile.delete();
+		}
+
+		private final Writer out;
+		private final RegionWriter writer;
+		private final long[] spillFrom; // start char position of each spilled region
+		private final long[] spillTo; // end char position of each spilled region, -1 if not spilled
+		private int next; // index of the next region to write
+		private boolean isSpilled; // whether any region is spilled
+		private File spillFile;
+		private CharSpillWriter spillOut;
+		private RandomAccessFile spillIn;
+	}
+
+	/**
+	 * A nested static class member of a Writer writing chars as 2 bytes each, so a char position is a fixed file offset
+	 */
+	private static class CharSpillWriter extends Writer {
+		CharSpillWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for(int k = off; k < off + len; k++)
+				out.writeChar(cbuf[k]);
+			position += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			for(int k = off; k < off + len; k++)
+				out.writeChar(str.charAt(k));
+			position += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		/**
+		 * @return  number of chars written
+		 */
+		long getPosition() {
+			return position;
+		}
+
+		private final DataOutputStream out;
+		private long position;
+	}
+
+	private static final int MAX_BLOCK_LENGTH = 1 << 18; // max merged block length and total region length of a block, unless a single region is longer
+	private static final int MAX_PENDING_PER_THREAD = 2; // max pending rendered blocks per worker
+	private static final int SPILL_BUFFER_SIZE = 1 << 16;
+
+	private final SamReader samIn;
+	private final int myStrand;
+	private final int minMapQ;
+	private final boolean countSoft;
+	private final boolean doNR; // whether to treat reads as NR-tags
+	private final boolean useCloneTag; // whether the clone tags written by filterSE/filterPE --nr can be trusted
+	private final List<Region> regions; // regions in added order
+	private final Map<String, Integer> chrRank; // first appearance order of chroms
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a utility class to add the coverage of SAM/BAM alignments as difference events
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.*;
+
+/** Utility methods shared by the SAM/BAM coverage tools.
+ * An alignment covers its M, EQ, X and D bases, and optionally its soft-clipped bases, from its unclipped start;
+ * each run of covered bases is a block, and is added as a +clone event at its start and a -clone event at its end,
+ * so the base-wise coverage is obtained by a prefix sum of the events.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class SamCoverUtils {
+	/**
+	 * Get the covered blocks of an alignment
+	 * @param record  alignment
+	 * @param countSoft  whether to count soft-clipped bases
+	 * @return  start (inclusive) and end (exclusive) 1-based reference positions of each block, in pairs
+	 */
+	public static int[] getCoverBlocks(SAMRecord record, boolean countSoft) {
+		Cigar cigar = record.getCigar();
+		int[] blocks = new int[2 * cigar.numCigarElements()];
+		int nBlocks = 0;
+		int pos = record.getUnclippedStart();
+		int blockStart = -1; // start of current block, or -1 if not in a block
+		for(CigarElement cigEle : cigar.getCigarElements()) {
+			boolean isCover;
+			switch(cigEle.getOperator()) {
+			case M: case EQ: case X: case D:
+				isCover = true;
+				break;
+			case S: // soft clip excluded by default
+				isCover = countSoft;
+				break;
+			case N: case H: // ignored bases
+				isCover = false;
+				break;
+			default: // case I or case P, not present in reference at all
+				continue;
+			}
+			if(isCover && blockStart == -1)
+				blockStart = pos;
+			else if(!isCover && blockStart != -1) {
+				blocks[nBlocks++] = blockStart;
+				blocks[nBlocks++] = pos;
+				blockStart = -1;
+			}
+			pos += cigEle.getLength();
+		}
+		if(blockStart != -1) {
+			blocks[nBlocks++] = blockStart;
+			blocks[nBlocks++] = pos;
+		}
+		return nBlocks == blocks.length ? blocks : Arrays.copyOf(blocks, nBlocks);
+	}
+
+	/**
+	 * Add the coverage events of an alignment to a chromosome index, which need to be accumulated before read
+	 * @param idx  1-based chromosome index
+	 * @param record  alignment
+	 * @param countSoft  whether to count soft-clipped bases
+	 * @param clone  clone value of this alignment
+	 * @throws ArrayIndexOutOfBoundsException  if the alignment is out of the chromosome
+	 */
+	public static void addCover(CoverageIndex idx, SAMRecord record, boolean countSoft, int clone) {
+		int[] blocks = getCoverBlocks(record, countSoft);
+		for(int i = 0; i < blocks.length; i += 2)
+			idx.addDiff(blocks[i], blocks[i + 1], clone);
+	}
+
+	/**
+	 * Add the coverage events of an alignment to a difference array of a scan region, the positions out of the region are ignored
+	 * @param diff  difference array of the scan region, with one more element than the region length
+	 * @param scanStart  1-based start of the scan region
+	 * @param record  alignment
+	 * @param countSoft  whether to count soft-clipped bases
+	 * @param clone  clone value of this alignment
+	 */
+	public static void addCover(int[] diff, int scanStart, SAMRecord record, boolean countSoft, int clone) {
+		int scanLen = diff.length - 1;
+		int[] blocks = getCoverBlocks(record, countSoft);
+		for(int i = 0; i < blocks.length; i += 2) {
+			int from = Math.max(blocks[i] - scanStart, 0);
+			int to = Math.min(blocks[i + 1] - scanStart, scanLen);
+			if(from < to) {
+				diff[from] += clone;
+				diff[to] -= clone;
+			}
+		}
+	}
+
+	/**
+	 * Accumulate a difference array into base-wise values in place
+	 * @param diff  difference array
+	 */
+	public static void accumulate(int[] diff) {
+		for(int i = 1; i < diff.length; i++)
+			diff[i] += diff[i - 1];
+	}
+
+	/**
+	 * Get the leading soft-clipped length of an alignment, after the hard-clip if any
+	 * @param cigar  cigar of the alignment
+	 * @return  leading soft-clipped length
+	 */
+	public static int getLeadingSoftClip(Cigar cigar) {
+		int clip = 0;
+		for(CigarElement cigEle : cigar.getCigarElements()) {
+			if(cigEle.getOperator() == CigarOperator.S)
+				clip += cigEle.getLength();
+			else if(cigEle.getOperator() != CigarOperator.H)
+				break;
+		}
+		return clip;
+	}
+
+	/**
+	 * Get the trailing soft-clipped length of an alignment, before the hard-clip if any
+	 * @param cigar  cigar of the alignment
+	 * @return  trailing soft-clipped length
+	 */
+	public static int getTrailingSoftClip(Cigar cigar) {
+		int clip = 0;
+		List<CigarElement> cigEles = cigar.getCigarElements();
+		for(int i = cigEles.size() - 1; i >= 0; i--) {
+			CigarElement cigEle = cigEles.get(i);
+			if(cigEle.getOperator() == CigarOperator.S)
+				clip += cigEle.getLength();
+			else if(cigEle.getOperator() != CigarOperator.H)
+				break;
+		}
+		return clip;
+	}
+}
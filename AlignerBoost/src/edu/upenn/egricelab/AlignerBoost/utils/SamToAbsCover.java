@@ -22,8 +22,6 @@
 package edu.upenn.egricelab.AlignerBoost.utils;
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import htsjdk.samtools.*;
 import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
@@ -49,33 +47,36 @@ public class SamToAbsCover {
 			return;
 		}
 
-		chrIdx = new HashMap<String, int[]>();
+		chrIdx = new HashMap<String, CoverageIndex>();
 		SamReaderFactory factory = SamReaderFactory.makeDefault();
 		SamReader samIn = null;
 		BufferedWriter out = null;
 		BufferedReader bedIn = null;
+		boolean isDone = false;
 		try {
 			samIn = factory.open(new File(samInFile));
+			useCloneTag = doNR && NRTagUtils.hasCloneTag(samIn.getFileHeader());
+			if(isStream && samIn.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate)
+				throw new IllegalArgumentException("--stream requires a coordinate-sorted SAM/BAM file");
+			if(nThreads > 1 && !samIn.hasIndex())
+				throw new IllegalArgumentException("-p/--threads requires a sorted BAM file with pre-built index");
 			out = new BufferedWriter(new FileWriter(outFile));
 
 			// get total alignments, if -norm is set
 			if(normRPM) {
 				if(verbose > 0)
 					System.err.print("Determining total number of alignments ...");
-				SAMRecordIterator allResults = samIn.iterator();
-				while(allResults.hasNext()) {
-					totalNum++;
-					allResults.next();
-				}
-				allResults.close();
+				totalNum = SamTotalCounter.getTotalNum(samIn, new File(samInFile)); // from the BAM index or stats file if available
 				if(verbose > 0)
 					System.err.println(totalNum);
 			}
 			
 			SAMRecordIterator results = null;
 			Map<String, List<QueryInterval>> chrSeen = new HashMap<String, List<QueryInterval>>(); // chromosomes seen so far
-			if(bedFile == null) // no -R specified
-				results = samIn.iterator();
+			if(bedFile == null) { // no -R specified
+				if(nThreads == 1) // otherwise each chrom is queried by the workers
+					results = samIn.iterator();
+			}
 			else {
 				bedIn = new BufferedReader(new FileReader(bedFile));
 				bedRegions = new ArrayList<QueryInterval>();
@@ -102,7 +103,8 @@ public class SamToAbsCover {
 				QueryInterval[] intervals = new QueryInterval[bedRegions.size()];
 				intervals = bedRegions.toArray(intervals); // dump List to array[]
 				intervals = QueryInterval.optimizeIntervals(intervals); // optimize and sort the query intervals
-				results = samIn.query(intervals, false);
+				if(nThreads == 1)
+					results = samIn.query(intervals, false);
 			}
 			
 			// Initialize chrom-index
@@ -113,7 +115,7 @@ public class SamToAbsCover {
 				if(bedFile != null && !chrSeen.containsKey(chr)) // bed file specified and not in the regions
 					continue;
 				int len = headSeq.getSequenceLength();
-				chrIdx.put(chr, new int[len + 1]);  // Position 0 is dummy
+				chrIdx.put(chr, new CoverageIndex(len + 1));  // Position 0 is dummy
 				if(bedFile == null) { // no -R specified
 					chrSeen.put(chr, new ArrayList<QueryInterval>());
 					chrSeen.get(chr).add(new QueryInterval(headSeq.getSequenceIndex(), 1, headSeq.getSequenceLength()));
@@ -121,6 +123,22 @@ public class SamToAbsCover {
 				if(verbose > 0)
 					System.err.println("  " + chr + ": " + len);
 			}
+			// Initialize chrom writers, in header order
+			Map<String, CoverWriter> chrWriter = new HashMap<String, CoverWriter>();
+			Queue<CoverWriter> streamWriters = new ArrayDeque<CoverWriter>(); // unfinished chrom writers in streaming or parallel mode
+			for(SAMSequenceRecord headSeq : samIn.getFileHeader().getSequenceDictionary().getSequences()) {
+				String chr = headSeq.getSequenceName();
+				if(!chrIdx.containsKey(chr))
+					continue;
+				QueryInterval[] intervals = new QueryInterval[chrSeen.get(chr).size()]; // array to be dumped
+				intervals = chrSeen.get(chr).toArray(intervals);
+				if(bedFile != null) // optimization required
+					intervals = QueryInterval.optimizeIntervals(intervals);
+				CoverWriter writer = new CoverWriter(chr, headSeq.getSequenceIndex(), intervals, chrIdx.get(chr));
+				chrWriter.put(chr, writer);
+				streamWriters.add(writer);
+			}
+			out.write("chrom\tstart\tend\tcover\n");
 
 			// Start the processMonitor to monitor the process
 			processMonitor = new Timer();
@@ -133,59 +151,36 @@ public class SamToAbsCover {
 			// Scan SAM/BAM file
 			if(verbose > 0)
 				System.err.println("Scan SAM/BAM file ...");
-			while(results.hasNext()) {
-				SAMRecord record = results.next();
-				statusTask.updateStatus(); // Update status
-				int readLen = record.getReadLength();
-				if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
-					continue;
-				String chr = record.getReferenceName();
-				// check strand
-				int strand = record.getReadNegativeStrandFlag() ? 2 : 1;
-				if((strand & myStrand) == 0)
-					continue;
-				if(record.getMappingQuality() < minMapQ)
-					continue;
-				int clone = 1;
-				if(doNR) {
-					Matcher match = nrPat.matcher(record.getReadName()); // whether match interval nrID pattern
-					clone = match.find() ? Integer.parseInt(match.group(1)) : 1;
-				}
-				
-				int[] idx = chrIdx.get(chr);
-				int start = record.getUnclippedStart();
-				Cigar cigar = record.getCigar();
-				int pos = 0; // relative pos to start
-				for(CigarElement cigEle : cigar.getCigarElements()) {
-					int cigLen = cigEle.getLength();
-					CigarOperator cigOp = cigEle.getOperator();
-					switch(cigOp) {
-					case M: case EQ: case X: case D:
-						for(int i = 0; i < cigLen; i++) {
-							idx[start + pos] += clone;
-							pos++;
-						}
-						break;
-					case S: // soft clip included by default
-						if(countSoft) {
-							for(int i = 0; i < cigLen; i++) {
-								idx[start + pos] += clone;
-								pos++;
-							}
-						}
-						else
-							pos += cigLen; // ignore soft-clip
-						break;
-					case N: case H: // ignored bases
-						pos += cigLen;
-						break;
-						//case I: case P: // not present in reference at all
-						//  break; // do nothing
-					default: // case I or case P
-						break;
+			if(nThreads > 1) // scan and write chroms in parallel
+				scanParallel(out, streamWriters);
+			else {
+				while(results.hasNext()) {
+					SAMRecord record = results.next();
+					statusTask.updateStatus(); // Update status
+					int readLen = record.getReadLength();
+					if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
+						continue;
+					String chr = record.getReferenceName();
+					if(isStream) { // write the finished coverage before this read
+						int chrI = record.getReferenceIndex();
+						int readStart = record.getAlignmentStart();
+						if(chrI < prevChrI || chrI == prevChrI && readStart < prevStart)
+							throw new IllegalArgumentException("SAM/BAM file is not coordinate-sorted at read '" + record.getReadName() + "'");
+						while(!streamWriters.isEmpty() && streamWriters.peek().chrI < chrI) // finish previous chroms
+							streamWriters.poll().writeTo(out, Integer.MAX_VALUE);
+						// leading soft-clip can be counted before the read start, which is no longer than --max-read-len
+						int maxLag = countSoft ? maxReadLen : 0;
+						if(countSoft && SamCoverUtils.getLeadingSoftClip(record.getCigar()) > maxLag)
+							throw new IllegalArgumentException("leading soft-clip of read '" + record.getReadName() + "' is longer than --max-read-len " + maxReadLen + ", increase it or run without --stream");
+						int bound = readStart - maxLag; // positions before it are finished
+						if(!streamWriters.isEmpty() && streamWriters.peek().chrI == chrI)
+							streamWriters.peek().writeTo(out, bound);
+						prevChrI = chrI;
+						prevStart = readStart;
 					}
-				} // end each cigEle
-			} // end each record
+					addCover(record, chrIdx.get(chr));
+				} // end each record
+			}
 
 			// Terminate the monitor task and monitor
 			statusTask.cancel();
@@ -195,42 +190,19 @@ public class SamToAbsCover {
 			// Output
 			if(verbose > 0)
 				System.err.println("Output ...");
-			out.write("chrom\tstart\tend\tcover\n");
-			for(Map.Entry<String, List<QueryInterval>> entry : chrSeen.entrySet()) {
-				String chr = entry.getKey();
-				QueryInterval[] intervals = new QueryInterval[entry.getValue().size()]; // array to be dumped
-				intervals = chrSeen.get(chr).toArray(intervals);
-				if(bedFile != null) // optimization required
-					intervals = QueryInterval.optimizeIntervals(intervals);
-				int[] idx = chrIdx.get(chr);
-				if(idx == null)
-					continue; // ignore region without index
-				
-				if(step == 1) { // no mean required
-					for(QueryInterval interval : intervals) {
-						for(int i = interval.start; i <= interval.end && i < idx.length; i++) {
-							int val = idx[i];
-							if(val >= minCover) {
-								out.write(chr + "\t" + i + "\t" + (i + 1) + "\t" +
-										(!normRPM ? val : (float) (1e6 * val / totalNum)) + "\n");
-							}
-						}
-					}
-				}
-				else {
-					for(QueryInterval interval : intervals) {
-						for(int start = interval.start; start <= interval.end && start < idx.length; start += step) {
-							int end = Math.min(start + step, idx.length);
-							double val = Stats.mean(idx, start, end);
-							if(val >= minCover) {
-								if(normRPM)
-									val /= totalNum / 1e6;
-								out.write(chr + "\t" + start + "\t" + (end - 1) + "\t" + (float) val + "\n");
-							}
-						}
-					}
+			if(isStream || nThreads > 1) { // write the rest chroms in header order
+				for(CoverWriter writer : streamWriters)
+					writer.writeTo(out, Integer.MAX_VALUE);
+			}
+			else {
+				for(String chr : chrSeen.keySet()) {
+					CoverWriter writer = chrWriter.get(chr);
+					if(writer == null)
+						continue; // ignore region without index
+					writer.writeTo(out, Integer.MAX_VALUE);
 				}
 			}
+			isDone = true;
 		}
 		catch(IOException e) {
 			System.err.println(e.getMessage());
@@ -250,7 +222,126 @@ public class SamToAbsCover {
 			catch(IOException e) {
 				e.printStackTrace();
 			}
+			if(!isDone && processMonitor != null) // stop the monitor on failure, or the JVM will not exit
+				processMonitor.cancel();
+			if(out != null && isStream && !isDone) // do not leave a partially streamed output
+				new File(outFile).delete();
+		}
+	}
+
+	/**
+	 * A nested static class member of the coverage writer of a chromosome,
+	 * writing the step windows of its intervals in order once they are finished, and releasing their coverage
+	 */
+	private static class CoverWriter {
+		CoverWriter(String chr, int chrI, QueryInterval[] intervals, CoverageIndex idx) {
+			this.chr = chr;
+			this.chrI = chrI;
+			this.intervals = intervals;
+			this.idx = idx;
+			if(intervals.length > 0)
+				i = intervals[0].start;
+		}
+
+		/**
+		 * write the step windows before given bound
+		 * @param out  output
+		 * @param bound  positions before it are finished
+		 * @throws IOException  if any IO error occurs
+		 */
+		void writeTo(BufferedWriter out, int bound) throws IOException {
+			idx.accumulate(bound);
+			for(; k < intervals.length; k++) {
+				QueryInterval interval = intervals[k];
+				if(step == 1) { // no mean required
+					// skip uncovered chunks if 0-covered positions are not reported, but no further than the finished positions
+					for(; i <= interval.end && i < idx.length(); i = minCover > 0 ? Math.min(idx.nextCovered(i + 1), bound) : i + 1) {
+						if(i + 1 > bound) { // not finished yet
+							idx.release(i);
+							return;
+						}
+						int val = idx.get(i);
+						if(val >= minCover) {
+							out.write(chr + "\t" + i + "\t" + (i + 1) + "\t" +
+									(!normRPM ? val : (float) (1e6 * val / totalNum)) + "\n");
+						}
+					}
+				}
+				else {
+					for(; i <= interval.end && i < idx.length(); i += step) {
+						int start = i;
+						int end = Math.min(start + step, idx.length());
+						if(end > bound) { // not finished yet
+							idx.release(start);
+							return;
+						}
+						double val = idx.mean(start, end);
+						if(val >= minCover) {
+							if(normRPM)
+								val /= totalNum / 1e6;
+							out.write(chr + "\t" + start + "\t" + (end - 1) + "\t" + (float) val + "\n");
+						}
+					}
+				}
+				if(k + 1 < intervals.length)
+					i = intervals[k + 1].start;
+			}
+			idx.release(idx.length());
 		}
+
+		final String chr;
+		final int chrI;
+		private final QueryInterval[] intervals;
+		private final CoverageIndex idx;
+		private int k; // current interval
+		private int i; // start of the next step window
+	}
+
+	/**
+	 * Add the coverage of an alignment to its chrom index, if it passes the strand and mapQ filters
+	 * @param record  alignment
+	 * @param idx  chrom index of this alignment
+	 */
+	private static void addCover(SAMRecord record, CoverageIndex idx) {
+		// check strand
+		int strand = record.getReadNegativeStrandFlag() ? 2 : 1;
+		if((strand & myStrand) == 0)
+			return;
+		if(record.getMappingQuality() < minMapQ)
+			return;
+		int clone = 1;
+		if(doNR)
+			clone = NRTagUtils.getClone(record, useCloneTag);
+
+		SamCoverUtils.addCover(idx, record, countSoft, clone);
+	}
+
+	/**
+	 * Scan the chroms of an indexed BAM file in parallel, each chrom by its own query in a worker, largest chroms first,
+	 * and write the chroms in header order once finished
+	 * @param out  output
+	 * @param writers  unfinished chrom writers in header order, which are all written and removed
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void scanParallel(final BufferedWriter out, final Queue<CoverWriter> writers) throws IOException {
+		List<ParallelChromScanner.ChromTask> tasks = new ArrayList<ParallelChromScanner.ChromTask>();
+		for(final CoverWriter writer : writers) {
+			tasks.add(new ParallelChromScanner.ChromTask(writer.intervals, writer.idx.length()) {
+				@Override
+				protected void processRecord(SAMRecord record) {
+					if(record.getReadLength() == 0) // 0-length read
+						return;
+					addCover(record, writer.idx);
+				}
+
+				@Override
+				protected void finished() throws IOException {
+					writers.remove(writer);
+					writer.writeTo(out, Integer.MAX_VALUE);
+				}
+			});
+		}
+		new ParallelChromScanner(new File(samInFile), nThreads, statusTask).scan(tasks);
 	}
 
 	private static void printUsage() {
@@ -266,6 +357,9 @@ public class SamToAbsCover {
 				"            -R  FILE                 genome regions to search provided as a BED file; if provided the -i file must be a sorted BAM file with pre-built index" + newLine +
 				"            -step  INT               step width for calculating the coverage or average coverages [" + step + "]" + newLine +
 				"            --min-cover  INT         mimimum cover value to report [" + minCover + "]" + newLine +
+				"            --stream  FLAG           stream a coordinate-sorted SAM/BAM file, writing the coverage as soon as finished with bounded memory, chroms are written in header order" + newLine +
+				"            --max-read-len  INT      maximum read length, as the look-back window of leading soft-clips for --stream with --count-soft [" + maxReadLen + "]" + newLine +
+				"            -p/--threads  INT        number of threads scanning chroms in parallel, requires a sorted BAM file with pre-built index, chroms are written in header order [" + nThreads + "]" + newLine +
 //				"            -k/--keep-uncover  FLAG  keep 0-covered regions" + newLine +
 				"            -v  FLAG                 show verbose information"
 				);
@@ -285,16 +379,20 @@ public class SamToAbsCover {
 				normRPM = true;
 			else if(args[i].equals("--count-soft"))
 				countSoft = true;
-			else if(args[i].equals("--nr")) {
+			else if(args[i].equals("--nr"))
 				doNR = true;
-				nrPat = Pattern.compile("^(?:tr|un:nr)\\d+:(\\d+):\\d+");
-			}
 			else if(args[i].equals("-Q") || args[i].equals("--min-mapQ"))
 				minMapQ = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-step"))
 				step = Integer.parseInt(args[++i]);
 			else if(args[i].equals("--min-cover"))
 				minCover = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--stream"))
+				isStream = true;
+			else if(args[i].equals("--max-read-len"))
+				maxReadLen = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else
@@ -308,8 +406,14 @@ public class SamToAbsCover {
 		// Reformat myStrand
 		if(!(myStrand >= 1 && myStrand <= 3))
 			throw new IllegalArgumentException("Unknown -s option, must be 1, 2 or 3");
-		if(minCover >= 0)
+		if(minCover < 0)
 			throw new IllegalArgumentException("--min-cover must be non-negative");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive");
+		if(maxReadLen <= 0)
+			throw new IllegalArgumentException("--max-read-len must be positive");
+		if(nThreads > 1 && isStream)
+			throw new IllegalArgumentException("-p/--threads cannot be used with --stream");
 	}
 
 	private static String samInFile;
@@ -319,18 +423,23 @@ public class SamToAbsCover {
 	private static boolean normRPM;
 	private static boolean countSoft; // whether to count soft-clipped bases
 	private static boolean doNR; // whether treat read as NR-tag
+	private static boolean useCloneTag; // whether the clone tags written by filterSE/filterPE --nr can be trusted
 	private static int minMapQ;
 	private static List<QueryInterval> bedRegions; // bed file regions as the query intervals
 	private static int step = 1;
 	private static int minCover = 1;
+	private static boolean isStream; // whether to stream a coordinate-sorted input
+	private static int maxReadLen = 10000; // max read length, as the look-back window if counting soft-clip in streaming mode
+	private static int nThreads = 1; // number of threads scanning chroms
 //	private static boolean keep0;
 	private static int verbose;
 
 	private static long totalNum;
-	private static Map<String, int[]> chrIdx;
+	private static int prevChrI = -1; // prev read chrom index in streaming mode
+	private static int prevStart; // prev read start in streaming mode
+	private static Map<String, CoverageIndex> chrIdx;
 
 	private static Timer processMonitor;
 	private static ProcessStatusTask statusTask;
-	private static Pattern nrPat;
 	private static final int statusFreq = 10000;
 }
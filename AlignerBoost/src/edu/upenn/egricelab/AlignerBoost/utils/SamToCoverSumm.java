@@ -22,8 +22,6 @@
 package edu.upenn.egricelab.AlignerBoost.utils;
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import htsjdk.samtools.*;
 import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
@@ -51,19 +49,24 @@ public class SamToCoverSumm {
 		
 		/* determine cover breaks */
 
-		chrIdx = new HashMap<String, int[]>();
+		chrIdx = new HashMap<String, CoverageIndex>();
 		SamReaderFactory factory = SamReaderFactory.makeDefault();
 		SamReader samIn = null;
 		BufferedWriter out = null;
 		BufferedReader bedIn = null;
 		try {
 			samIn = factory.open(new File(samInFile));
+			useCloneTag = doNR && NRTagUtils.hasCloneTag(samIn.getFileHeader());
+			if(nThreads > 1 && !samIn.hasIndex())
+				throw new IllegalArgumentException("-p/--threads requires a sorted BAM file with pre-built index");
 			out = new BufferedWriter(new FileWriter(outFile));
 
 			SAMRecordIterator results = null;
 			Map<String, List<QueryInterval>> chrSeen = new HashMap<String, List<QueryInterval>>(); // chromosomes seen so far
-			if(bedFile == null) // no -R specified
-				results = samIn.iterator();
+			if(bedFile == null) { // no -R specified
+				if(nThreads == 1) // otherwise each chrom is queried by the workers
+					results = samIn.iterator();
+			}
 			else {
 				bedIn = new BufferedReader(new FileReader(bedFile));
 				bedRegions = new ArrayList<QueryInterval>();
@@ -90,7 +93,8 @@ public class SamToCoverSumm {
 				QueryInterval[] intervals = new QueryInterval[bedRegions.size()];
 				intervals = bedRegions.toArray(intervals); // dump List to array[]
 				intervals = QueryInterval.optimizeIntervals(intervals); // optimize and sort the query intervals
-				results = samIn.query(intervals, false);
+				if(nThreads == 1)
+					results = samIn.query(intervals, false);
 			}
 			
 			// Initialize chrom-index
@@ -101,7 +105,7 @@ public class SamToCoverSumm {
 				if(bedFile != null && !chrSeen.containsKey(chr)) // bed file specified and not in the regions
 					continue;
 				int len = headSeq.getSequenceLength();
-				chrIdx.put(chr, new int[len + 1]);  // Position 0 is dummy
+				chrIdx.put(chr, new CoverageIndex(len + 1));  // Position 0 is dummy
 				if(bedFile == null) { // no -R specified
 					chrSeen.put(chr, new ArrayList<QueryInterval>());
 					chrSeen.get(chr).add(new QueryInterval(headSeq.getSequenceIndex(), 1, headSeq.getSequenceLength()));
@@ -123,62 +127,24 @@ public class SamToCoverSumm {
 			// Scan SAM/BAM file
 			if(verbose > 0)
 				System.err.println("Scan SAM/BAM file ...");
-			while(results.hasNext()) {
-				SAMRecord record = results.next();
-				if(verbose > 0)
-					statusTask.updateStatus(); // Update status
-				int readLen = record.getReadLength();
-				if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
-					continue;
-				String chr = record.getReferenceName();
-				// check strand
-				int strand = record.getReadNegativeStrandFlag() ? 2 : 1;
-				if((strand & myStrand) == 0)
-					continue;
-				if(record.getMappingQuality() < minMapQ)
-					continue;
-				int clone = 1;
-				if(doNR) {
-					Matcher match = nrPat.matcher(record.getReadName()); // whether match interval nrID pattern
-					clone = match.find() ? Integer.parseInt(match.group(1)) : 1;
-				}
-				
-				int[] idx = chrIdx.get(chr);
-				int start = record.getUnclippedStart();
-				Cigar cigar = record.getCigar();
-				int pos = 0; // relative pos to start
-				for(CigarElement cigEle : cigar.getCigarElements()) {
-					int cigLen = cigEle.getLength();
-					CigarOperator cigOp = cigEle.getOperator();
-					switch(cigOp) {
-					case M: case EQ: case X: case D:
-						for(int i = 0; i < cigLen; i++) {
-							idx[start + pos] += clone;
-							pos++;
-						}
-						break;
-					case S: // soft clip included by default
-						if(countSoft) {
-							for(int i = 0; i < cigLen; i++) {
-								idx[start + pos] += clone;
-								pos++;
-							}
-						}
-						else
-							pos += cigLen; // ignore soft-clip
-						break;
-					case N: case H: // ignored bases
-						pos += cigLen;
-						break;
-						//case I: case P: // not present in reference at all
-						//  break; // do nothing
-					default: // case I or case P
-						break;
-					}
-				} // end each cigEle
-			} // end each record
+			if(nThreads > 1) // scan chroms in parallel
+				scanParallel(chrSeen);
+			else {
+				while(results.hasNext()) {
+					SAMRecord record = results.next();
+					if(verbose > 0)
+						statusTask.updateStatus(); // Update status
+					int readLen = record.getReadLength();
+					if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
+						continue;
+					String chr = record.getReferenceName();
+					addCover(record, chrIdx.get(chr));
+				} // end each record
+			}
 			if(verbose > 0)
 				statusTask.finish();
+			for(CoverageIndex idx : chrIdx.values())
+				idx.accumulate(idx.length());
 
 			/* determine cover max */
 			if(verbose > 0) {
@@ -186,9 +152,10 @@ public class SamToCoverSumm {
 				statusTask.setInfo("chromosome scanned");
 				statusTask.reset();
 			}
-			for(Map.Entry<String, int[]> entry : chrIdx.entrySet()) {
-				int[] idx = entry.getValue();
-				for(int val : idx) {
+			for(Map.Entry<String, CoverageIndex> entry : chrIdx.entrySet()) {
+				CoverageIndex idx = entry.getValue();
+				for(int i = idx.nextCovered(0); i < idx.length(); i = idx.nextCovered(i + 1)) {
+					int val = idx.get(i);
 					if(val == 0) // not covered
 						continue;
 					if(maxCover < val)
@@ -232,13 +199,13 @@ public class SamToCoverSumm {
 				intervals = chrSeen.get(chr).toArray(intervals);
 				if(bedFile != null) // optimization required
 					intervals = QueryInterval.optimizeIntervals(intervals);
-				int[] idx = chrIdx.get(chr);
+				CoverageIndex idx = chrIdx.get(chr);
 				if(idx == null)
 					continue; // ignore region without index
 				
 				for(QueryInterval interval : intervals) {
-					for(int i = interval.start; i <= interval.end && i < idx.length; i++ /* always do coverage in single bp */) {
-						int cover = idx[i];
+					for(int i = idx.nextCovered(interval.start); i <= interval.end && i < idx.length(); i = idx.nextCovered(i + 1) /* always do coverage in single bp, skipping uncovered chunks */) {
+						int cover = idx.get(i);
 						if(cover > 0) {
 							totalCover++;
 							int k = whichBin(cover, breaks, useRight);
@@ -284,6 +251,56 @@ public class SamToCoverSumm {
 		}
 	}
 
+	/**
+	 * Add the coverage of an alignment to its chrom index, if it passes the strand and mapQ filters
+	 * @param record  alignment
+	 * @param idx  chrom index of this alignment
+	 */
+	private static void addCover(SAMRecord record, CoverageIndex idx) {
+		// check strand
+		int strand = record.getReadNegativeStrandFlag() ? 2 : 1;
+		if((strand & myStrand) == 0)
+			return;
+		if(record.getMappingQuality() < minMapQ)
+			return;
+		int clone = 1;
+		if(doNR)
+			clone = NRTagUtils.getClone(record, useCloneTag);
+
+		SamCoverUtils.addCover(idx, record, countSoft, clone);
+	}
+
+	/**
+	 * Scan the chroms of an indexed BAM file in parallel, each chrom by its own query in a worker, largest chroms first,
+	 * and accumulate each chrom index once finished
+	 * @param chrSeen  query intervals of each chrom
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void scanParallel(Map<String, List<QueryInterval>> chrSeen) throws IOException {
+		List<ParallelChromScanner.ChromTask> tasks = new ArrayList<ParallelChromScanner.ChromTask>();
+		for(String chr : chrIdx.keySet()) {
+			QueryInterval[] intervals = new QueryInterval[chrSeen.get(chr).size()]; // array to be dumped
+			intervals = chrSeen.get(chr).toArray(intervals);
+			if(bedFile != null) // optimization required
+				intervals = QueryInterval.optimizeIntervals(intervals);
+			final CoverageIndex idx = chrIdx.get(chr);
+			tasks.add(new ParallelChromScanner.ChromTask(intervals, idx.length()) {
+				@Override
+				protected void processRecord(SAMRecord record) {
+					if(record.getReadLength() == 0) // 0-length read
+						return;
+					addCover(record, idx);
+				}
+
+				@Override
+				protected void scanned() {
+					idx.accumulate(idx.length());
+				}
+			});
+		}
+		new ParallelChromScanner(new File(samInFile), nThreads, statusTask).scan(tasks);
+	}
+
 	private static void printUsage() {
 		System.err.println("java -jar " + progFile + " utils sam2CoverSumm " +
 				"<-i SAM|BAM-INFILE> <-o OUTFILE> [options]" + newLine +
@@ -297,6 +314,7 @@ public class SamToCoverSumm {
 				"            -b/--breaks  STRING  breaks for coverage summary, in format n1,n2,... [" + DEFAULT_BREAKS + "]" + newLine +
 				"            -n/--no-total  FLAG  do not report total coverage at the last line" + newLine +
 				"            -r/--right  FLAG     use right-closed (left-open) intervals instead of left-closed intervals except for the first or last bin" + newLine +
+				"            -p/--threads  INT    number of threads scanning chroms in parallel, requires a sorted BAM file with pre-built index [" + nThreads + "]" + newLine +
 				"            -v  FLAG             show verbose information"
 				);
 	}
@@ -313,10 +331,8 @@ public class SamToCoverSumm {
 				bedFile = args[++i];
 			else if(args[i].equals("--count-soft"))
 				countSoft = true;
-			else if(args[i].equals("--nr")) {
+			else if(args[i].equals("--nr"))
 				doNR = true;
-				nrPat = Pattern.compile("^(?:tr|un:nr)\\d+:(\\d+):\\d+");
-			}
 			else if(args[i].equals("-Q") || args[i].equals("--min-mapQ"))
 				minMapQ = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-b") || args[i].equals("--breaks")) // customized breaks provided
@@ -325,6 +341,8 @@ public class SamToCoverSumm {
 				doTotal = false;
 			else if(args[i].equals("-r") || args[i].equals("--right"))
 				useRight = Boolean.parseBoolean(args[++i]);
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else
@@ -338,6 +356,8 @@ public class SamToCoverSumm {
 		// Reformat myStrand
 		if(!(myStrand >= 1 && myStrand <= 3))
 			throw new IllegalArgumentException("Unknown -s option, must be 1, 2 or 3");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive");
 	}
 	
 	/**
@@ -423,24 +443,24 @@ public class SamToCoverSumm {
 	private static int myStrand = 3;
 	private static boolean countSoft; // whether to count soft-clipped bases
 	private static boolean doNR; // whether treat read as NR-tag
+	private static boolean useCloneTag; // whether the clone tags written by filterSE/filterPE --nr can be trusted
 	private static int minMapQ;
 	private static List<QueryInterval> bedRegions; // bed file regions as the query intervals
 	private static String breakStr = DEFAULT_BREAKS;
 	private static List<Integer> breaks; // break points, with ( break[i], break[i+1] ] represent the current bin range
 	private static boolean doTotal = true;
 	private static boolean useRight = false;
+	private static int nThreads = 1; // number of threads scanning chroms
 	private static int verbose;
 
 	private static int minCover = Integer.MAX_VALUE;
 	private static int maxCover;
-	private static Map<String, int[]> chrIdx;
+	private static Map<String, CoverageIndex> chrIdx;
 	private static long[] binCoverSumm;
 	private static long totalCover;
 
 	private static Timer processMonitor;
 	private static ProcessStatusTask statusTask;
-	private static Pattern nrPat;
-//	private static Pattern nrPat = Pattern.compile("^(?:tr|un:nr)\\d+:(\\d+):\\d+");
 
 	private static final int statusFreq = 10000;
 	public static final String INF_STR = "Inf";
@@ -22,8 +22,6 @@
 package edu.upenn.egricelab.AlignerBoost.utils;
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import htsjdk.samtools.*;
 import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
@@ -55,6 +53,9 @@ public class SamToRegionCount {
 		BufferedReader bed6In = null;
 		try {
 			samIn = factory.open(new File(samInFile));
+			useCloneTag = doNR && NRTagUtils.hasCloneTag(samIn.getFileHeader());
+			if(nThreads > 1 && !samIn.hasIndex())
+				throw new IllegalArgumentException("-p/--threads requires a sorted BAM file with pre-built index");
 			out = new BufferedWriter(new FileWriter(outFile));
 			SAMSequenceDictionary samDict = samIn.getFileHeader().getSequenceDictionary();
 
@@ -62,33 +63,19 @@ public class SamToRegionCount {
 			if(normRPM) {
 				if(verbose > 0)
 					System.err.println("Determining total number of alignments ...");
-				SAMRecordIterator allResults = samIn.iterator();
-				while(allResults.hasNext()) {
-					totalNum++;
-					allResults.next();
-				}
-				allResults.close();
+				totalNum = SamTotalCounter.getTotalNum(samIn, new File(samInFile)); // from the BAM index or stats file if available
 			}
-			// check each region and output
+			// read in all regions
 			bed6In = new BufferedReader(new FileReader(bed6File));
-			if(verbose > 0) {
-				// Start the processMonitor to monitor the process
-				processMonitor = new Timer();
-				// Start the ProcessStatusTask
-				statusTask = new ProcessStatusTask("regions scanned");
-				// Schedule to show the status every 1 second
-				processMonitor.scheduleAtFixedRate(statusTask, 0, statusFreq);
-				System.err.println("Scanning BED6 regions and output ...");
-			}
-			
-			out.write("chrom\tstart\tend\tname\tcount\tstrand\n");
+			List<Region> regions = new ArrayList<Region>(); // regions in BED order
+			List<List<Region>> chrRegions = new ArrayList<List<Region>>(); // regions of each chrom
+			for(int chrI = 0; chrI < samDict.size(); chrI++)
+				chrRegions.add(new ArrayList<Region>());
 			String line = null;
 			while((line = bed6In.readLine()) != null) {
 				String[] fields = line.split("\t");
 				if(fields.length < 6) // ignore header lines
 					continue;
-				if(verbose > 0)
-					statusTask.updateStatus(); // Update status
 				String chr = fields[0];
 				int chrI = samIn.getFileHeader().getSequenceIndex(chr);
 				if(chrI == -1) // this Region is not in the aligned chromosomes
@@ -99,45 +86,68 @@ public class SamToRegionCount {
 				if(regionLen <= 0)
 					continue;
 				int chrLen = samDict.getSequence(chrI).getSequenceLength();
-				String name = fields[3];
-				String regionStrand = fields[5];
-
 				// Initialize scan-region
 				int scanStart = regionStart - maxFlank >= 1 ? regionStart - maxFlank : 1;
 				int scanEnd = regionEnd + maxFlank <= chrLen ? regionEnd + maxFlank : chrLen;
-				// Query SAM file on the fly
-				int count = 0;
-				SAMRecordIterator results = samIn.query(chr, scanStart, scanEnd, false);
+				Region region = new Region(chr, regionStart, regionEnd, fields[3], fields[5], scanStart, scanEnd);
+				regions.add(region);
+				chrRegions.get(chrI).add(region);
+			}
+			bed6In.close();
+			if(verbose > 0)
+				System.err.println("Read in " + regions.size() + " regions from BED6 file");
+
+			// build region index of each chrom, and the query intervals of all regions
+			RegionIndex[] chrIndex = new RegionIndex[samDict.size()];
+			List<QueryInterval> queryList = new ArrayList<QueryInterval>();
+			for(int chrI = 0; chrI < samDict.size(); chrI++) {
+				if(chrRegions.get(chrI).isEmpty())
+					continue;
+				chrIndex[chrI] = new RegionIndex(chrRegions.get(chrI));
+				for(Region region : chrRegions.get(chrI))
+					queryList.add(new QueryInterval(chrI, region.scanStart, region.scanEnd));
+			}
+
+			if(verbose > 0) {
+				// Start the processMonitor to monitor the process
+				processMonitor = new Timer();
+				// Start the ProcessStatusTask
+				statusTask = new ProcessStatusTask("alignment(s) processed");
+				// Schedule to show the status every 1 second
+				processMonitor.scheduleAtFixedRate(statusTask, 0, statusFreq);
+				System.err.println("Scanning SAM/BAM file ...");
+			}
+
+			if(nThreads == 1) {
+				QueryInterval[] intervals = new QueryInterval[queryList.size()];
+				intervals = queryList.toArray(intervals); // dump List to array[]
+				intervals = QueryInterval.optimizeIntervals(intervals); // optimize and sort the query intervals
+				// Scan SAM/BAM file once, by the merged regions if indexed
+				SAMRecordIterator results = samIn.hasIndex() ? samIn.query(intervals, false) : samIn.iterator();
 				while(results.hasNext()) {
 					SAMRecord record = results.next();
-					int readLen = record.getReadLength();
-					if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
-						continue;
-					// check relative strand
-					String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-					int relStrand = regionStrand.equals(".") ? 3 /* unknown */ : strand.equals(regionStrand) ? 1 /* sense */ : 2 /* antisense */;
-					if((relStrand & myStrand) == 0) // unmatched strands
+					if(verbose > 0)
+						statusTask.updateStatus(); // Update status
+					if(record.getReferenceIndex() == -1) // non mapped read
 						continue;
-					if(record.getMappingQuality() < minMapQ)
+					RegionIndex index = chrIndex[record.getReferenceIndex()];
+					if(index == null) // no regions on this chrom
 						continue;
-					int clone = 1;
-					if(doNR) {
-						Matcher match = nrPat.matcher(record.getReadName()); // whether match interval nrID pattern
-						clone = match.find() ? Integer.parseInt(match.group(1)) : 1;
-					}
-					
-					int start = record.getAlignmentStart();
-					int end = record.getAlignmentEnd();
-					if(overlapRate(scanStart, scanEnd, start, end) >= minRate)
-						count += clone;
+					countRecord(record, index);
 				} // end each record
 				results.close();
-				// output
+			}
+			else
+				scanParallel(chrRegions, chrIndex);
+
+			// output in BED order
+			out.write("chrom\tstart\tend\tname\tcount\tstrand\n");
+			for(Region region : regions) {
 				if(!normRPM)
-					out.write(chr + "\t" + regionStart + "\t" + regionEnd + "\t" + name + "\t" + count + "\t" + regionStrand + "\n");
+					out.write(region.chr + "\t" + region.start + "\t" + region.end + "\t" + region.name + "\t" + region.count + "\t" + region.strand + "\n");
 				else
-					out.write(chr + "\t" + regionStart + "\t" + regionEnd + "\t" + name + "\t" + ((float) count / totalNum * 1e6f) + "\t" + regionStrand + "\n");
-			} // end each region
+					out.write(region.chr + "\t" + region.start + "\t" + region.end + "\t" + region.name + "\t" + ((float) region.count / totalNum * 1e6f) + "\t" + region.strand + "\n");
+			}
 			// Terminate the monitor task and monitor
 			if(verbose > 0) {
 				statusTask.cancel();
@@ -166,6 +176,133 @@ public class SamToRegionCount {
 		}
 	}
 
+	/**
+	 * Count an alignment to the regions of its chrom, if it passes the length and mapQ filters
+	 * @param record  alignment
+	 * @param index  region index of its chrom
+	 */
+	private static void countRecord(SAMRecord record, RegionIndex index) {
+		if(record.getReadLength() == 0) // 0-length read
+			return;
+		if(record.getMappingQuality() < minMapQ)
+			return;
+		int clone = 1;
+		if(doNR)
+			clone = NRTagUtils.getClone(record, useCloneTag);
+		index.count(record, clone);
+	}
+
+	/**
+	 * Scan the chroms with regions in parallel, each by a worker thread with its own reader,
+	 * the regions of different chroms are counted in different region indices, so no counts are shared between threads
+	 * @param chrRegions  regions of each chrom
+	 * @param chrIndex  region index of each chrom
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void scanParallel(List<List<Region>> chrRegions, RegionIndex[] chrIndex) throws IOException {
+		List<ParallelChromScanner.ChromTask> tasks = new ArrayList<ParallelChromScanner.ChromTask>();
+		for(int chrI = 0; chrI < chrIndex.length; chrI++) {
+			if(chrIndex[chrI] == null)
+				continue;
+			QueryInterval[] intervals = new QueryInterval[chrRegions.get(chrI).size()];
+			for(int k = 0; k < intervals.length; k++) {
+				Region region = chrRegions.get(chrI).get(k);
+				intervals[k] = new QueryInterval(chrI, region.scanStart, region.scanEnd);
+			}
+			intervals = QueryInterval.optimizeIntervals(intervals); // optimize and sort the query intervals
+			final RegionIndex index = chrIndex[chrI];
+			tasks.add(new ParallelChromScanner.ChromTask(intervals, chrRegions.get(chrI).size()) { // most regions first
+				@Override
+				protected void processRecord(SAMRecord record) {
+					countRecord(record, index);
+				}
+			});
+		}
+		new ParallelChromScanner(new File(samInFile), nThreads, statusTask).scan(tasks);
+	}
+
+	/**
+	 * A nested static class member of a BED6 region and its read count
+	 */
+	private static class Region {
+		Region(String chr, int start, int end, String name, String strand, int scanStart, int scanEnd) {
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+			this.name = name;
+			this.strand = strand;
+			this.scanStart = scanStart;
+			this.scanEnd = scanEnd;
+		}
+
+		final String chr;
+		final int start; // 1-based region start
+		final int end; // 1-based region end
+		final String name;
+		final String strand;
+		final int scanStart; // 1-based flank-extended start
+		final int scanEnd; // 1-based flank-extended end
+		int count;
+	}
+
+	/**
+	 * A nested static class member of an interval index of the regions of a chromosome,
+	 * with the regions sorted by scan start and the running max scan end,
+	 * so the regions overlapping a read are found by a binary search of the read end and a backward scan
+	 * until no earlier region can reach the read start
+	 */
+	private static class RegionIndex {
+		RegionIndex(List<Region> chrRegions) {
+			regions = chrRegions.toArray(new Region[chrRegions.size()]);
+			Arrays.sort(regions, new Comparator<Region>() {
+				@Override
+				public int compare(Region r1, Region r2) {
+					return Integer.compare(r1.scanStart, r2.scanStart);
+				}
+			});
+			starts = new int[regions.length];
+			maxEnds = new int[regions.length];
+			for(int k = 0; k < regions.length; k++) {
+				starts[k] = regions[k].scanStart;
+				maxEnds[k] = k == 0 || regions[k].scanEnd > maxEnds[k - 1] ? regions[k].scanEnd : maxEnds[k - 1];
+			}
+		}
+
+		/**
+		 * count a read to all overlapping regions that pass the relative strand and overlap rate filters
+		 * @param record  alignment
+		 * @param clone  clone value of this alignment
+		 */
+		void count(SAMRecord record, int clone) {
+			int start = record.getAlignmentStart();
+			int end = record.getAlignmentEnd();
+			int queryEnd = end >= start ? end : start; // placed unmapped read has no alignment end
+			String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
+			// last region starting no later than the read end
+			int k = Arrays.binarySearch(starts, queryEnd);
+			if(k < 0)
+				k = -k - 2;
+			else
+				while(k + 1 < starts.length && starts[k + 1] == queryEnd)
+					k++;
+			for(; k >= 0 && maxEnds[k] >= start; k--) {
+				Region region = regions[k];
+				if(region.scanEnd < start) // not overlapping
+					continue;
+				// check relative strand
+				int relStrand = region.strand.equals(".") ? 3 /* unknown */ : strand.equals(region.strand) ? 1 /* sense */ : 2 /* antisense */;
+				if((relStrand & myStrand) == 0) // unmatched strands
+					continue;
+				if(overlapRate(region.scanStart, region.scanEnd, start, end) >= minRate)
+					region.count += clone;
+			}
+		}
+
+		private final Region[] regions; // regions sorted by scan start
+		private final int[] starts; // scan starts
+		private final int[] maxEnds; // running max scan ends
+	}
+
 	private static double overlapRate(int start1, int end1, int start2, int end2) {
 		// calculate overlap rate between two regions, relative to region1
 		// both regions are in 1-based coordinates
@@ -190,6 +327,7 @@ public class SamToRegionCount {
 				"            --norm-rpm  FLAG    normalize the coverage to RPM by total read number" + newLine +
 				"            -flank  INT         max upsteam/downsteam positions to look at [" + maxFlank + "]" + newLine +
 				"            -Q/--min-mapQ  INT  minimum mapQ cutoff [" + minMapQ + "]" + newLine +
+				"            -p/--threads  INT   number of threads scanning chroms in parallel, requires a sorted BAM file with pre-built index [" + nThreads + "]" + newLine +
 				"            -v  FLAG            show verbose information"
 				);
 	}
@@ -204,10 +342,8 @@ public class SamToRegionCount {
 				myStrand = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-R"))
 				bed6File = args[++i];
-			else if(args[i].equals("--nr")) {
+			else if(args[i].equals("--nr"))
 				doNR = true;
-				nrPat = Pattern.compile("^(?:tr|un|nr)\\d+:(\\d+):\\d+");
-			}
 			else if(args[i].equals("-f"))
 				minRate = Double.parseDouble(args[++i]);
 			else if(args[i].equals("--norm-rpm"))
@@ -216,6 +352,8 @@ public class SamToRegionCount {
 				maxFlank = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-Q") || args[i].equals("--min-mapQ"))
 				minMapQ = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else
@@ -231,6 +369,8 @@ public class SamToRegionCount {
 		// Reformat myStrand
 		if(!(myStrand >= 1 && myStrand <= 3))
 			throw new IllegalArgumentException("Unknown -s option, must be 1, 2 or 3");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive");
 	}
 
 	private static String samInFile;
@@ -238,15 +378,16 @@ public class SamToRegionCount {
 	private static String bed6File;
 	private static int myStrand = 3;
 	private static boolean doNR; // whether treat read as NR-tag
+	private static boolean useCloneTag; // whether the clone tags written by filterSE/filterPE --nr can be trusted
 	private static double minRate = 1e-9;
 	private static boolean normRPM;
 	private static long totalNum;
 	private static int maxFlank;
 	private static int minMapQ;
+	private static int nThreads = 1; // number of threads scanning chroms
 	private static int verbose;
 
 	private static Timer processMonitor;
 	private static ProcessStatusTask statusTask;
-	private static Pattern nrPat;
 	private static final int statusFreq = 10000;
 }
@@ -22,8 +22,6 @@
 package edu.upenn.egricelab.AlignerBoost.utils;
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import htsjdk.samtools.*;
 import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
@@ -63,36 +61,19 @@ public class SamToRelCover {
 			if(normRPM) {
 				if(verbose > 0)
 					System.err.print("Determining total number of alignments ... ");
-				SAMRecordIterator allResults = samIn.iterator();
-				while(allResults.hasNext()) {
-					totalNum++;
-					allResults.next();
-				}
-				allResults.close();
+				totalNum = SamTotalCounter.getTotalNum(samIn, new File(samInFile)); // from the BAM index or stats file if available
 				if(verbose > 0)
 					System.err.println(totalNum);
 			}
 			
-			// check each region and output
+			// read in all regions
+			RegionCoverScanner scanner = new RegionCoverScanner(samIn, myStrand, minMapQ, countSoft, doNR);
 			bed6In = new BufferedReader(new FileReader(bed6File));
-			if(verbose > 0) {
-				// Start the processMonitor to monitor the process
-				processMonitor = new Timer();
-				// Start the ProcessStatusTask
-				statusTask = new ProcessStatusTask("regions scanned");
-				// Schedule to show the status every 1 second
-				processMonitor.scheduleAtFixedRate(statusTask, 0, statusFreq);
-				System.err.println("Scanning BED6 regions and output ...");
-			}
-			
-			out.write("chrom\tstart\tend\tname\tcover\tstrand\tregion_length\tfrom\tto\tcover_strand\n");
 			String line = null;
 			while((line = bed6In.readLine()) != null) {
 				String[] fields = line.split("\t");
 				if(fields.length < 6) // ignore header lines
 					continue;
-				if(verbose > 0)
-					statusTask.updateStatus(); // Update status
 				String chr = fields[0];
 				int chrI = samIn.getFileHeader().getSequenceIndex(chr);
 				if(chrI == -1) // this Region is not in the aligned chromosomes
@@ -103,108 +84,38 @@ public class SamToRelCover {
 				if(regionLen <= 0)
 					continue;
 				int chrLen = samDict.getSequence(chrI).getSequenceLength();
-				String name = fields[3];
-				String regionStrand = fields[5];
 
-				// Initialize scan-index
+				// Initialize scan-region
 				int scanStart = regionStart - maxFlank >= 1 ? regionStart - maxFlank : 1;
 				int scanEnd = regionEnd + maxFlank <= chrLen ? regionEnd + maxFlank : chrLen;
-				int scanLen = scanEnd - scanStart + 1;
-				int scanIdx[] = new int[scanLen];
-				// Query SAM file on the fly
-				SAMRecordIterator results = samIn.query(chr, scanStart, scanEnd, false);
-				while(results.hasNext()) {
-					SAMRecord record = results.next();
-					int readLen = record.getReadLength();
-					if(record.getReferenceIndex() == -1 || readLen == 0) // non mapped read or 0-length read
-						continue;
-					// check relative strand
-					String strand = record.getReadNegativeStrandFlag() ? "-" : "+";
-					int relStrand = regionStrand.equals(".") ? 3 /* unknown */ : strand.equals(regionStrand) ? 1 /* sense */ : 2 /* antisense */;
-					if((relStrand & myStrand) == 0) // unmatched strands
-						continue;
-					if(record.getMappingQuality() < minMapQ)
-						continue;
-					int clone = 1;
-					if(doNR) {
-						Matcher match = nrPat.matcher(record.getReadName()); // whether match interval nrID pattern
-						clone = match.find() ? Integer.parseInt(match.group(1)) : 1;
-					}
-					
-					int start = record.getUnclippedStart();
-					Cigar cigar = record.getCigar();
-					int pos = start - scanStart; // relative pos to scanStart
-					for(CigarElement cigEle : cigar.getCigarElements()) {
-						int cigLen = cigEle.getLength();
-						CigarOperator cigOp = cigEle.getOperator();
-						switch(cigOp) {
-						case M: case EQ: case X: case D:
-							for(int i = 0; i < cigLen; i++) {
-								if(pos >= 0 && pos < scanLen)
-									scanIdx[pos] += clone;
-								pos++;
-							}
-							break;
-						case S: // soft clip included by default
-							if(countSoft) {
-								for(int i = 0; i < cigLen; i++) {
-									if(pos >= 0 && pos < scanLen)
-										scanIdx[pos] += clone;
-									pos++;
-								}
-							}
-							else
-								pos += cigLen; // ignore soft-clip
-							break;
-						case N: case H: // ignored bases
-							pos += cigLen;
-							break;
-							//case I: case P: // not present in reference at all
-							//  break; // do nothing
-						default: // case I or case P
-							break;
-						}
-					} // end each cigEle
-				} // end each record
-				results.close();
-				// output
-				if(regionStrand.equals("+") || regionStrand.equals(".")) { // unknown strand treat as plus
-					for(int i = scanStart; i < scanEnd && i <= chrLen; i += step) {
-						int start = i;
-						int end = start + step - 1;
-						if(end > scanEnd)
-							end = scanEnd;
-						int from = start - regionStart;
-						int to = end - regionStart;
-						double val = Stats.mean(scanIdx, start - scanStart, end - scanStart + 1);
-						if(normRPM)
-							val /= totalNum / 1e6;
-						out.write(chr + "\t" + start + "\t" + end + "\t" + name + "\t" +
-								(float) val + "\t" + regionStrand + "\t" + 
-								regionLen + "\t" + from + "\t" + to + "\t" + myStrand + "\n");
-					}
+				scanner.addRegion(chr, regionStart, regionEnd, fields[3], fields[5], scanStart, scanEnd);
+			}
+			bed6In.close();
+			if(verbose > 0) {
+				System.err.println("Read in " + scanner.getNumRegions() + " regions from BED6 file");
+				// Start the processMonitor to monitor the process
+				processMonitor = new Timer();
+				// Start the ProcessStatusTask
+				statusTask = new ProcessStatusTask("regions scanned");
+				// Schedule to show the status every 1 second
+				processMonitor.scheduleAtFixedRate(statusTask, 0, statusFreq);
+				System.err.println("Scanning BED6 regions and output ...");
+			}
+			
+			out.write("chrom\tstart\tend\tname\tcover\tstrand\tregion_length\tfrom\tto\tcover_strand\n");
+			// cover merged regions once, and output each region in BED order
+			scanner.scan(out, new RegionCoverScanner.RegionWriter() {
+				@Override
+				public void write(Writer out, RegionCoverScanner.Region region, int[] cover, int offset) throws IOException {
+					writeRegion(out, region, cover, offset);
 				}
-				else { // minus strand region
-					for(int i = scanEnd; i > scanStart && i >= 1; i -= step) {
-						int end = i;
-						int start = end - step + 1;
-						if(start < scanStart)
-							start = scanStart;
-						int from = regionEnd - end;
-						int to = regionEnd - start;
-						double val = Stats.mean(scanIdx, start - scanStart, end - scanStart + 1);
-						if(normRPM)
-							val /= totalNum / 1e6;
-						out.write(chr + "\t" + start + "\t" + end + "\t" + name + "\t" +
-								(float) val + "\t" + regionStrand + "\t" + 
-								regionLen + "\t" + from + "\t" + to + "\t" + myStrand + "\n");
-					}
-				} // end output
-			} // end each region
+			}, new File(samInFile), nThreads);
 			// Terminate the monitor task and monitor
-			statusTask.cancel();
-			statusTask.finish();
-			processMonitor.cancel();
+			if(verbose > 0) {
+				statusTask.cancel();
+				statusTask.finish();
+				processMonitor.cancel();
+			}
 		}
 		catch(IOException e) {
 			System.err.println(e.getMessage());
@@ -227,6 +138,59 @@ public class SamToRelCover {
 		}
 	}
 
+	/**
+	 * Write the relative coverage of a region in step windows
+	 * @param out  output
+	 * @param region  region to write
+	 * @param cover  base-wise coverage of the region's relative strand(s)
+	 * @param offset  0-based index in cover of the region's scan start
+	 * @throws IOException  if any IO error occurs
+	 */
+	private static void writeRegion(Writer out, RegionCoverScanner.Region region, int[] cover, int offset) throws IOException {
+		if(verbose > 0)
+			statusTask.updateStatus(1); // Update status, may be called by multiple threads
+		String chr = region.chr;
+		int regionStart = region.start;
+		int regionEnd = region.end;
+		int regionLen = regionEnd - regionStart + 1;
+		String name = region.name;
+		String regionStrand = region.strand;
+		int scanStart = region.scanStart;
+		int scanEnd = region.scanEnd;
+		if(regionStrand.equals("+") || regionStrand.equals(".")) { // unknown strand treat as plus
+			for(int i = scanStart; i < scanEnd; i += step) {
+				int start = i;
+				int end = start + step - 1;
+				if(end > scanEnd)
+					end = scanEnd;
+				int from = start - regionStart;
+				int to = end - regionStart;
+				double val = Stats.mean(cover, offset + start - scanStart, offset + end - scanStart + 1);
+				if(normRPM)
+					val /= totalNum / 1e6;
+				out.write(chr + "\t" + start + "\t" + end + "\t" + name + "\t" +
+						(float) val + "\t" + regionStrand + "\t" + 
+						regionLen + "\t" + from + "\t" + to + "\t" + myStrand + "\n");
+			}
+		}
+		else { // minus strand region
+			for(int i = scanEnd; i > scanStart && i >= 1; i -= step) {
+				int end = i;
+				int start = end - step + 1;
+				if(start < scanStart)
+					start = scanStart;
+				int from = regionEnd - end;
+				int to = regionEnd - start;
+				double val = Stats.mean(cover, offset + start - scanStart, offset + end - scanStart + 1);
+				if(normRPM)
+					val /= totalNum / 1e6;
+				out.write(chr + "\t" + start + "\t" + end + "\t" + name + "\t" +
+						(float) val + "\t" + regionStrand + "\t" + 
+						regionLen + "\t" + from + "\t" + to + "\t" + myStrand + "\n");
+			}
+		}
+	}
+
 	private static void printUsage() {
 		System.err.println("java -jar " + progFile + " utils samToRelCover " +
 				"<-i SAM|BAM-INFILE> <-R BED6-FILE> <-o OUTFILE> [options]" + newLine +
@@ -240,6 +204,7 @@ public class SamToRelCover {
 				"            -Q/--min-mapQ  INT  minimum mapQ cutoff [" + minMapQ + "]" + newLine +
 				"            -step  INT          step width for calculating the coverage or average coverages [" + step + "]" + newLine +
 				"            -flank  INT         max upsteam/downsteam positions to look at [" + maxFlank + "]" + newLine +
+				"            -p/--threads  INT   number of threads scanning merged regions in parallel, requires a sorted BAM file with pre-built index [" + nThreads + "]" + newLine +
 				"            -v  FLAG            show verbose information"
 				);
 	}
@@ -258,16 +223,16 @@ public class SamToRelCover {
 				bed6File = args[++i];
 			else if(args[i].equals("--count-soft"))
 				countSoft = true;
-			else if(args[i].equals("--nr")) {
+			else if(args[i].equals("--nr"))
 				doNR = true;
-				nrPat = Pattern.compile("^(?:tr|un|nr)\\d+:(\\d+):\\d+");
-			}
 			else if(args[i].equals("-Q") || args[i].equals("--min-mapQ"))
 				minMapQ = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-step"))
 				step = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-flank"))
 				maxFlank = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-p") || args[i].equals("--threads"))
+				nThreads = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-v"))
 				verbose++;
 			else
@@ -283,6 +248,8 @@ public class SamToRelCover {
 		// Reformat myStrand
 		if(!(myStrand >= 1 && myStrand <= 3))
 			throw new IllegalArgumentException("Unknown -s option, must be 1, 2 or 3");
+		if(nThreads <= 0)
+			throw new IllegalArgumentException("-p/--threads must be positive");
 	}
 
 	private static String samInFile;
@@ -296,10 +263,10 @@ public class SamToRelCover {
 	private static int minMapQ;
 	private static int step = 1;
 	private static int maxFlank;
+	private static int nThreads = 1; // number of threads scanning merged regions
 	private static int verbose;
 
 	private static Timer processMonitor;
 	private static ProcessStatusTask statusTask;
-	private static Pattern nrPat;
 	private static final int statusFreq = 10000;
 }
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a utility class to get the total number of alignments of a SAM/BAM file from the cheapest source
+ */
+package edu.upenn.egricelab.AlignerBoost.utils;
+
+import java.io.*;
+
+import htsjdk.samtools.*;
+
+/** Get the total number of alignment records of a SAM/BAM file, i.e. for RPM normalization, from the first available source of
+ * 1. the mapped and unmapped record counts of each reference in the BAM index, plus the no-coordinate records;
+ * 2. a stats sidecar file written by filterSE/filterPE along with the SAM/BAM file, if it is not older than the SAM/BAM file;
+ * 3. a full scan of the SAM/BAM file.
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class SamTotalCounter {
+	/**
+	 * Get the total number of alignments of a SAM/BAM file
+	 * @param samIn  opened reader of the SAM/BAM file, which will be iterated if a full scan is required
+	 * @param samFile  SAM/BAM file
+	 * @return  total number of alignments
+	 * @throws IOException  if the stats sidecar file exists but cannot be read
+	 */
+	public static long getTotalNum(SamReader samIn, File samFile) throws IOException {
+		long totalNum = getIndexTotalNum(samIn);
+		if(totalNum != -1)
+			return totalNum;
+		totalNum = readStats(samFile);
+		if(totalNum != -1)
+			return totalNum;
+		// full scan
+		totalNum = 0;
+		SAMRecordIterator allResults = samIn.iterator();
+		while(allResults.hasNext()) {
+			totalNum++;
+			allResults.next();
+		}
+		allResults.close();
+		return totalNum;
+	}
+
+	/**
+	 * Get the total number of alignments from the meta data of a BAM index
+	 * @param samIn  opened reader
+	 * @return  total number of alignments, or -1 if not available
+	 */
+	public static long getIndexTotalNum(SamReader samIn) {
+		if(samIn.type() != SamReader.Type.BAM_TYPE || !samIn.hasIndex())
+			return -1;
+		BAMIndex index = samIn.indexing().getIndex();
+		if(!(index instanceof AbstractBAMFileIndex))
+			return -1;
+		AbstractBAMFileIndex bamIndex = (AbstractBAMFileIndex) index;
+		Long noCoordNum = bamIndex.getNoCoordinateCount();
+		if(noCoordNum == null) // not recorded in this index
+			return -1;
+		long totalNum = noCoordNum;
+		int nRefs = samIn.getFileHeader().getSequenceDictionary().size();
+		for(int i = 0; i < nRefs; i++) {
+			BAMIndexMetaData metaData = bamIndex.getMetaData(i);
+			if(metaData != null)
+				totalNum += metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+		}
+		return totalNum;
+	}
+
+	/**
+	 * Get the stats sidecar file of a SAM/BAM file
+	 * @param samFile  SAM/BAM file
+	 * @return  stats sidecar file
+	 */
+	public static File getStatsFile(File samFile) {
+		return new File(samFile.getPath() + STATS_SUFFIX);
+	}
+
+	/**
+	 * Write the stats sidecar file of a SAM/BAM file
+	 * @param samFile  SAM/BAM file that has been written
+	 * @param totalNum  total number of alignments written
+	 * @throws IOException  if any IO error occurs
+	 */
+	public static void writeStats(File samFile, long totalNum) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(getStatsFile(samFile)));
+		try {
+			out.write(TOTAL_KEY + "\t" + totalNum + "\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the total number of alignments from the stats sidecar file of a SAM/BAM file
+	 * @param samFile  SAM/BAM file
+	 * @return  total number of alignments, or -1 if the stats file does not exist, is older than the SAM/BAM file, or has no total
+	 * @throws IOException  if the stats file cannot be read
+	 */
+	public static long readStats(File samFile) throws IOException {
+		File statsFile = getStatsFile(samFile);
+		if(!statsFile.isFile() || statsFile.lastModified() < samFile.lastModified()) // not available or out-dated
+			return -1;
+		BufferedReader in = new BufferedReader(new FileReader(statsFile));
+		try {
+			String line = null;
+			while((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if(fields.length == 2 && fields[0].equals(TOTAL_KEY))
+					return Long.parseLong(fields[1]);
+			}
+		}
+		catch(NumberFormatException e) {
+			throw new IOException("invalid stats file '" + statsFile + "'", e);
+		}
+		finally {
+			in.close();
+		}
+		return -1;
+	}
+
+	public static final String STATS_SUFFIX = ".stats"; // file name suffix of the stats sidecar file
+	private static final String TOTAL_KEY = "total_alignments";
+}
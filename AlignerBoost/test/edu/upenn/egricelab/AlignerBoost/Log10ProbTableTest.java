@@ -0,0 +1,166 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to check the pre-computed log10-prob tables of SAMAlignFixer against the per-base formula
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import edu.upenn.egricelab.AlignerBoost.utils.Stats;
+import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
+import static edu.upenn.egricelab.AlignerBoost.utils.Stats.PHRED_SCALE;
+
+/** A bit-identity test and benchmark of the MATCH_LOG10_PROB and ERROR_LOG10_PROB tables of SAMAlignFixer.
+ * For every quality byte 0..255, after the same signed MIN_PHRED_QUAL clamp the old calcAlignLik applied,
+ * the table entries are required to be bit-identical to Stats.phredP2Q(1 - Stats.phredQ2P(q), -1) (match)
+ * and q / -PHRED_SCALE (error), then a per-base likelihood loop is timed with both.
+ * The private members of SAMAlignFixer are reached by reflection, so nothing in it is opened up for this test
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class Log10ProbTableTest {
+	public static void main(String[] args) {
+		try {
+			parseOptions(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			return;
+		}
+
+		try {
+			double[] matchTable = (double[]) getField("MATCH_LOG10_PROB");
+			double[] errorTable = (double[]) getField("ERROR_LOG10_PROB");
+			byte minQual = (Byte) getField("MIN_PHRED_QUAL");
+			int nDiff = 0;
+			for(int i = 0; i < 256; i++) {
+				byte q = clampQual((byte) i, minQual);
+				double match = Stats.phredP2Q(1 - Stats.phredQ2P(q), -1);
+				double error = q / -PHRED_SCALE;
+				if(Double.doubleToRawLongBits(matchTable[i]) != Double.doubleToRawLongBits(match)) {
+					System.err.printf("DIFF MATCH_LOG10_PROB[%d] (q=%d): table %s formula %s%n", i, q, matchTable[i], match);
+					nDiff++;
+				}
+				if(Double.doubleToRawLongBits(errorTable[i]) != Double.doubleToRawLongBits(error)) {
+					System.err.printf("DIFF ERROR_LOG10_PROB[%d] (q=%d): table %s formula %s%n", i, q, errorTable[i], error);
+					nDiff++;
+				}
+			}
+			System.out.printf("%d table entries compared with MIN_PHRED_QUAL=%d, %d differences%n", 2 * 256, minQual, nDiff);
+			if(nRounds > 0)
+				benchmark(matchTable, errorTable, minQual);
+			if(nDiff > 0)
+				System.exit(1);
+		}
+		catch(ReflectiveOperationException e) {
+			System.err.println("Error: unable to access SAMAlignFixer: " + e);
+			System.exit(1);
+		}
+	}
+
+	// a method to print usage
+	private static void printUsage() {
+		System.err.println("java -cp " + progFile + ":TEST-CLASSES " + Log10ProbTableTest.class.getName() + " [options]" + newLine +
+				"Options:    -n/--bases  INT   # of random bases of the benchmark [" + nBases + "]" + newLine +
+				"            -r/--rounds  INT  rounds over all bases of the benchmark, 0 for no benchmark [" + nRounds + "]"
+				);
+	}
+
+	private static void parseOptions(String[] args) throws IllegalArgumentException {
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-n") || args[i].equals("--bases")) {
+				if(++i == args.length)
+					throw new IllegalArgumentException("-n/--bases must be followed by an integer");
+				nBases = Integer.parseInt(args[i]);
+				if(nBases <= 0)
+					throw new IllegalArgumentException("-n/--bases must be positive");
+			}
+			else if(args[i].equals("-r") || args[i].equals("--rounds")) {
+				if(++i == args.length)
+					throw new IllegalArgumentException("-r/--rounds must be followed by an integer");
+				nRounds = Integer.parseInt(args[i]);
+				if(nRounds < 0)
+					throw new IllegalArgumentException("-r/--rounds must be non-negative");
+			}
+			else
+				throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+		}
+	}
+
+	private static Object getField(String name) throws ReflectiveOperationException {
+		Field field = SAMAlignFixer.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(null);
+	}
+
+	/** the clamp of the old calcAlignLik, on the signed quality byte */
+	private static byte clampQual(byte q, byte minQual) {
+		return q >= minQual ? q : minQual;
+	}
+
+	/**
+	 * Time the per-base log10-likelihood sum by the old formula and by the tables, on random qualities with ~2% mismatches
+	 * @param matchTable  MATCH_LOG10_PROB table
+	 * @param errorTable  ERROR_LOG10_PROB table
+	 * @param minQual  MIN_PHRED_QUAL
+	 */
+	private static void benchmark(double[] matchTable, double[] errorTable, byte minQual) {
+		Random rand = new Random(SEED);
+		byte[] qual = new byte[nBases];
+		boolean[] isMatch = new boolean[nBases];
+		for(int i = 0; i < nBases; i++) {
+			qual[i] = (byte) rand.nextInt(MAX_RANDOM_QUAL + 1);
+			isMatch[i] = rand.nextDouble() >= MISMATCH_RATE;
+		}
+		for(int pass = 0; pass < 2; pass++) { // the first pass is warm-up
+			int rounds = pass == 0 ? Math.max(1, nRounds / 10) : nRounds;
+			double oldSum = 0;
+			long start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < nBases; i++) {
+					byte q = clampQual(qual[i], minQual);
+					oldSum += isMatch[i] ? Stats.phredP2Q(1 - Stats.phredQ2P(q), -1) : q / -PHRED_SCALE;
+				}
+			long oldTime = System.nanoTime() - start;
+			double newSum = 0;
+			start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < nBases; i++)
+					newSum += isMatch[i] ? matchTable[qual[i] & 0xFF] : errorTable[qual[i] & 0xFF];
+			long newTime = System.nanoTime() - start;
+			if(pass == 0)
+				continue;
+			long total = (long) rounds * nBases;
+			System.out.printf("log10-likelihood sum: formula %.1f Mbases/sec, table %.1f Mbases/sec (%.2fx), sums %s%n",
+					total * 1e3 / oldTime, total * 1e3 / newTime, (double) oldTime / newTime,
+					Double.doubleToRawLongBits(oldSum) == Double.doubleToRawLongBits(newSum) ? "identical" : "DIFFER " + oldSum + " " + newSum);
+		}
+	}
+
+	private static final long SEED = 20161017L;
+	private static final int MAX_RANDOM_QUAL = 41; // Illumina 1.8+ range
+	private static final double MISMATCH_RATE = 0.02;
+
+	private static int nBases = 1000000;
+	private static int nRounds = 50;
+}
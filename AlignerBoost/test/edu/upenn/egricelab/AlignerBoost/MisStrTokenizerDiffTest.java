@@ -0,0 +1,454 @@
+/*******************************************************************************
+ *     This file is part of AlignerBoost, a generalized software toolkit to boost
+ *     the NextGen sequencing (NGS) aligner precision and sensitivity.
+ *     Copyright (C) 2015  Qi Zheng
+ *
+ *     AlignerBoost is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AlignerBoost is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AlignerBoost.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+/**
+ * a class to check the MD:Z tokenizer of SAMAlignFixer against the old regex parser
+ */
+package edu.upenn.egricelab.AlignerBoost;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import htsjdk.samtools.*;
+import edu.upenn.egricelab.AlignerBoost.utils.Stats;
+import static edu.upenn.egricelab.AlignerBoost.EnvConstants.*;
+
+/** A differential test and benchmark of the MD:Z parsing of SAMAlignFixer.
+ * Every record of the given SAM files is parsed by both the MisStrTokenizer path of SAMAlignFixer
+ * and a verbatim copy of the regex path it replaced (misPat1-4, Integer.parseInt and advanceReferencePos),
+ * and the fixed MD:Z, align status and clipped MD:Z strings are required to be identical.
+ * The private members of SAMAlignFixer are reached by reflection, so nothing in it is opened up for this test
+ * @author Qi Zheng
+ * @version 1.2
+ * @since 1.8
+ */
+public class MisStrTokenizerDiffTest {
+	public static void main(String[] args) {
+		if(args.length == 0) {
+			printUsage();
+			return;
+		}
+		try {
+			parseOptions(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			return;
+		}
+
+		try {
+			initReflection();
+			long nDiff = 0;
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for(String inFile : inFiles) {
+				List<SAMRecord> fileRecords = readRecords(inFile);
+				long fileDiff = 0;
+				for(SAMRecord record : fileRecords)
+					fileDiff += compareRecord(record);
+				System.out.printf("%s: %d records, %d differences%n", inFile, fileRecords.size(), fileDiff);
+				nDiff += fileDiff;
+				records.addAll(fileRecords);
+			}
+			System.out.printf("total: %d records, %d fixed MD:Z (%d needed fixing), %d align status, %d clipped MD:Z compared, %d differences%n",
+					records.size(), nFixChecked, nFixed, nStatusChecked, nClipChecked, nDiff);
+			if(nRounds > 0)
+				benchmark(records);
+			if(nDiff > 0)
+				System.exit(1);
+		}
+		catch(IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+		catch(ReflectiveOperationException e) {
+			System.err.println("Error: unable to access SAMAlignFixer: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// a method to print usage
+	private static void printUsage() {
+		System.err.println("java -ea -cp " + progFile + ":TEST-CLASSES " + MisStrTokenizerDiffTest.class.getName() + " [options] <SAM-FILE> [SAM-FILE ...]" + newLine +
+				"Options:    SAM-FILE  SAM/BAM files with MD:Z tags to check, i.e. test/data/bwa.sam test/data/bowtie2.sam test/data/novoalign.sam" + newLine +
+				"            -r/--rounds  INT  rounds over all records of the benchmark, 0 for no benchmark [" + nRounds + "]"
+				);
+	}
+
+	private static void parseOptions(String[] args) throws IllegalArgumentException {
+		inFiles = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-r") || args[i].equals("--rounds")) {
+				if(++i == args.length)
+					throw new IllegalArgumentException("-r/--rounds must be followed by an integer");
+				nRounds = Integer.parseInt(args[i]);
+				if(nRounds < 0)
+					throw new IllegalArgumentException("-r/--rounds must be non-negative");
+			}
+			else
+				inFiles.add(args[i]);
+		}
+		if(inFiles.isEmpty())
+			throw new IllegalArgumentException("at least one SAM-FILE must be specified");
+	}
+
+	private static void initReflection() throws ReflectiveOperationException {
+		Class<?> tokensClass = Class.forName(SAMAlignFixer.class.getName() + "$MisStrTokenizer");
+		Constructor<?> tokensCtor = tokensClass.getDeclaredConstructor();
+		tokensCtor.setAccessible(true);
+		tokens = tokensCtor.newInstance();
+		getAlnStatus = SAMAlignFixer.class.getDeclaredMethod("getAlnStatusBySAMRecord",
+				SAMRecord.class, byte[].class, int.class, tokensClass);
+		fixCigarMisStr = SAMAlignFixer.class.getDeclaredMethod("fixSAMRecordCigarMisStr",
+				SAMRecord.class, int.class, byte[].class, int.class, int.class, int.class, int.class, tokensClass);
+		calcAlnLen = SAMAlignFixer.class.getDeclaredMethod("calcAlnLenByCigar", Cigar.class);
+		calcRefFrom = SAMAlignFixer.class.getDeclaredMethod("calcReferenceFrom", byte[].class, int.class);
+		calcRefTo = SAMAlignFixer.class.getDeclaredMethod("calcReferenceTo", byte[].class, int.class);
+		for(Method method : new Method[] { getAlnStatus, fixCigarMisStr, calcAlnLen, calcRefFrom, calcRefTo })
+			method.setAccessible(true);
+	}
+
+	private static List<SAMRecord> readRecords(String inFile) throws IOException {
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		SamReader samIn = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(inFile));
+		try {
+			for(SAMRecord record : samIn)
+				if(!record.getReadUnmappedFlag() && record.getStringAttribute("MD") != null)
+					records.add(record);
+		}
+		finally {
+			samIn.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Compare the old and new MD:Z parsing of a record, the record is left with its fixed MD:Z
+	 * @param record  record to compare
+	 * @return  # of differences found
+	 */
+	private static int compareRecord(SAMRecord record) throws ReflectiveOperationException {
+		int nDiff = 0;
+		// fixMisStr, misPat4
+		String misStr = record.getStringAttribute("MD");
+		String oldFixed = oldFixMisStr(misStr);
+		boolean isFixed = SAMAlignFixer.fixMisStr(record);
+		String newFixed = isFixed ? record.getStringAttribute("MD") : null;
+		nFixChecked++;
+		if(isFixed)
+			nFixed++;
+		if(!Objects.equals(oldFixed, newFixed)) {
+			reportDiff(record, "fixMisStr", misStr, oldFixed, newFixed);
+			nDiff++;
+		}
+		misStr = record.getStringAttribute("MD");
+
+		// getAlnStatusBySAMRecord, misPat1 and misPat2
+		int alnLen = (Integer) calcAlnLen.invoke(null, record.getCigar());
+		char[] oldStatus;
+		byte[] newStatus = new byte[alnLen];
+		try {
+			oldStatus = oldGetAlnStatus(record, alnLen);
+		}
+		catch(RuntimeException e) { // the new path is expected to reject it too
+			oldStatus = null;
+		}
+		try {
+			getAlnStatus.invoke(null, record, newStatus, alnLen, tokens);
+		}
+		catch(InvocationTargetException e) {
+			newStatus = null;
+		}
+		nStatusChecked++;
+		if(oldStatus == null || newStatus == null) {
+			if((oldStatus == null) != (newStatus == null)) {
+				reportDiff(record, "getAlnStatusBySAMRecord", misStr, oldStatus == null ? "rejected" : new String(oldStatus),
+						newStatus == null ? "rejected" : statusString(newStatus));
+				nDiff++;
+			}
+			return nDiff;
+		}
+		if(!new String(oldStatus).equals(statusString(newStatus))) {
+			reportDiff(record, "getAlnStatusBySAMRecord", misStr, new String(oldStatus), statusString(newStatus));
+			nDiff++;
+			return nDiff;
+		}
+
+		// fixSAMRecordCigarMisStr, misPat3, clipped at a few inner matched positions of both ends, as 1DP does
+		int oldFrom = 0;
+		while(oldFrom < alnLen && newStatus[oldFrom] == 'S')
+			oldFrom++;
+		int oldTo = alnLen;
+		while(oldTo > 0 && newStatus[oldTo - 1] == 'S')
+			oldTo--;
+		for(int clip : CLIP_LENS) {
+			int from = oldFrom + clip;
+			int to = oldTo - clip;
+			if(from >= to || !isMatchStatus(newStatus[from]) || !isMatchStatus(newStatus[to - 1]))
+				continue;
+			int refFrom = (Integer) calcRefFrom.invoke(null, newStatus, from);
+			int refTo = (Integer) calcRefTo.invoke(null, newStatus, to);
+			String oldClipped = oldClipMisStr(misStr, oldFrom, refFrom, refTo);
+			SAMRecord clipped = copyRecord(record);
+			fixCigarMisStr.invoke(null, clipped, alnLen, newStatus, from, to, oldFrom, oldTo, tokens);
+			String newClipped = clipped.getStringAttribute("MD");
+			nClipChecked++;
+			if(!oldClipped.equals(newClipped)) {
+				reportDiff(record, "fixSAMRecordCigarMisStr[" + from + "," + to + ")", misStr, oldClipped, newClipped);
+				nDiff++;
+			}
+		}
+		return nDiff;
+	}
+
+	private static String statusString(byte[] status) {
+		char[] chars = new char[status.length];
+		for(int i = 0; i < status.length; i++)
+			chars[i] = (char) status[i];
+		return new String(chars);
+	}
+
+	private static boolean isMatchStatus(byte s) {
+		return s == 'M' || s == '='; // as the 1DP insert region always starts and ends with a match
+	}
+
+	private static SAMRecord copyRecord(SAMRecord record) {
+		try {
+			return (SAMRecord) record.clone();
+		}
+		catch(CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void reportDiff(SAMRecord record, String method, String misStr, String oldValue, String newValue) {
+		System.err.printf("DIFF %s %s CIGAR:%s MD:Z:%s%n  old: %s%n  new: %s%n",
+				method, record.getReadName(), record.getCigarString(), misStr, oldValue, newValue);
+	}
+
+	/**
+	 * Time the old and new path over all (already fixed) records for nRounds rounds
+	 * @param records  records to parse
+	 */
+	private static void benchmark(List<SAMRecord> records) throws ReflectiveOperationException {
+		int n = records.size();
+		int[] alnLens = new int[n];
+		int maxLen = 0;
+		for(int i = 0; i < n; i++) {
+			alnLens[i] = (Integer) calcAlnLen.invoke(null, records.get(i).getCigar());
+			maxLen = Math.max(maxLen, alnLens[i]);
+		}
+		byte[] status = new byte[maxLen];
+		long sink = 0; // keep the results alive
+		for(int pass = 0; pass < 2; pass++) { // the first pass is warm-up
+			int rounds = pass == 0 ? Math.max(1, nRounds / 10) : nRounds;
+			long start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < n; i++)
+					sink += oldGetAlnStatus(records.get(i), alnLens[i])[0];
+			long oldStatusTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < n; i++) {
+					getAlnStatus.invoke(null, records.get(i), status, alnLens[i], tokens);
+					sink += status[0];
+				}
+			long newStatusTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < n; i++)
+					if(oldFixMisStr(records.get(i).getStringAttribute("MD")) != null)
+						sink++;
+			long oldFixTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+				for(int i = 0; i < n; i++)
+					if(SAMAlignFixer.fixMisStr(records.get(i)))
+						sink++;
+			long newFixTime = System.nanoTime() - start;
+			if(pass == 0)
+				continue;
+			long total = (long) rounds * n;
+			System.out.printf("align status: regex %.0f records/sec, tokenizer %.0f records/sec (%.2fx, incl. reflective call)%n",
+					total * 1e9 / oldStatusTime, total * 1e9 / newStatusTime, (double) oldStatusTime / newStatusTime);
+			System.out.printf("fixMisStr:    regex %.0f records/sec, tokenizer %.0f records/sec (%.2fx)%n",
+					total * 1e9 / oldFixTime, total * 1e9 / newFixTime, (double) oldFixTime / newFixTime);
+		}
+		if(sink == 42)
+			System.out.print("");
+	}
+
+	/* the old regex path of SAMAlignFixer, copied verbatim except for returning values instead of updating the record */
+
+	/** get align status ('M', '=', 'X', 'I', 'S') given cigar and mismatch tag, by the old regex path
+	 * @return a char array index with length = alnLen, and always in the reference orientation
+	 */
+	private static char[] oldGetAlnStatus(SAMRecord record, int alnLen) {
+		Cigar cigar = record.getCigar();
+		String misStr = record.getStringAttribute("MD");
+
+		// Initiate align status index
+		char[] status = new char[alnLen];
+		int shift = 0;
+		// build status from cigar first
+		for(CigarElement cigEle : cigar.getCigarElements()) {
+			int cigLen = cigEle.getLength();
+			CigarOperator cigOp = cigEle.getOperator();
+			switch(cigOp) {
+			case M: case EQ: case X: case I: case D: case S:
+				for(int i = 0; i < cigLen; i++)
+					status[shift++] = (char) CigarOperator.enumToCharacter(cigOp);
+				break;
+			default: // H, N or P, do nothing
+				break;
+			}
+		}
+		// check misStr, if exists
+		if(misStr != null) {
+			// set the pos to the first non 'S'
+			int pos = 0;
+			while(status[pos] == 'S')
+				pos++;
+			Matcher match1 = misPat1.matcher(misStr);
+			match1.find();
+			pos = oldAdvanceReferencePos(status, pos, Integer.parseInt(match1.group(1)));
+			String other = match1.group(2);
+			Matcher match2 = misPat2.matcher(other); // parse other part
+			while(match2.find()) {
+				String misSeq = match2.group(1);
+				int followLen = Integer.parseInt(match2.group(2));
+				if(misSeq.length() == 1) { // a mismatch
+					assert status[pos] == '=' || status[pos] == 'M';
+					status[pos] = 'X';
+					pos = oldAdvanceReferencePos(status, pos, 1);
+				}
+				else // a deletion
+					pos += misSeq.length() - 1;
+				// advance the pos by followLen relative to read
+				pos = oldAdvanceReferencePos(status, pos, followLen);
+			}
+			assert pos <= alnLen;
+		}
+		return status;
+	}
+
+	/** the old method to advance reference pos to a given step, ignore I (insertion) that is not present on reference
+	 */
+	private static int oldAdvanceReferencePos(char[] status, int oldPos, int step) {
+		int shift = 0;
+		int pos = oldPos;
+		while(pos < status.length) {
+			if(shift == step && status[pos] != 'I')
+				break;
+			if(status[pos++] != 'I') // insertion not present on reference
+				shift++;
+		}
+		return pos;
+	}
+
+	/** Fix the MD:Z string by the old regex path
+	 * @return the fixed MD:Z string, or null if it is not fixed
+	 */
+	private static String oldFixMisStr(String misStr) {
+		Matcher match4 = misPat4.matcher(misStr); // parse the entire misStr
+		StringBuilder newMisStr = new StringBuilder();
+		boolean fixedFlag = false;
+		while(match4.find()) {
+			String word = match4.group();
+			if(word.length() > 1 && !Character.isDigit(word.charAt(0)) && word.charAt(0) != '^') { // a consecutive mismatch string, not a valid format
+				for(int i = 0; i < word.length(); i++) {
+					newMisStr.append(word.charAt(i));
+					if(i != word.length() - 1)
+						newMisStr.append(0);
+				}
+				fixedFlag = true;
+			}
+			else
+				newMisStr.append(word);
+		}
+		/* fixed the misStr start and end */
+		if(Character.isLetter(newMisStr.charAt(0))) {
+			newMisStr.insert(0, '0');
+			fixedFlag = true;
+		}
+		if(Character.isLetter(newMisStr.charAt(newMisStr.length() - 1))) {
+			newMisStr.append(0);
+			fixedFlag = true;
+		}
+		return fixedFlag ? newMisStr.toString() : null;
+	}
+
+	/** Clip the MD:Z string to [refFrom, refTo) by the old regex path
+	 * @return the clipped MD:Z string
+	 */
+	private static String oldClipMisStr(String oldMisStr, int oldFrom, int refFrom, int refTo) {
+		StringBuilder newMisStr = new StringBuilder(); // use StringBuilder for performance
+		Matcher match = misPat3.matcher(oldMisStr);
+		int refPos = oldFrom; // relative pos to the reference, excluding 'I'
+		while(match.find()) {
+			String s = match.group();
+			if(Stats.isDecimal(s)) { // a span met
+				int span = Integer.parseInt(s);
+				if(refPos + span <= refFrom || refPos >= refTo) // completely in soft-clipped region
+					; // do nothing
+				else if(refPos < refTo && refPos + span > refFrom) { // partially clipped
+					int clipFrom = refPos > refFrom ? refPos : refFrom;
+					int clipTo = refPos + span < refTo ? refPos + span : refTo;
+					newMisStr.append(clipTo - clipFrom);
+				}
+				else // not in clipped region
+					newMisStr.append(span);
+				refPos += span;
+			}
+			else { // a mismatch or deletion tag
+				if(refPos >= refFrom && refPos < refTo) // not in clip region, note deletion won't partially in clipped region
+					newMisStr.append(s);
+				if(s.length() == 1) // a mismatch
+					refPos++;
+				else // a deletion
+					refPos += s.length() - 1;
+			}
+		} // end while find
+		if(!Character.isDigit(newMisStr.charAt(newMisStr.length() - 1))) // if the new misStr deosn't end with number
+			newMisStr.append("0");
+		return newMisStr.toString();
+	}
+
+	private static final int[] CLIP_LENS = { 1, 3, 7 };
+	private static final Pattern misPat1 = Pattern.compile("(^\\d+)(.*)");
+	private static final Pattern misPat2 = Pattern.compile("([A-Z]|\\^[A-Z]+)(\\d+)");
+	private static final Pattern misPat3 = Pattern.compile("\\d+|[A-Z]|\\^[A-Z]+");
+	private static final Pattern misPat4 = Pattern.compile("\\d+|[A-Z]+|\\^[A-Z]+");
+
+	private static List<String> inFiles;
+	private static int nRounds = 200;
+	private static Object tokens;
+	private static Method getAlnStatus;
+	private static Method fixCigarMisStr;
+	private static Method calcAlnLen;
+	private static Method calcRefFrom;
+	private static Method calcRefTo;
+	private static long nFixChecked;
+	private static long nFixed;
+	private static long nStatusChecked;
+	private static long nClipChecked;
+}